@@ -0,0 +1,14 @@
+package xyz.synse.udppacketer.benchmarks;
+
+import example.TestPacket;
+import xyz.synse.udppacketer.common.packets.PacketProtocol;
+
+public class BenchmarkProtocol extends PacketProtocol {
+    public static final int TEST_PACKET = 1;
+    public static final int COMPOSITE_PACKET = 2;
+
+    public BenchmarkProtocol() {
+        register(TEST_PACKET, TestPacket.class);
+        register(COMPOSITE_PACKET, CompositePacket.class);
+    }
+}
@@ -0,0 +1,56 @@
+package xyz.synse.udppacketer.benchmarks;
+
+import example.TestPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.synse.udppacketer.server.Server;
+import xyz.synse.udppacketer.server.ServerFixtures;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link Server#sendToAll} fanning one packet out to a growing amount of connections.
+ * The datagrams really leave through the socket, to loopback ports nobody listens on, so the
+ * result includes the system calls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int connections;
+
+    private Server server;
+    private final TestPacket packet = new TestPacket(42);
+
+    @Setup(Level.Trial)
+    public void setup() throws UnknownHostException {
+        server = ServerFixtures.start(new BenchmarkProtocol());
+        ServerFixtures.connect(server, connections);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void sendToAll() {
+        server.sendToAll(packet);
+    }
+}
@@ -0,0 +1,72 @@
+package xyz.synse.udppacketer.benchmarks;
+
+import example.TestPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.synse.udppacketer.common.packets.Packet;
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+import xyz.synse.udppacketer.common.packets.PacketProtocol;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding a packet with {@link Packet#write(PacketBuffer)} and decoding it with
+ * {@link PacketProtocol#createClientboundPacket(int, PacketBuffer)}, for the stream based
+ * {@link TestPacket} and buffer based {@link CompositePacket}s of growing size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"test", "composite-8", "composite-64"})
+    public String packet;
+
+    private final PacketProtocol protocol = new BenchmarkProtocol();
+    private Packet instance;
+    private int packetId;
+    private PacketBuffer out;
+    private PacketBuffer in;
+
+    @Setup
+    public void setup() throws IOException {
+        protocol.freeze();
+        if (packet.equals("test")) {
+            instance = new TestPacket(System.nanoTime());
+        } else {
+            int entities = Integer.parseInt(packet.substring(packet.indexOf('-') + 1));
+            instance = new CompositePacket(entities, entities * 4);
+        }
+        packetId = protocol.getClientboundId(instance);
+
+        out = PacketBuffer.allocate(64 * 1024);
+        instance.write(out);
+        byte[] encoded = new byte[out.position()];
+        out.flip().getBuffer().get(encoded);
+        in = PacketBuffer.wrap(encoded);
+    }
+
+    @Benchmark
+    public PacketBuffer encode() throws IOException {
+        PacketBuffer out = this.out.clear();
+        instance.write(out);
+        return out;
+    }
+
+    @Benchmark
+    public Packet decode() throws IOException {
+        return protocol.createClientboundPacket(packetId, in.clear());
+    }
+}
@@ -0,0 +1,77 @@
+package xyz.synse.udppacketer.benchmarks;
+
+import xyz.synse.udppacketer.common.packets.BufferPacket;
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+
+import java.io.IOException;
+
+/**
+ * A larger packet than {@link example.TestPacket}, shaped like a world update: a header,
+ * a string, a list of entities with positions and a raw payload.
+ */
+public class CompositePacket extends BufferPacket {
+    private int tick;
+    private String world;
+    private int[] ids;
+    private float[] positions;
+    private byte[] payload;
+
+    public CompositePacket() {
+    }
+
+    /**
+     * @param entities    the amount of entities
+     * @param payloadSize the size of the raw payload
+     */
+    public CompositePacket(int entities, int payloadSize) {
+        this.tick = 123456;
+        this.world = "overworld";
+        this.ids = new int[entities];
+        this.positions = new float[entities * 3];
+        for (int i = 0; i < entities; i++) {
+            ids[i] = i * 31 + 7;
+            positions[i * 3] = i * 1.5f;
+            positions[i * 3 + 1] = 64;
+            positions[i * 3 + 2] = -i * 0.25f;
+        }
+        this.payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++)
+            payload[i] = (byte) i;
+    }
+
+    @Override
+    public void write(PacketBuffer out) throws IOException {
+        out.writeVarInt(tick);
+        out.writeString(world);
+        out.writeVarInt(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            out.writeVarInt(ids[i]);
+            out.writeFloat(positions[i * 3]);
+            out.writeFloat(positions[i * 3 + 1]);
+            out.writeFloat(positions[i * 3 + 2]);
+        }
+        out.writeVarInt(payload.length);
+        out.writeBytes(payload);
+    }
+
+    @Override
+    public void read(PacketBuffer in) throws IOException {
+        tick = in.readVarInt();
+        world = in.readString();
+        int entities = in.readVarInt();
+        ids = new int[entities];
+        positions = new float[entities * 3];
+        for (int i = 0; i < entities; i++) {
+            ids[i] = in.readVarInt();
+            positions[i * 3] = in.readFloat();
+            positions[i * 3 + 1] = in.readFloat();
+            positions[i * 3 + 2] = in.readFloat();
+        }
+        payload = new byte[in.readVarInt()];
+        in.readBytes(payload);
+    }
+
+    public int getTick() {
+        return tick;
+    }
+}
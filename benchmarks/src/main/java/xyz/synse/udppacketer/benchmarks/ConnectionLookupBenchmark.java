@@ -0,0 +1,82 @@
+package xyz.synse.udppacketer.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.synse.udppacketer.common.Connection;
+import xyz.synse.udppacketer.server.Server;
+import xyz.synse.udppacketer.server.ServerFixtures;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link Server#getConnection(InetAddress, int)}, done for every received datagram,
+ * with a growing amount of connections. Clients are looked up in a shuffled order so the
+ * table is not read sequentially.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionLookupBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int connections;
+
+    private Server server;
+    private InetSocketAddress[] clients;
+    private InetSocketAddress unknown;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = 0;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws UnknownHostException {
+        server = ServerFixtures.start(new BenchmarkProtocol());
+        clients = ServerFixtures.connect(server, connections);
+        unknown = new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 1, 2, 3}), 9);
+
+        // Fixed seed shuffle, the same order on every run
+        long seed = 42;
+        for (int i = clients.length - 1; i > 0; i--) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            int j = (int) ((seed >>> 33) % (i + 1));
+            InetSocketAddress swap = clients[i];
+            clients[i] = clients[j];
+            clients[j] = swap;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public Connection hit(Cursor cursor) {
+        InetSocketAddress client = clients[cursor.next];
+        cursor.next = cursor.next + 1 == clients.length ? 0 : cursor.next + 1;
+        return server.getConnection(client.getAddress(), client.getPort());
+    }
+
+    @Benchmark
+    public Connection miss() {
+        return server.getConnection(unknown.getAddress(), unknown.getPort());
+    }
+}
@@ -0,0 +1,103 @@
+package xyz.synse.udppacketer.benchmarks;
+
+import example.TestPacket;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.synse.udppacketer.client.Client;
+import xyz.synse.udppacketer.common.transport.InMemoryNetwork;
+import xyz.synse.udppacketer.server.Server;
+import xyz.synse.udppacketer.server.ServerEngine;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End to end throughput of a {@link Client} sending to a {@link Server} over loopback.
+ * <p>
+ * Every invocation sends a burst and waits until the server received it, so the score is
+ * packets per second actually handled rather than how fast the socket buffer fills up. The
+ * {@code delivered} counter shows how many arrived, lost ones only cost the wait. Run with
+ * {@code -prof gc}, the default of the jmh task, for the allocations per packet of both sides.
+ * The {@code MEMORY} engine runs both over an {@link InMemoryNetwork}, measuring the protocol
+ * stack without the system calls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    private static final int BURST = 64;
+    private static final long MAX_WAIT = TimeUnit.MILLISECONDS.toNanos(50);
+
+    @Param({"SOCKET", "NIO", "MEMORY"})
+    public String engine;
+
+    private Server server;
+    private Client client;
+    private final AtomicLong received = new AtomicLong();
+    private final TestPacket packet = new TestPacket(42);
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Delivery {
+        public long delivered;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            delivered = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        InMemoryNetwork network = engine.equals("MEMORY") ? new InMemoryNetwork() : null;
+        server = new Server(new int[]{0}, new BenchmarkProtocol(), network != null ? ServerEngine.SOCKET : ServerEngine.valueOf(engine), 1);
+        if (network != null)
+            server.setTransportFactory(network);
+        server.enableFrozenProtocol();
+        server.onPacket(TestPacket.class, (packet, connection) -> received.incrementAndGet());
+        server.start();
+
+        int port = server.getTransports().get(0).getLocalPort();
+        client = new Client(InetAddress.getLoopbackAddress(), port, new BenchmarkProtocol());
+        if (network != null)
+            client.setTransportFactory(network);
+        client.enableFrozenProtocol();
+        client.connect();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void send(Delivery delivery) {
+        long start = received.get();
+        for (int i = 0; i < BURST; i++)
+            client.send(packet);
+
+        long deadline = System.nanoTime() + MAX_WAIT;
+        while (received.get() - start < BURST && System.nanoTime() < deadline)
+            Thread.onSpinWait();
+        delivery.delivered += received.get() - start;
+    }
+}
@@ -0,0 +1,188 @@
+package xyz.synse.udppacketer.loadgen;
+
+import xyz.synse.udppacketer.common.metrics.LatencyHistogram;
+import xyz.synse.udppacketer.server.Server;
+import xyz.synse.udppacketer.server.ServerEngine;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of a {@link Server} by many virtual clients from one process.
+ * <p>
+ * The clients are split over a few {@link VirtualClientGroup} threads and send {@link LoadPacket}s
+ * of the configured {@link PacketMix} at a fixed total rate. The server echoes every packet, the
+ * report shows the throughput and the send to echo latency percentiles once per interval and for
+ * the whole run. Without {@code --target} an echo server is started in the same process, with
+ * {@code --serve} this process is only the echo server for generators on other machines.
+ * <pre>
+ * LoadGenerator --clients 1000 --rate 50000 --mix 32:70,256:25,1100:5 --duration 30
+ * LoadGenerator --serve 22566 --engine NIO --shards 4
+ * LoadGenerator --target 10.0.0.5:22566 --clients 5000 --rate 100000
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    private static final long DRAIN_TIME = TimeUnit.SECONDS.toMillis(1);
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: LoadGenerator [options]",
+            "  --clients <n>        virtual clients (default 100)",
+            "  --rate <n>           packets per second of all clients together (default 10000)",
+            "  --mix <size:weight>  payload sizes, e.g. 32:70,256:25,1100:5 (default 64)",
+            "  --duration <s>       measured seconds (default 10)",
+            "  --warmup <s>         seconds of load before measuring (default 2)",
+            "  --interval <s>       seconds between reports (default 1)",
+            "  --threads <n>        threads driving the clients (default up to 4)",
+            "  --target <host:port> server to test, echoing LoadPackets (default an in-process server)",
+            "  --serve <port>       only run the echo server",
+            "  --engine <engine>    engine of the echo server, SOCKET or NIO (default NIO)",
+            "  --shards <n>         shards of the echo server (default 1)");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options;
+        PacketMix mix;
+        try {
+            options = parseOptions(args);
+            mix = PacketMix.parse(options.getOrDefault("mix", "64"));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        ServerEngine engine = ServerEngine.valueOf(options.getOrDefault("engine", "NIO").toUpperCase(Locale.ROOT));
+        int shards = intOption(options, "shards", 1);
+
+        if (options.containsKey("serve")) {
+            Server server = startEchoServer(intOption(options, "serve", 0), engine, shards);
+            System.out.println("Echo server listening on port " + server.getTransports().get(0).getLocalPort());
+            Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+            Thread.currentThread().join();
+            return;
+        }
+
+        Server local = null;
+        InetSocketAddress target;
+        if (options.containsKey("target")) {
+            String value = options.get("target");
+            int colon = value.lastIndexOf(':');
+            target = new InetSocketAddress(InetAddress.getByName(value.substring(0, colon)), Integer.parseInt(value.substring(colon + 1)));
+        } else {
+            local = startEchoServer(0, engine, shards);
+            target = new InetSocketAddress(InetAddress.getLoopbackAddress(), local.getTransports().get(0).getLocalPort());
+        }
+
+        int clients = intOption(options, "clients", 100);
+        double rate = Double.parseDouble(options.getOrDefault("rate", "10000"));
+        int threads = Math.min(clients, intOption(options, "threads", Math.min(4, Runtime.getRuntime().availableProcessors())));
+        LoadStats stats = new LoadStats();
+
+        List<VirtualClientGroup> groups = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int groupClients = clients / threads + (i < clients % threads ? 1 : 0);
+            groups.add(new VirtualClientGroup(target, groupClients, rate * groupClients / clients, mix, stats));
+        }
+
+        System.out.printf("Connecting %d virtual clients to %s on %d threads%n", clients, target, threads);
+        groups.forEach(VirtualClientGroup::start);
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (stats.getConnected() < clients && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        System.out.printf("%d of %d clients connected, sending %.0f packets/s with payload mix %s%n",
+                stats.getConnected(), clients, rate, mix);
+
+        groups.forEach(group -> group.setSending(true));
+        Thread.sleep(TimeUnit.SECONDS.toMillis(intOption(options, "warmup", 2)));
+        stats.reset();
+
+        long start = System.nanoTime();
+        long duration = TimeUnit.SECONDS.toNanos(intOption(options, "duration", 10));
+        long interval = TimeUnit.SECONDS.toNanos(intOption(options, "interval", 1));
+        long lastSent = 0, lastEchoed = 0, lastBytes = 0;
+        for (long next = start + interval; next - start <= duration; next += interval) {
+            TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+
+            long sent = stats.getSent(), echoed = stats.getEchoed(), bytes = stats.getSentBytes();
+            double seconds = interval / 1e9;
+            LatencyHistogram latency = stats.getIntervalLatency();
+            System.out.printf("%5ds  sent %9.0f/s  echoed %9.0f/s  out %7.2f MB/s  p50 %7d us  p99 %7d us  p99.9 %7d us  max %7d us%n",
+                    TimeUnit.NANOSECONDS.toSeconds(next - start),
+                    (sent - lastSent) / seconds, (echoed - lastEchoed) / seconds, (bytes - lastBytes) / seconds / 1e6,
+                    latency.getValueAtPercentile(50), latency.getValueAtPercentile(99),
+                    latency.getValueAtPercentile(99.9), latency.getMax());
+            latency.reset();
+            lastSent = sent;
+            lastEchoed = echoed;
+            lastBytes = bytes;
+        }
+
+        // Give the packets of the last moment the time to come back before counting them as lost
+        groups.forEach(group -> group.setSending(false));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(DRAIN_TIME);
+        report(stats, seconds);
+
+        for (VirtualClientGroup group : groups)
+            group.stop();
+        if (local != null) {
+            System.out.println("Server: " + local.getMetricsSnapshot());
+            local.close();
+        }
+    }
+
+    /**
+     * Starts a server sending every {@link LoadPacket} back to where it came from.
+     *
+     * @param port   the port, 0 for an ephemeral one
+     * @param engine the engine
+     * @param shards the amount of shards
+     * @return the started server
+     */
+    public static Server startEchoServer(int port, ServerEngine engine, int shards) {
+        Server server = new Server(new int[]{port}, new LoadProtocol(), engine, shards);
+        server.enableFrozenProtocol();
+        server.onPacket(LoadPacket.class, server::send);
+        server.start();
+        return server;
+    }
+
+    private static void report(LoadStats stats, double seconds) {
+        long sent = stats.getSent();
+        long echoed = stats.getEchoed();
+        long lost = Math.max(0, sent - echoed);
+        LatencyHistogram latency = stats.getLatency();
+
+        System.out.println();
+        System.out.printf("Duration       %.1f s, %d clients connected%n", seconds, stats.getConnected());
+        System.out.printf("Sent           %d packets, %.0f/s, %.2f MB/s%n", sent, sent / seconds, stats.getSentBytes() / seconds / 1e6);
+        System.out.printf("Echoed         %d packets, %.0f/s, %.2f MB/s%n", echoed, echoed / seconds, stats.getEchoedBytes() / seconds / 1e6);
+        System.out.printf("Lost           %d (%.3f%%), %d send failures, %d sends skipped behind rate%n",
+                lost, sent == 0 ? 0 : 100.0 * lost / sent, stats.getSendFailures(), stats.getSkippedSends());
+        System.out.printf("Latency (us)   p50 %d, p90 %d, p99 %d, p99.9 %d, max %d, mean %.1f%n",
+                latency.getValueAtPercentile(50), latency.getValueAtPercentile(90), latency.getValueAtPercentile(99),
+                latency.getValueAtPercentile(99.9), latency.getMax(), latency.getMean());
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length)
+                throw new IllegalArgumentException("Invalid argument " + args[i]);
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
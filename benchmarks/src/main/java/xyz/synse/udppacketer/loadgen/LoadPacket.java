@@ -0,0 +1,54 @@
+package xyz.synse.udppacketer.loadgen;
+
+import xyz.synse.udppacketer.common.packets.BufferPacket;
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+
+import java.io.IOException;
+
+/**
+ * Packet sent by the virtual clients and echoed back by the server: the {@link System#nanoTime()}
+ * of the sender followed by a payload of the size picked from the {@link PacketMix}. The timestamp
+ * comes first so the echo can be timed without decoding the payload.
+ */
+public class LoadPacket extends BufferPacket {
+    private long sentAt;
+    private byte[] payload;
+
+    public LoadPacket() {
+    }
+
+    /**
+     * @param payloadSize the size of the payload
+     */
+    public LoadPacket(int payloadSize) {
+        this.payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++)
+            payload[i] = (byte) i;
+    }
+
+    @Override
+    public void write(PacketBuffer out) {
+        out.writeLong(sentAt);
+        out.writeVarInt(payload.length);
+        out.writeBytes(payload);
+    }
+
+    @Override
+    public void read(PacketBuffer in) throws IOException {
+        sentAt = in.readLong();
+        payload = new byte[in.readVarInt()];
+        in.readBytes(payload);
+    }
+
+    public long getSentAt() {
+        return sentAt;
+    }
+
+    public void setSentAt(long sentAt) {
+        this.sentAt = sentAt;
+    }
+
+    public int getPayloadSize() {
+        return payload.length;
+    }
+}
@@ -0,0 +1,11 @@
+package xyz.synse.udppacketer.loadgen;
+
+import xyz.synse.udppacketer.common.packets.PacketProtocol;
+
+public class LoadProtocol extends PacketProtocol {
+    public static final int LOAD_PACKET = 1;
+
+    public LoadProtocol() {
+        register(LOAD_PACKET, LoadPacket.class);
+    }
+}
@@ -0,0 +1,118 @@
+package xyz.synse.udppacketer.loadgen;
+
+import xyz.synse.udppacketer.common.metrics.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and send to echo latencies shared by all {@link VirtualClientGroup}s. Latencies are
+ * recorded in microseconds twice, into the histogram of the whole run and into the one of the
+ * current report interval.
+ */
+public class LoadStats {
+    private static final long HIGHEST_LATENCY = TimeUnit.SECONDS.toMicros(60);
+
+    private final LongAdder connected = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder echoed = new LongAdder();
+    private final LongAdder echoedBytes = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder skippedSends = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram(HIGHEST_LATENCY);
+    private final LatencyHistogram intervalLatency = new LatencyHistogram(HIGHEST_LATENCY);
+
+    void onConnected() {
+        connected.increment();
+    }
+
+    void onDisconnected() {
+        connected.decrement();
+    }
+
+    void onSent(int bytes) {
+        sent.increment();
+        sentBytes.add(bytes);
+    }
+
+    void onSendFailure() {
+        sendFailures.increment();
+    }
+
+    void onSkippedSends(long amount) {
+        skippedSends.add(amount);
+    }
+
+    void onEcho(int bytes, long nanos) {
+        echoed.increment();
+        echoedBytes.add(bytes);
+
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        latency.record(micros);
+        intervalLatency.record(micros);
+    }
+
+    /**
+     * Clears everything but the connected clients, called when the warm up ends. Echoes of
+     * packets sent during the warm up may still be counted.
+     */
+    public void reset() {
+        sent.reset();
+        sentBytes.reset();
+        echoed.reset();
+        echoedBytes.reset();
+        sendFailures.reset();
+        skippedSends.reset();
+        latency.reset();
+        intervalLatency.reset();
+    }
+
+    /**
+     * @return the amount of virtual clients the server accepted
+     */
+    public long getConnected() {
+        return connected.sum();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
+
+    public long getEchoed() {
+        return echoed.sum();
+    }
+
+    public long getEchoedBytes() {
+        return echoedBytes.sum();
+    }
+
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    /**
+     * @return the amount of sends the groups dropped because they fell behind the rate
+     */
+    public long getSkippedSends() {
+        return skippedSends.sum();
+    }
+
+    /**
+     * @return the send to echo latencies in microseconds since the last reset
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the send to echo latencies in microseconds of the current report interval
+     */
+    public LatencyHistogram getIntervalLatency() {
+        return intervalLatency;
+    }
+}
@@ -0,0 +1,99 @@
+package xyz.synse.udppacketer.loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+/**
+ * Weighted choice of payload sizes, written as {@code size:weight} pairs separated by commas.
+ * {@code 32:70,256:25,1100:5} sends 70% packets with 32 payload bytes, 25% with 256 and 5% with 1100.
+ * A size without a weight counts once.
+ */
+public final class PacketMix {
+    private final int[] sizes;
+    private final int[] cumulativeWeights;
+
+    private PacketMix(int[] sizes, int[] cumulativeWeights) {
+        this.sizes = sizes;
+        this.cumulativeWeights = cumulativeWeights;
+    }
+
+    /**
+     * @param spec the mix, for example {@code 32:70,256:25,1100:5}
+     * @return the parsed mix
+     * @throws IllegalArgumentException if the mix is empty or a size or weight is invalid
+     */
+    public static PacketMix parse(String spec) {
+        List<int[]> entries = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty())
+                continue;
+
+            int colon = part.indexOf(':');
+            try {
+                int size = Integer.parseInt(colon < 0 ? part : part.substring(0, colon));
+                int weight = colon < 0 ? 1 : Integer.parseInt(part.substring(colon + 1));
+                if (size < 0 || weight <= 0)
+                    throw new IllegalArgumentException("Invalid packet mix entry " + part);
+                entries.add(new int[]{size, weight});
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid packet mix entry " + part);
+            }
+        }
+        if (entries.isEmpty())
+            throw new IllegalArgumentException("Empty packet mix");
+
+        int[] sizes = new int[entries.size()];
+        int[] cumulativeWeights = new int[entries.size()];
+        int total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = entries.get(i)[0];
+            cumulativeWeights[i] = total = Math.addExact(total, entries.get(i)[1]);
+        }
+        return new PacketMix(sizes, cumulativeWeights);
+    }
+
+    /**
+     * @return the amount of sizes in the mix
+     */
+    public int size() {
+        return sizes.length;
+    }
+
+    /**
+     * @param index the index of the entry
+     * @return the payload size of the entry
+     */
+    public int getPayloadSize(int index) {
+        return sizes[index];
+    }
+
+    /**
+     * Picks an entry with the probability of its weight.
+     *
+     * @param random the source of randomness
+     * @return the index of the entry
+     */
+    public int pick(RandomGenerator random) {
+        if (sizes.length == 1)
+            return 0;
+
+        int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        int index = 0;
+        while (cumulativeWeights[index] <= value)
+            index++;
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < sizes.length; i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append(sizes[i]).append(':').append(cumulativeWeights[i] - (i == 0 ? 0 : cumulativeWeights[i - 1]));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,322 @@
+package xyz.synse.udppacketer.loadgen;
+
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+import xyz.synse.udppacketer.common.packets.PacketProtocol;
+import xyz.synse.udppacketer.common.utils.Compression;
+import xyz.synse.udppacketer.common.utils.Framework;
+import xyz.synse.udppacketer.common.utils.WireFormat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many virtual clients driven by one thread.
+ * <p>
+ * A {@link xyz.synse.udppacketer.client.Client} costs a socket and three threads, two of them
+ * spinning, which limits a load test to a few dozen per machine. A virtual client is only a
+ * non-blocking socket registered with the selector of its group and speaks just enough of the
+ * protocol to be a real connection to the server: it connects, answers RTT requests so it does
+ * not time out, sends {@link LoadPacket}s and times their echoes. Sends are spread round robin
+ * over the clients at the rate of the group. A group that falls behind by more than
+ * {@link #MAX_LAG} skips the missed sends instead of bursting them out.
+ */
+public class VirtualClientGroup implements Runnable {
+    private static final long CONNECT_RETRY = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_LAG = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MAX_DATAGRAM = 65_535;
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private final InetSocketAddress target;
+    private final PacketProtocol protocol;
+    private final PacketMix mix;
+    private final LoadStats stats;
+    private final long sendInterval;
+    private final Selector selector;
+    private final VirtualClient[] clients;
+    private final LoadPacket[] packets;
+    private final SplittableRandom random = new SplittableRandom(42);
+    private final PacketBuffer out = PacketBuffer.allocateDirect(MAX_DATAGRAM);
+    private final PacketBuffer in = PacketBuffer.allocateDirect(MAX_DATAGRAM);
+
+    private volatile boolean running = true;
+    private volatile boolean sending = false;
+    private Thread thread;
+
+    /**
+     * Opens the sockets of the clients, nothing is sent before {@link #start()}.
+     *
+     * @param target  the address of the server
+     * @param clients the amount of virtual clients
+     * @param rate    the packets per second sent by the whole group
+     * @param mix     the payload sizes to send
+     * @param stats   the stats to update
+     * @throws IOException if a socket could not be opened
+     */
+    public VirtualClientGroup(InetSocketAddress target, int clients, double rate, PacketMix mix, LoadStats stats) throws IOException {
+        this.target = target;
+        this.protocol = new LoadProtocol();
+        this.mix = mix;
+        this.stats = stats;
+        this.sendInterval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        this.selector = Selector.open();
+        this.clients = new VirtualClient[clients];
+        this.packets = new LoadPacket[mix.size()];
+
+        protocol.freeze();
+        for (int i = 0; i < packets.length; i++)
+            packets[i] = new LoadPacket(mix.getPayloadSize(i));
+
+        try {
+            for (int i = 0; i < clients; i++) {
+                DatagramChannel channel = DatagramChannel.open(target.getAddress() instanceof Inet6Address
+                        ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+                channel.configureBlocking(false);
+                channel.connect(target);
+                this.clients[i] = new VirtualClient(channel);
+                channel.register(selector, SelectionKey.OP_READ, this.clients[i]);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts the thread of the group, which connects the clients.
+     */
+    public void start() {
+        thread = new Thread(this, "UDPPacketer virtual clients #" + THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts or pauses sending packets, connected clients keep answering the server either way.
+     *
+     * @param sending whether to send
+     */
+    public void setSending(boolean sending) {
+        this.sending = sending;
+    }
+
+    /**
+     * Disconnects the clients and stops the thread.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            selector.wakeup();
+            thread.join();
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextConnect = System.nanoTime();
+        long nextSend = System.nanoTime();
+        int cursor = 0;
+
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                if (now - nextConnect >= 0) {
+                    for (VirtualClient client : clients) {
+                        if (!client.connected)
+                            sendConnect(client);
+                    }
+                    nextConnect = now + CONNECT_RETRY;
+                }
+
+                if (!sending) {
+                    nextSend = now;
+                } else {
+                    if (now - nextSend > MAX_LAG) {
+                        stats.onSkippedSends((now - nextSend) / sendInterval);
+                        nextSend = now;
+                    }
+                    while (nextSend - now <= 0) {
+                        VirtualClient client = clients[cursor];
+                        cursor = cursor + 1 == clients.length ? 0 : cursor + 1;
+                        if (client.connected)
+                            sendLoad(client);
+                        nextSend += sendInterval;
+                    }
+                }
+
+                long wait = Math.min(sending ? nextSend - System.nanoTime() : Long.MAX_VALUE, nextConnect - System.nanoTime());
+                // Below a millisecond a blocking select would oversleep the next send
+                if (wait >= TimeUnit.MILLISECONDS.toNanos(1))
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(wait));
+                else
+                    selector.selectNow();
+
+                for (SelectionKey key : selector.selectedKeys())
+                    receive((VirtualClient) key.attachment());
+                selector.selectedKeys().clear();
+            }
+
+            for (VirtualClient client : clients) {
+                if (client.connected)
+                    sendDisconnect(client);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close();
+        }
+    }
+
+    private void receive(VirtualClient client) {
+        while (true) {
+            in.clear();
+            int read;
+            try {
+                read = client.channel.read(in.getBuffer());
+            } catch (IOException e) {
+                // An ICMP port unreachable surfaces here when nobody listens on the target
+                return;
+            }
+            if (read <= 0)
+                return;
+
+            in.flip();
+            try {
+                handleDatagram(client, in);
+            } catch (IOException e) {
+                // Not a frame of this protocol, nothing to time
+            }
+        }
+    }
+
+    private void handleDatagram(VirtualClient client, PacketBuffer in) throws IOException {
+        int size = in.remaining();
+        int header = WireFormat.readHeader(in);
+        if (WireFormat.type(header) != Framework.BATCH) {
+            handleFrame(client, header, in, size);
+            return;
+        }
+
+        int end = in.limit();
+        while (in.position() < end) {
+            int length = in.readVarInt();
+            int frameEnd = in.position() + length;
+            if (length < 1 || frameEnd > end)
+                throw new EOFException("Truncated batch");
+
+            in.limit(frameEnd);
+            try {
+                handleFrame(client, WireFormat.readHeader(in), in, length);
+            } finally {
+                in.limit(end);
+                in.position(frameEnd);
+            }
+        }
+    }
+
+    private void handleFrame(VirtualClient client, int header, PacketBuffer in, int size) throws IOException {
+        int type = WireFormat.type(header);
+
+        if (type == Framework.PACKET) {
+            if ((WireFormat.flags(header) & Framework.FLAG_COMPRESSED) != 0)
+                in = Compression.decompress(in, protocol.getCompressionDictionary());
+            if (WireFormat.of(header).readPacketId(in) == LoadProtocol.LOAD_PACKET)
+                stats.onEcho(size, System.nanoTime() - in.readLong());
+            return;
+        }
+
+        if (type == Framework.RTT_REQUEST) {
+            long time = in.readLong();
+            out.clear();
+            client.format.writeHeader(out, Framework.RTT_ANSWER, 0);
+            out.writeLong(time);
+            write(client, out);
+            return;
+        }
+
+        if (type == Framework.CONNECTED) {
+            if (client.connected)
+                return;
+            client.format = in.hasRemaining() && in.readUnsignedByte() == WireFormat.COMPACT.ordinal()
+                    ? WireFormat.COMPACT : WireFormat.LEGACY;
+            client.connected = true;
+            stats.onConnected();
+            return;
+        }
+
+        if (type == Framework.DISCONNECTED && client.connected) {
+            // Kicked or timed out, the next connect round brings it back
+            client.connected = false;
+            stats.onDisconnected();
+        }
+    }
+
+    private void sendLoad(VirtualClient client) throws IOException {
+        LoadPacket packet = packets[mix.pick(random)];
+        out.clear();
+        client.format.writeHeader(out, Framework.PACKET, 0);
+        client.format.writePacketId(out, LoadProtocol.LOAD_PACKET);
+        packet.setSentAt(System.nanoTime());
+        packet.write(out);
+
+        int bytes = out.position();
+        if (write(client, out))
+            stats.onSent(bytes);
+        else
+            stats.onSendFailure();
+    }
+
+    private void sendConnect(VirtualClient client) {
+        out.clear();
+        WireFormat.LEGACY.writeHeader(out, Framework.CONNECT, 0);
+        out.writeByte(WireFormat.COMPACT.ordinal());
+        write(client, out);
+    }
+
+    private void sendDisconnect(VirtualClient client) {
+        out.clear();
+        client.format.writeHeader(out, Framework.DISCONNECT, 0);
+        write(client, out);
+    }
+
+    private boolean write(VirtualClient client, PacketBuffer buffer) {
+        try {
+            return client.channel.write(buffer.flip().getBuffer()) > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void close() {
+        for (VirtualClient client : clients) {
+            if (client == null)
+                continue;
+            try {
+                client.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class VirtualClient {
+        private final DatagramChannel channel;
+        private WireFormat format = WireFormat.LEGACY;
+        private boolean connected;
+
+        private VirtualClient(DatagramChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package xyz.synse.udppacketer.server;
+
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+import xyz.synse.udppacketer.common.packets.PacketProtocol;
+import xyz.synse.udppacketer.common.transport.Transport;
+import xyz.synse.udppacketer.common.utils.Constants;
+import xyz.synse.udppacketer.common.utils.Framework;
+import xyz.synse.udppacketer.common.utils.WireFormat;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Servers filled with simulated clients for the benchmarks. Lives in the server package to
+ * feed connect datagrams straight into {@link Server#handleDatagram}, which is the only way to
+ * get many thousands of connections without as many sockets.
+ */
+public final class ServerFixtures {
+    private static final int PORTS_PER_ADDRESS = 50_000;
+
+    private ServerFixtures() {
+    }
+
+    /**
+     * Starts a single shard NIO server on an ephemeral port. Simulated clients never answer,
+     * so time outs and RTT requests are pushed out of the way of the measurements.
+     *
+     * @param protocol the protocol
+     * @return the started server
+     */
+    public static Server start(PacketProtocol protocol) {
+        Constants.TIMEOUT = 86_400_000L;
+        Constants.RTT_TIMER = 86_400_000L;
+
+        Server server = new Server(new int[]{0}, protocol, ServerEngine.NIO, 1);
+        server.enableFrozenProtocol();
+        server.start();
+        return server;
+    }
+
+    /**
+     * Connects simulated clients on loopback addresses, the connected answers go to ports nobody listens on.
+     *
+     * @param server the server
+     * @param count  the amount of clients
+     * @return the addresses of the clients
+     */
+    public static InetSocketAddress[] connect(Server server, int count) throws UnknownHostException {
+        Shard shard = server.getShard(0);
+        Transport transport = shard.getTransports().get(0);
+        PacketBuffer connect = PacketBuffer.allocate(16);
+
+        InetSocketAddress[] clients = new InetSocketAddress[count];
+        for (int i = 0; i < count; i++) {
+            int host = 1 + i / PORTS_PER_ADDRESS;
+            InetAddress address = InetAddress.getByAddress(new byte[]{127, 0, (byte) (host >> 8), (byte) host});
+            clients[i] = new InetSocketAddress(address, 1024 + i % PORTS_PER_ADDRESS);
+
+            connect.clear();
+            WireFormat.LEGACY.writeHeader(connect, Framework.CONNECT, 0);
+            connect.writeByte(WireFormat.COMPACT.ordinal());
+            server.handleDatagram(connect.flip(), clients[i], transport, shard);
+        }
+        return clients;
+    }
+}
@@ -3,50 +3,234 @@ package xyz.synse.udppacketer.client;
 import xyz.synse.udppacketer.PacketerException;
 import xyz.synse.udppacketer.common.Connection;
 import xyz.synse.udppacketer.common.IListener;
+import xyz.synse.udppacketer.common.ListenerDispatcher;
+import xyz.synse.udppacketer.common.PacketHandlers;
+import xyz.synse.udppacketer.common.ReliableChannel;
+import xyz.synse.udppacketer.common.CongestionControl;
+import xyz.synse.udppacketer.common.SendBatch;
+import xyz.synse.udppacketer.common.SnapshotChannel;
+import xyz.synse.udppacketer.common.TimestampEcho;
+import xyz.synse.udppacketer.common.metrics.MetricsMBeans;
+import xyz.synse.udppacketer.common.metrics.MetricsSnapshot;
+import xyz.synse.udppacketer.common.metrics.NetworkMetrics;
 import xyz.synse.udppacketer.common.packets.Packet;
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
 import xyz.synse.udppacketer.common.packets.PacketProtocol;
+import xyz.synse.udppacketer.common.packets.SnapshotPacket;
+import xyz.synse.udppacketer.common.transport.Transport;
+import xyz.synse.udppacketer.common.transport.TransportFactory;
+import xyz.synse.udppacketer.common.utils.BufferPool;
+import xyz.synse.udppacketer.common.utils.Compression;
 import xyz.synse.udppacketer.common.utils.Constants;
 import xyz.synse.udppacketer.common.utils.Framework;
-import xyz.synse.udppacketer.common.utils.Timer;
+import xyz.synse.udppacketer.common.utils.TimingWheel;
+import xyz.synse.udppacketer.common.utils.WireFormat;
 
-import java.io.*;
-import java.lang.reflect.InvocationTargetException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.EOFException;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import javax.management.ObjectName;
 
 public class Client {
-    private DatagramSocket datagramSocket;
-    private final Connection connection;
-    private final ArrayList<IListener> listeners = new ArrayList<>();
+    private static final ThreadLocal<PacketBuffer> SEND_BUFFER = ThreadLocal.withInitial(() -> PacketBuffer.allocate(Constants.RECEIVE_BUFFER_SIZE));
+
+    private final InetAddress address;
+    private final int port;
+    private volatile Transport transport;
+    private volatile Connection connection;
+    private final List<IListener> listeners = new CopyOnWriteArrayList<>();
+    private final PacketHandlers handlers;
     private final PacketProtocol packetProtocol;
-    private boolean connected = false;
+    private final BufferPool receivePool = new BufferPool(Constants.RECEIVE_BUFFER_SIZE, Constants.BUFFER_POOL_SIZE, false);
+    private volatile boolean connected = false;
     private final Object syncObject = new Object();
+    private int batchMtu = 0;
+    private long batchFlushInterval = 0;
+    private long maxBandwidth = 0;
+    private int compressionThreshold = 0;
+    private Supplier<ListenerDispatcher> dispatcherFactory;
+    private volatile ListenerDispatcher dispatcher;
+    private final NetworkMetrics metrics = new NetworkMetrics();
+    private String mbeanName;
+    private ObjectName mbean;
+    private TransportFactory transportFactory = TransportFactory.udp();
+    private boolean timestamps = false;
+    private boolean frozenProtocol = false;
 
     public Client(InetAddress address, int port, PacketProtocol packetProtocol) {
+        this.address = address;
+        this.port = port;
         this.connection = new Connection(address, port);
         this.packetProtocol = packetProtocol;
+        this.handlers = new PacketHandlers(packetProtocol, packetProtocol::getServerboundId);
+    }
+
+    /**
+     * Enables send batching, see {@link Connection#enableBatching(int)}. The server must
+     * understand {@link Framework#BATCH} datagrams. Applies from the next {@link #connect()}.
+     *
+     * @param mtu           maximum size of a batched datagram, at most {@link Constants#RECEIVE_BUFFER_SIZE}
+     * @param flushInterval milliseconds between automatic flushes, 0 to only flush on {@link #flush()}
+     */
+    public void enableBatching(int mtu, long flushInterval) {
+        if (mtu <= 0)
+            throw new PacketerException("Batch MTU must be positive");
+        if (mtu > Constants.RECEIVE_BUFFER_SIZE)
+            throw new PacketerException("Batch MTU must not exceed the receive buffer size");
+        if (flushInterval < 0)
+            throw new PacketerException("Flush interval must not be negative");
+
+        this.batchMtu = mtu;
+        this.batchFlushInterval = flushInterval;
+    }
+
+    /**
+     * Enables congestion control and pacing, see {@link Connection#enablePacing(long)}.
+     * Applies from the next {@link #connect()}.
+     *
+     * @param maxBandwidth the bandwidth ceiling in bytes per second
+     */
+    public void enableCongestionControl(long maxBandwidth) {
+        if (maxBandwidth <= 0)
+            throw new PacketerException("Bandwidth must be positive");
+
+        this.maxBandwidth = maxBandwidth;
+    }
+
+    /**
+     * Deflates packets at least the given size if they get smaller, see {@link Compression}.
+     * The server must support compact headers.
+     *
+     * @param threshold the minimum size of a packet in bytes to be compressed
+     */
+    public void enableCompression(int threshold) {
+        if (threshold <= 0)
+            throw new PacketerException("Compression threshold must be positive");
+
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * Calls the listeners on the threads of a dispatcher instead of the receiving thread,
+     * in order. Applies from the next {@link #connect()}.
+     *
+     * @param dispatcherFactory creates the dispatcher on every {@link #connect()}, for example
+     *                          {@link ListenerDispatcher#striped(int, int, xyz.synse.udppacketer.common.OverflowPolicy)}
+     */
+    public void enableAsyncDispatch(Supplier<ListenerDispatcher> dispatcherFactory) {
+        this.dispatcherFactory = dispatcherFactory;
+    }
+
+    /**
+     * Registers the metrics of the client as an MBean from the next {@link #connect()}
+     * until {@link #close()}, see {@link MetricsMBeans}.
+     *
+     * @param name the name of the MBean, unique among the clients of the JVM
+     */
+    public void enableMBeans(String name) {
+        if (name == null || name.isEmpty())
+            throw new PacketerException("MBean name must not be empty");
+
+        this.mbeanName = name;
+    }
+
+    /**
+     * Asks the server to carry send timestamps and their echoes in normal frames, see
+     * {@link TimestampEcho}. If it agrees, RTT probes are only sent when nothing was sent
+     * for {@link Constants#RTT_TIMER}, unless congestion control needs them.
+     * Applies from the next {@link #connect()}.
+     */
+    public void enableTimestamps() {
+        this.timestamps = true;
+    }
+
+    /**
+     * Freezes the protocol on {@link #connect()}, see {@link PacketProtocol#freeze()}. Packet ids
+     * and handlers are then looked up in flat arrays, but nothing can be registered anymore.
+     */
+    public void enableFrozenProtocol() {
+        this.frozenProtocol = true;
+    }
+
+    /**
+     * Binds the local port with the given factory instead of a {@link java.net.DatagramSocket},
+     * for example an {@link xyz.synse.udppacketer.common.transport.InMemoryNetwork}.
+     * Applies from the next {@link #connect()}.
+     *
+     * @param transportFactory the factory binding the transport
+     */
+    public void setTransportFactory(TransportFactory transportFactory) {
+        if (transportFactory == null)
+            throw new PacketerException("Transport factory must not be null");
+
+        this.transportFactory = transportFactory;
+    }
+
+    /**
+     * @return the traffic counters of every connection this client made
+     */
+    public NetworkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the counters of every connection and the queue depths of the current one
+     */
+    public MetricsSnapshot getMetricsSnapshot() {
+        return MetricsSnapshot.of(metrics, new Connection[]{connection}, dispatcher);
     }
 
     public void connect(){
-        if(this.datagramSocket == null || this.datagramSocket.isClosed() || !connected){
+        if(this.transport == null || this.transport.isClosed() || !connected){
+            if (frozenProtocol)
+                packetProtocol.freeze();
+
+            Transport transport;
             try {
-                this.datagramSocket = new DatagramSocket();
-            } catch (SocketException e) {
+                transport = transportFactory.bind(0, false);
+            } catch (IOException e) {
                 throw new PacketerException("Failed to initialize socket", e);
             }
 
-            startReceiveThread();
-            startTimeOutThread();
-            startConnectThread();
+            Connection connection = new Connection(address, port, transport, new NetworkMetrics(metrics));
+            if (batchMtu > 0)
+                connection.enableBatching(batchMtu);
+            if (maxBandwidth > 0)
+                connection.enablePacing(maxBandwidth);
+            this.connection = connection;
+            this.transport = transport;
+            if (dispatcherFactory != null && dispatcher == null)
+                dispatcher = dispatcherFactory.get();
+            if (mbeanName != null && mbean == null) {
+                mbean = MetricsMBeans.objectName("Client", mbeanName, null);
+                MetricsMBeans.register(mbean, this::getMetricsSnapshot);
+            }
+
+            startReceiveThread(transport);
+            // The time out shrinks once RTT samples come in, so the first check comes early
+            scheduleTimeOut(transport, Math.min(Constants.MIN_TIMEOUT, connection.getRtt().getTimeout()));
+            scheduleRTTRequest(transport);
+            if (batchMtu > 0 && batchFlushInterval > 0)
+                scheduleFlush(transport);
+            scheduleConnect(transport);
+            try {
+                sendConnect();
+            } catch (IOException e) {
+                throw new PacketerException("Failed to send packet", e);
+            }
 
             synchronized(syncObject) {
                 try {
-                    // Calling wait() will block this thread until another thread
-                    // calls notify() on the object.
-                    syncObject.wait();
+                    // Calling wait() will block this thread until the receive thread
+                    // or the time out calls notify() on the object.
+                    while (!connected && !transport.isClosed())
+                        syncObject.wait();
                 } catch (InterruptedException e) {
                     // Happens if someone interrupts your thread.
                 }
@@ -54,101 +238,289 @@ public class Client {
         }
     }
 
-    private void startReceiveThread() {
+    private void startReceiveThread(Transport transport) {
         new Thread(() -> {
-            while (!datagramSocket.isClosed()) {
+            while (!transport.isClosed()) {
+                BufferPool.PooledBuffer in = receivePool.acquire();
                 try {
-                    byte[] receiveBuf = new byte[Constants.RECEIVE_BUFFER_SIZE];
-                    DatagramPacket datagramPacket = new DatagramPacket(receiveBuf, receiveBuf.length, connection.getAddress(), connection.getPort());
-
-                    datagramSocket.receive(datagramPacket);
-
-                    DataInputStream inStream = new DataInputStream(new ByteArrayInputStream(datagramPacket.getData()));
-                    int packetType = inStream.readInt();
-
-                    // TODO: 18. 9. 2022
-                    if (packetType == Framework.CONNECTED) {
-                        connected = true;
-                        synchronized(syncObject) {
-                            syncObject.notify();
-                        }
-                        for (IListener listener : listeners)
-                            listener.connected(connection);
-                        continue;
+                    transport.receive(in.getBuffer());
+                    in.flip();
+
+                    Connection connection = this.connection;
+                    connection.getMetrics().onDatagramReceived(in.remaining());
+                    connection.getTimeOutTimer().reset();
+                    try {
+                        handleDatagram(in, transport);
+                    } catch (IOException e) {
+                        connection.getMetrics().onDecodeError(e);
                     }
+                } catch (IOException ignored){
 
-                    // TODO: 18. 9. 2022
-                    if (packetType == Framework.DISCONNECTED) {
-                        connected = false;
-                        for (IListener listener : listeners)
-                            listener.disconnected(connection, "Disconnected");
-                        datagramSocket.close();
-                        continue;
-                    }
+                } finally {
+                    in.release();
+                }
+            }
+        }).start();
+    }
 
-                    if (packetType == Framework.RTT_REQUEST) {
-                        if(!connected)
-                            continue;
-                        connection.getTimeOutTimer().reset();
-                        sendRTTAnswer(inStream.readLong());
-                        continue;
-                    }
+    private void handleDatagram(PacketBuffer in, Transport transport) throws IOException {
+        int header = WireFormat.readHeader(in);
+        if (WireFormat.type(header) != Framework.BATCH) {
+            handleFrame(header, in, transport);
+            return;
+        }
 
-                    if (packetType == Framework.RTT_ANSWER) {
-                        connection.getTimeOutTimer().reset();
-                        connection.setSmoothRTT(System.currentTimeMillis() - inStream.readLong());
-                        continue;
-                    }
+        int end = in.limit();
+        while (in.position() < end) {
+            int length = in.readVarInt();
+            int frameEnd = in.position() + length;
+            if (length < 1 || frameEnd > end)
+                throw new EOFException("Truncated batch");
 
-                    if (packetType == Framework.PACKET) {
-                        Packet packet = packetProtocol.createServerboundPacket(inStream.readInt(), inStream);
+            // A malformed frame is skipped, the length prefix tells where the next one starts
+            in.limit(frameEnd);
+            try {
+                int frameHeader = WireFormat.readHeader(in);
+                if (WireFormat.type(frameHeader) != Framework.BATCH)
+                    handleFrame(frameHeader, in, transport);
+            } catch (IOException e) {
+                connection.getMetrics().onDecodeError(e);
+            } finally {
+                in.limit(end);
+                in.position(frameEnd);
+            }
+        }
+    }
 
-                        for (IListener listener : listeners)
-                            listener.received(packet, connection);
-                        continue;
-                    }
-                } catch (InvocationTargetException | InstantiationException | IllegalAccessException |
-                         NoSuchMethodException e) {
-                    throw new PacketerException("Error while receiving data", e);
-                }
-                catch (IOException ignored){
+    private void handleFrame(int header, PacketBuffer in, Transport transport) throws IOException {
+        int packetType = WireFormat.type(header);
 
-                }
+        if ((WireFormat.flags(header) & Framework.FLAG_TIMESTAMP) != 0) {
+            TimestampEcho timestampEcho = connection.getTimestamps();
+            if (timestampEcho != null)
+                timestampEcho.read(in);
+            else
+                TimestampEcho.skip(in);
+        }
+
+        // TODO: 18. 9. 2022
+        if (packetType == Framework.CONNECTED) {
+            // Servers supporting compact headers append the format to use, newer ones the accepted options, older ones nothing
+            if (in.hasRemaining() && in.readUnsignedByte() == WireFormat.COMPACT.ordinal()) {
+                connection.setWireFormat(WireFormat.COMPACT);
+                int options = in.hasRemaining() ? in.readUnsignedByte() : 0;
+                if (timestamps && (options & Framework.CONNECT_TIMESTAMPS) != 0)
+                    connection.enableTimestamps();
             }
-        }).start();
+
+            connected = true;
+            synchronized(syncObject) {
+                syncObject.notify();
+            }
+            dispatchConnected(connection);
+            return;
+        }
+
+        // TODO: 18. 9. 2022
+        if (packetType == Framework.DISCONNECTED) {
+            connected = false;
+            dispatchDisconnected(connection, "Disconnected");
+            transport.close();
+            return;
+        }
+
+        if (packetType == Framework.RTT_REQUEST) {
+            if(!connected)
+                return;
+            sendRTTAnswer(in.readLong());
+            return;
+        }
+
+        if (packetType == Framework.RTT_ANSWER) {
+            long rtt = System.nanoTime() - in.readLong();
+            connection.onRttSample(rtt);
+
+            CongestionControl congestionControl = connection.getCongestionControl();
+            if (congestionControl != null)
+                congestionControl.onRttSample(TimeUnit.NANOSECONDS.toMillis(rtt));
+            return;
+        }
+
+        if (packetType == Framework.PACKET) {
+            if ((WireFormat.flags(header) & Framework.FLAG_ACK) != 0)
+                connection.getReliableChannel().readAck(in);
+            if ((WireFormat.flags(header) & Framework.FLAG_COMPRESSED) != 0)
+                in = Compression.decompress(in, packetProtocol.getCompressionDictionary());
+
+            int packetId = WireFormat.of(header).readPacketId(in);
+            Packet packet = packetProtocol.createServerboundPacket(packetId, in);
+
+            dispatchReceived(packetId, packet, connection);
+            return;
+        }
+
+        if (packetType == Framework.RELIABLE || packetType == Framework.ACK) {
+            Connection connection = this.connection;
+            ReliableChannel channel = connection.getReliableChannel();
+            if ((WireFormat.flags(header) & Framework.FLAG_ACK) != 0)
+                channel.readAck(in);
+            if (packetType == Framework.ACK)
+                return;
+
+            WireFormat format = WireFormat.of(header);
+            channel.receive(in.readUnsignedShort(), WireFormat.flags(header), in, (body, flags) -> {
+                if ((flags & Framework.FLAG_COMPRESSED) != 0)
+                    body = Compression.decompress(body, packetProtocol.getCompressionDictionary());
+                int packetId = format.readPacketId(body);
+                Packet packet = packetProtocol.createServerboundPacket(packetId, body);
+
+                dispatchReceived(packetId, packet, connection);
+            });
+            return;
+        }
+
+        if (packetType == Framework.SEQUENCED) {
+            Connection connection = this.connection;
+
+            if ((WireFormat.flags(header) & Framework.FLAG_ACK) != 0)
+                connection.getReliableChannel().readAck(in);
+
+            // Stale packets are dropped before they are deserialized
+            int channel = in.readVarInt();
+            if (!connection.getSequencedChannels().accept(channel, in.readUnsignedShort()))
+                return;
+            if ((WireFormat.flags(header) & Framework.FLAG_COMPRESSED) != 0)
+                in = Compression.decompress(in, packetProtocol.getCompressionDictionary());
+
+            int packetId = WireFormat.of(header).readPacketId(in);
+            Packet packet = packetProtocol.createServerboundPacket(packetId, in);
+
+            dispatchReceived(packetId, packet, connection);
+            return;
+        }
+
+        if (packetType == Framework.SNAPSHOT || packetType == Framework.SNAPSHOT_ACK) {
+            Connection connection = this.connection;
+
+            if ((WireFormat.flags(header) & Framework.FLAG_ACK) != 0)
+                connection.getReliableChannel().readAck(in);
+
+            int packetId = WireFormat.of(header).readPacketId(in);
+            if (packetType == Framework.SNAPSHOT_ACK) {
+                connection.getSnapshotChannel().acknowledge(packetId, in.readUnsignedShort());
+                return;
+            }
+
+            Packet packet = packetProtocol.newServerboundPacket(packetId);
+            if (!(packet instanceof SnapshotPacket))
+                throw new IOException("Packet " + packetId + " is not a snapshot");
+
+            int sequence = connection.getSnapshotChannel().read(packetId, (SnapshotPacket) packet, in);
+            if (sequence < 0)
+                return;
+            sendSnapshotAck(connection, packetId, sequence);
+
+            dispatchReceived(packetId, packet, connection);
+            return;
+        }
+
+        if (packetType == Framework.FRAGMENT) {
+            Connection connection = this.connection;
+
+            int group = in.readUnsignedShort();
+            int index = in.readVarInt();
+            int count = in.readVarInt();
+            PacketBuffer frame = connection.getFragmentAssembler().add(group, index, count, in);
+            if (frame == null)
+                return;
+
+            int frameHeader = WireFormat.readHeader(frame);
+            int frameType = WireFormat.type(frameHeader);
+            if (frameType != Framework.BATCH && frameType != Framework.FRAGMENT)
+                handleFrame(frameHeader, frame, transport);
+        }
     }
 
-    private void startTimeOutThread() {
-        new Thread(() -> {
-            while (!datagramSocket.isClosed()) {
-                if (connection.getTimeOutTimer().hasElapsed(Constants.TIMEOUT, true)) {
-                    for (IListener listener : listeners)
-                        listener.disconnected(connection, "Timed out");
-                    datagramSocket.close();
-                }
+    private void scheduleTimeOut(Transport transport, long delay) {
+        TimingWheel.shared().schedule(() -> {
+            if (transport.isClosed())
+                return;
+
+            // Received datagrams only reset the timer, so check again when it would elapse
+            long idle = connection.getTimeOutTimer().getElapsed();
+            long timeout = connection.getRtt().getTimeout();
+            if (idle < timeout) {
+                scheduleTimeOut(transport, timeout - idle);
+                return;
+            }
 
-                if (connection.getRttTimer().hasElapsed(Constants.RTT_TIMER, true) && connected) {
-                    sendRTTRequest(System.currentTimeMillis());
-                }
+            connected = false;
+            dispatchDisconnected(connection, "Timed out");
+            transport.close();
+
+            synchronized(syncObject) {
+                syncObject.notify();
             }
-        }).start();
+        }, delay);
     }
 
-    private void startConnectThread() {
-        new Thread(() -> {
-            Timer connectTimer = new Timer();
-            while (!datagramSocket.isClosed() && !connected) {
-                if (connectTimer.hasElapsed(Constants.RECONNECT, true)) {
-                    sendConnect();
-                }
+    private void scheduleRTTRequest(Transport transport) {
+        TimingWheel.shared().schedule(() -> {
+            if (transport.isClosed())
+                return;
+
+            scheduleRTTRequest(transport);
+            // With timestamps the traffic itself measures the RTT and keeps the server alive
+            Connection connection = this.connection;
+            if (connection.getTimestamps() != null && connection.getCongestionControl() == null
+                    && connection.getSendIdleTime() < Constants.RTT_TIMER)
+                return;
+            if (!connected)
+                return;
+            try {
+                sendRTTRequest(System.nanoTime());
+            } catch (IOException e) {
+                // The socket may close under the timer, the next probe tries again
+                connection.getMetrics().onSendFailure();
             }
-        }).start();
+        }, Constants.RTT_TIMER);
+    }
+
+    private void scheduleFlush(Transport transport) {
+        TimingWheel.shared().schedule(() -> {
+            if (transport.isClosed())
+                return;
+
+            scheduleFlush(transport);
+            flushQuietly();
+        }, batchFlushInterval);
+    }
+
+    private void scheduleConnect(Transport transport) {
+        TimingWheel.shared().schedule(() -> {
+            if (transport.isClosed() || connected)
+                return;
+
+            scheduleConnect(transport);
+            try {
+                sendConnect();
+            } catch (IOException e) {
+                connection.getMetrics().onSendFailure();
+            }
+        }, Constants.RECONNECT);
     }
 
     public boolean isConnected(){
         return connected;
     }
 
+    /**
+     * @return the connection to the server, replaced on every {@link #connect()}
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
     public void addListener(IListener listener) {
         listeners.add(listener);
     }
@@ -157,25 +529,72 @@ public class Client {
         listeners.remove(listener);
     }
 
+    /**
+     * Registers a handler of a received packet class. Handlers are looked up by the id the packet
+     * was received with and run before the listeners, on the same thread and in the same order.
+     *
+     * @param type    the packet class, registered in the protocol
+     * @param handler called with every received packet of the class and its sender
+     * @throws IllegalArgumentException if the class is not registered in the protocol
+     */
+    public <T extends Packet> void onPacket(Class<T> type, BiConsumer<? super T, Connection> handler) {
+        handlers.add(type, handler);
+    }
+
+    public void removeHandler(Class<? extends Packet> type, BiConsumer<?, Connection> handler) {
+        handlers.remove(type, handler);
+    }
+
     public void close() {
+        flushQuietly();
         sendDisconnect();
-        datagramSocket.close();
+        transport.close();
+
+        ListenerDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null) {
+            this.dispatcher = null;
+            dispatcher.shutdown();
+        }
+        MetricsMBeans.unregister(mbean);
+        mbean = null;
     }
 
-    public void send(Packet packet) {
+    /**
+     * Sends the batched packets right away, does nothing if batching is not enabled.
+     */
+    public void flush() {
+        SendBatch batch = connection.getBatch();
+        if (batch == null)
+            return;
+
         try {
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutStream = new DataOutputStream(outStream);
+            batch.flush();
+        } catch (IOException e) {
+            throw new PacketerException("Failed to send packet", e);
+        }
+    }
 
-            dataOutStream.writeInt(Framework.PACKET);
-            dataOutStream.writeInt(packetProtocol.getClientboundId(packet));
-            packet.write(dataOutStream);
+    private void flushQuietly() {
+        SendBatch batch = connection.getBatch();
+        if (batch == null)
+            return;
 
-            byte[] bytes = outStream.toByteArray();
+        try {
+            batch.flush();
+        } catch (IOException ignored) {
+        }
+    }
 
-            dataOutStream.close();
+    public void send(Packet packet) {
+        try {
+            PacketBuffer buffer = SEND_BUFFER.get().clear();
+            connection.writeFrameHeader(buffer, Framework.PACKET);
+            int bodyStart = buffer.position();
+            connection.getWireFormat().writePacketId(buffer, packetProtocol.getClientboundId(packet));
+            packet.write(buffer);
 
-            datagramSocket.send(new DatagramPacket(bytes, bytes.length, connection.getAddress(), connection.getPort()));
+            connection.sendFrame(compress(connection.getWireFormat(), buffer.flip().getBuffer(), bodyStart));
+            connection.getMetrics().onPacketSent();
 
             for(IListener listener : listeners)
                 listener.sent(packet, connection);
@@ -184,73 +603,207 @@ public class Client {
         }
     }
 
-    private void sendRTTAnswer(long time) {
-        try {
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutStream = new DataOutputStream(outStream);
-
-            dataOutStream.writeInt(Framework.RTT_ANSWER);
-            dataOutStream.writeLong(time);
+    /**
+     * Sends a packet on a sequenced channel. The server drops it if it already received
+     * a newer packet of that channel, which suits state updates where only the latest
+     * one matters. Requires a server with compact header support, see {@link WireFormat}.
+     *
+     * @param packet  the packet to send
+     * @param channel the channel, from 0 to {@link Constants#SEQUENCED_CHANNELS} exclusive
+     */
+    public void sendSequenced(Packet packet, int channel) {
+        Connection connection = this.connection;
+        if (connection.getWireFormat() == WireFormat.LEGACY)
+            throw new PacketerException("Server does not support sequenced packets");
+        if (!connection.getSequencedChannels().isValid(channel))
+            throw new PacketerException("Invalid sequenced channel " + channel);
 
-            byte[] bytes = outStream.toByteArray();
+        try {
+            PacketBuffer buffer = SEND_BUFFER.get().clear();
+            connection.writeFrameHeader(buffer, Framework.SEQUENCED);
+            buffer.writeVarInt(channel);
+            buffer.writeShort(connection.getSequencedChannels().next(channel));
+            int bodyStart = buffer.position();
+            connection.getWireFormat().writePacketId(buffer, packetProtocol.getClientboundId(packet));
+            packet.write(buffer);
 
-            dataOutStream.close();
+            connection.sendFrame(compress(connection.getWireFormat(), buffer.flip().getBuffer(), bodyStart));
+            connection.getMetrics().onPacketSent();
 
-            datagramSocket.send(new DatagramPacket(bytes, bytes.length, connection.getAddress(), connection.getPort()));
+            for(IListener listener : listeners)
+                listener.sent(packet, connection);
         } catch (IOException e) {
             throw new PacketerException("Failed to send packet", e);
         }
     }
 
-    private void sendRTTRequest(long time) {
-        try {
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutStream = new DataOutputStream(outStream);
-
-            dataOutStream.writeInt(Framework.RTT_REQUEST);
-            dataOutStream.writeLong(time);
+    /**
+     * Sends a snapshot encoded against the newest snapshot of the same packet the server
+     * acknowledged, so only changed fields are sent, see {@link SnapshotChannel}. Like
+     * sequenced packets, older snapshots than the newest received one are dropped. Requires
+     * a server with compact header support, see {@link WireFormat}.
+     *
+     * @param packet the snapshot to send
+     */
+    public void sendSnapshot(SnapshotPacket packet) {
+        Connection connection = this.connection;
+        if (connection.getWireFormat() == WireFormat.LEGACY)
+            throw new PacketerException("Server does not support snapshots");
 
-            byte[] bytes = outStream.toByteArray();
+        try {
+            int packetId = packetProtocol.getClientboundId(packet);
+            PacketBuffer buffer = SEND_BUFFER.get().clear();
+            connection.writeFrameHeader(buffer, Framework.SNAPSHOT);
+            connection.getWireFormat().writePacketId(buffer, packetId);
+            connection.getSnapshotChannel().write(packetId, packet, buffer);
 
-            dataOutStream.close();
+            connection.sendFrame(buffer.flip().getBuffer());
+            connection.getMetrics().onPacketSent();
 
-            datagramSocket.send(new DatagramPacket(bytes, bytes.length, connection.getAddress(), connection.getPort()));
+            for(IListener listener : listeners)
+                listener.sent(packet, connection);
         } catch (IOException e) {
             throw new PacketerException("Failed to send packet", e);
         }
     }
 
-    private void sendDisconnect() {
-        try {
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutStream = new DataOutputStream(outStream);
+    private void sendSnapshotAck(Connection connection, int packetId, int sequence) throws IOException {
+        PacketBuffer buffer = SEND_BUFFER.get().clear();
+        connection.writeFrameHeader(buffer, Framework.SNAPSHOT_ACK);
+        connection.getWireFormat().writePacketId(buffer, packetId);
+        buffer.writeShort(sequence);
 
-            dataOutStream.writeInt(Framework.DISCONNECT);
+        connection.sendFrame(buffer.flip().getBuffer());
+    }
 
-            byte[] bytes = outStream.toByteArray();
+    /**
+     * Sends a packet reliably, it is resent until acknowledged and the server receives
+     * reliable packets in the order they were sent. Requires a server with compact
+     * header support, see {@link WireFormat}.
+     *
+     * @param packet the packet to send
+     */
+    public void sendReliable(Packet packet) {
+        Connection connection = this.connection;
+        if (connection.getWireFormat() == WireFormat.LEGACY)
+            throw new PacketerException("Server does not support reliable packets");
 
-            dataOutStream.close();
+        try {
+            PacketBuffer buffer = SEND_BUFFER.get().clear();
+            connection.getWireFormat().writePacketId(buffer, packetProtocol.getClientboundId(packet));
+            packet.write(buffer);
+
+            ByteBuffer body = buffer.flip().getBuffer();
+            ByteBuffer compressed = shouldCompress(connection.getWireFormat(), body.remaining())
+                    ? Compression.compress(body, packetProtocol.getCompressionDictionary())
+                    : null;
+            if (compressed != null)
+                connection.getReliableChannel().send(compressed, Framework.FLAG_COMPRESSED);
+            else
+                connection.getReliableChannel().send(body);
+            connection.getMetrics().onPacketSent();
 
-            datagramSocket.send(new DatagramPacket(bytes, bytes.length, connection.getAddress(), connection.getPort()));
+            for(IListener listener : listeners)
+                listener.sent(packet, connection);
         } catch (IOException e) {
             throw new PacketerException("Failed to send packet", e);
         }
     }
 
-    private void sendConnect() {
+    private void sendRTTAnswer(long time) {
         try {
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutStream = new DataOutputStream(outStream);
+            PacketBuffer buffer = SEND_BUFFER.get().clear();
+            connection.writeFrameHeader(buffer, Framework.RTT_ANSWER, false);
+            buffer.writeLong(time);
+
+            sendBuffer(buffer);
+        } catch (IOException e) {
+            throw new PacketerException("Failed to send packet", e);
+        }
+    }
 
-            dataOutStream.writeInt(Framework.CONNECT);
+    private void sendRTTRequest(long time) throws IOException {
+        PacketBuffer buffer = SEND_BUFFER.get().clear();
+        connection.writeFrameHeader(buffer, Framework.RTT_REQUEST, false);
+        buffer.writeLong(time);
 
-            byte[] bytes = outStream.toByteArray();
+        sendBuffer(buffer);
+    }
 
-            dataOutStream.close();
+    private void sendDisconnect() {
+        try {
+            PacketBuffer buffer = SEND_BUFFER.get().clear();
+            connection.getWireFormat().writeHeader(buffer, Framework.DISCONNECT, 0);
 
-            datagramSocket.send(new DatagramPacket(bytes, bytes.length, connection.getAddress(), connection.getPort()));
+            sendBuffer(buffer);
         } catch (IOException e) {
             throw new PacketerException("Failed to send packet", e);
         }
     }
+
+    private void sendConnect() throws IOException {
+        PacketBuffer buffer = SEND_BUFFER.get().clear();
+        // Always a legacy header, followed by the highest format this client understands and the options it asks for
+        WireFormat.LEGACY.writeHeader(buffer, Framework.CONNECT, 0);
+        buffer.writeByte(WireFormat.COMPACT.ordinal());
+        buffer.writeByte(timestamps ? Framework.CONNECT_TIMESTAMPS : 0);
+
+        sendBuffer(buffer);
+    }
+
+    private boolean shouldCompress(WireFormat format, int size) {
+        // Peers with legacy headers predate compression
+        return compressionThreshold > 0 && format != WireFormat.LEGACY && size >= compressionThreshold;
+    }
+
+    private ByteBuffer compress(WireFormat format, ByteBuffer frame, int bodyStart) {
+        if (!shouldCompress(format, frame.limit() - bodyStart))
+            return frame;
+
+        ByteBuffer compressed = Compression.compress(frame, bodyStart, format, packetProtocol.getCompressionDictionary());
+        return compressed != null ? compressed : frame;
+    }
+
+    private void dispatchConnected(Connection connection) {
+        dispatchLifecycle(connection, () -> {
+            for (IListener listener : listeners)
+                listener.connected(connection);
+        });
+    }
+
+    private void dispatchDisconnected(Connection connection, String reason) {
+        dispatchLifecycle(connection, () -> {
+            for (IListener listener : listeners)
+                listener.disconnected(connection, reason);
+        });
+    }
+
+    private void dispatchReceived(int packetId, Packet packet, Connection connection) {
+        connection.getMetrics().onPacketReceived();
+        dispatch(connection, () -> {
+            handlers.handle(packetId, packet, connection);
+            for (IListener listener : listeners)
+                listener.received(packet, connection);
+        });
+    }
+
+    private void dispatch(Connection connection, Runnable event) {
+        ListenerDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null)
+            dispatcher.execute(connection, event);
+        else
+            event.run();
+    }
+
+    private void dispatchLifecycle(Connection connection, Runnable event) {
+        ListenerDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null)
+            dispatcher.executeLifecycle(connection, event);
+        else
+            event.run();
+    }
+
+    private void sendBuffer(PacketBuffer buffer) throws IOException {
+        connection.sendDirect(buffer.flip().getBuffer());
+    }
 }
@@ -1,18 +1,37 @@
 package xyz.synse.udppacketer.client;
 
 import xyz.synse.udppacketer.PacketerException;
+import xyz.synse.udppacketer.common.Connection;
 import xyz.synse.udppacketer.common.IListener;
+import xyz.synse.udppacketer.common.ListenerDispatcher;
+import xyz.synse.udppacketer.common.OverflowPolicy;
+import xyz.synse.udppacketer.common.packets.Packet;
 import xyz.synse.udppacketer.common.packets.PacketProtocol;
+import xyz.synse.udppacketer.common.transport.TransportFactory;
+import xyz.synse.udppacketer.common.utils.Constants;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class ClientBuilder {
     private InetAddress address;
     private int port = 4425;
     private PacketProtocol packetProtocol;
+    private int batchMtu = 0;
+    private long batchFlushInterval = 0;
+    private long maxBandwidth = 0;
+    private int compressionThreshold = 0;
+    private Supplier<ListenerDispatcher> dispatcherFactory;
+    private String mbeanName;
+    private TransportFactory transportFactory;
+    private boolean timestamps = false;
+    private boolean frozenProtocol = false;
     private ArrayList<IListener> listeners = new ArrayList<>();
+    private ArrayList<Consumer<Client>> handlers = new ArrayList<>();
 
     public ClientBuilder() {
         try {
@@ -35,17 +54,150 @@ public class ClientBuilder {
         return this;
     }
 
+    /**
+     * Batches sent packets into datagrams of up to {@link Constants#BATCH_MTU} bytes,
+     * flushed every {@link Constants#BATCH_FLUSH_INTERVAL} milliseconds.
+     */
+    public ClientBuilder withBatching() {
+        return withBatching(Constants.BATCH_MTU, Constants.BATCH_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Batches sent packets into datagrams of up to the given size.
+     * The server must have batching support.
+     *
+     * @param mtu           maximum datagram size
+     * @param flushInterval milliseconds between automatic flushes, 0 to only flush on {@link Client#flush()}
+     */
+    public ClientBuilder withBatching(int mtu, long flushInterval) {
+        this.batchMtu = mtu;
+        this.batchFlushInterval = flushInterval;
+        return this;
+    }
+
+    /**
+     * Paces packets sent to the server at a rate found by congestion control, without a bandwidth ceiling.
+     */
+    public ClientBuilder withCongestionControl() {
+        return withCongestionControl(Long.MAX_VALUE);
+    }
+
+    /**
+     * Paces packets sent to the server at a rate found by congestion control.
+     *
+     * @param maxBandwidth the bandwidth ceiling in bytes per second
+     */
+    public ClientBuilder withCongestionControl(long maxBandwidth) {
+        this.maxBandwidth = maxBandwidth;
+        return this;
+    }
+
+    /**
+     * Compresses packets of at least {@link Constants#COMPRESSION_THRESHOLD} bytes sent to the server.
+     */
+    public ClientBuilder withCompression() {
+        return withCompression(Constants.COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * Compresses packets sent to the server if they are at least the given size and get smaller.
+     * A preset dictionary can be set with {@link xyz.synse.udppacketer.common.packets.PacketProtocol#setCompressionDictionary(byte[])}.
+     *
+     * @param threshold the minimum packet size in bytes
+     */
+    public ClientBuilder withCompression(int threshold) {
+        this.compressionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Calls the listeners on the given amount of threads instead of the receiving thread, in
+     * order per connection, with up to {@link Constants#DISPATCH_QUEUE_SIZE} queued events per
+     * stripe and the oldest packet event dropped beyond that. Connected and disconnected
+     * events are never dropped.
+     *
+     * @param threads the amount of dispatch threads
+     */
+    public ClientBuilder withAsyncDispatch(int threads) {
+        return withAsyncDispatch(threads, Constants.DISPATCH_QUEUE_SIZE, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Calls the listeners on the given amount of threads instead of the receiving thread, in
+     * order per connection.
+     *
+     * @param threads   the amount of dispatch threads
+     * @param queueSize the maximum amount of queued events per stripe
+     * @param policy    what to do when a queue is full
+     */
+    public ClientBuilder withAsyncDispatch(int threads, int queueSize, OverflowPolicy policy) {
+        this.dispatcherFactory = () -> ListenerDispatcher.striped(threads, queueSize, policy);
+        return this;
+    }
+
+    /**
+     * Calls the listeners on virtual threads instead of the receiving thread, in order per
+     * connection, see {@link ListenerDispatcher#virtualThreads(int, OverflowPolicy)}.
+     *
+     * @param queueSize the maximum amount of queued events per stripe
+     * @param policy    what to do when a queue is full
+     */
+    public ClientBuilder withVirtualThreadDispatch(int queueSize, OverflowPolicy policy) {
+        this.dispatcherFactory = () -> ListenerDispatcher.virtualThreads(queueSize, policy);
+        return this;
+    }
+
     public ClientBuilder withProtocol(PacketProtocol packetProtocol){
         this.packetProtocol = packetProtocol;
         return this;
     }
 
 
+    /**
+     * Registers the metrics of the client as an MBean, see {@link Client#enableMBeans(String)}.
+     */
+    public ClientBuilder withMBeans(String name){
+        this.mbeanName = name;
+        return this;
+    }
+
+    /**
+     * Carries timestamps in normal frames instead of relying on RTT probes, see {@link Client#enableTimestamps()}.
+     */
+    public ClientBuilder withTimestamps(){
+        this.timestamps = true;
+        return this;
+    }
+
+    /**
+     * Freezes the protocol when the client connects, see {@link Client#enableFrozenProtocol()}.
+     */
+    public ClientBuilder withFrozenProtocol(){
+        this.frozenProtocol = true;
+        return this;
+    }
+
+    /**
+     * Runs the client over the transports of the given factory, see {@link Client#setTransportFactory(TransportFactory)}.
+     */
+    public ClientBuilder withTransport(TransportFactory transportFactory){
+        this.transportFactory = transportFactory;
+        return this;
+    }
+
     public ClientBuilder withListener(IListener listener){
         this.listeners.add(listener);
         return this;
     }
 
+    /**
+     * Registers a handler of a received packet class, see {@link Client#onPacket(Class, BiConsumer)}.
+     */
+    public <T extends Packet> ClientBuilder withHandler(Class<T> type, BiConsumer<? super T, Connection> handler){
+        this.handlers.add(client -> client.onPacket(type, handler));
+        return this;
+    }
+
     public Client build(){
         if(address == null){
             throw new PacketerException("Address not set!");
@@ -56,9 +208,36 @@ public class ClientBuilder {
         }
 
         Client client = new Client(address, port, packetProtocol);
+        if(batchMtu > 0){
+            client.enableBatching(batchMtu, batchFlushInterval);
+        }
+        if(maxBandwidth > 0){
+            client.enableCongestionControl(maxBandwidth);
+        }
+        if(compressionThreshold > 0){
+            client.enableCompression(compressionThreshold);
+        }
+        if(dispatcherFactory != null){
+            client.enableAsyncDispatch(dispatcherFactory);
+        }
+        if(mbeanName != null){
+            client.enableMBeans(mbeanName);
+        }
+        if(timestamps){
+            client.enableTimestamps();
+        }
+        if(frozenProtocol){
+            client.enableFrozenProtocol();
+        }
+        if(transportFactory != null){
+            client.setTransportFactory(transportFactory);
+        }
         for(IListener listener : listeners){
             client.addListener(listener);
         }
+        for(Consumer<Client> handler : handlers){
+            handler.accept(client);
+        }
 
         return client;
     }
@@ -0,0 +1,133 @@
+package xyz.synse.udppacketer.common;
+
+import xyz.synse.udppacketer.common.utils.Constants;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AIMD congestion control of a {@link Connection}, deciding the rate its {@link Pacer} sends at.
+ * <p>
+ * The controller keeps a congestion window in bytes and sends one window per smoothed round
+ * trip time. The window doubles every round trip until the first congestion signal and then
+ * grows by one {@link Constants#FRAGMENT_SIZE} per round trip; every signal halves it, at
+ * most once per round trip. Signals are reliable frames that had to be resent and RTT probes
+ * taking more than {@link Constants#CONGESTION_DELAY_THRESHOLD} milliseconds (or twice the
+ * minimum round trip time if that is higher) longer than the fastest recent probe, which means
+ * datagrams are queueing somewhere on the path. Acknowledged reliable frames grow the window;
+ * without reliable traffic the bytes sent between two uncongested probes count as delivered.
+ */
+public class CongestionControl {
+    private static final double PACING_GAIN = 1.25;
+
+    private final Connection connection;
+    private final long maxRate;
+    private double window = Constants.CONGESTION_INITIAL_WINDOW;
+    private double threshold = Double.MAX_VALUE;
+    private long lastDecrease = System.nanoTime();
+    private long minRtt = -1;
+    private long minRttAt;
+    private long sentSinceProbe = 0;
+    private long ackedSinceProbe = 0;
+
+    CongestionControl(Connection connection, long maxRate) {
+        if (maxRate <= 0)
+            throw new IllegalArgumentException("Bandwidth must be positive: " + maxRate);
+
+        this.connection = connection;
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * @return the bandwidth ceiling in bytes per second
+     */
+    public long getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * @return the rate the connection is paced at in bytes per second
+     */
+    public synchronized long getRate() {
+        return (long) Math.min(maxRate, window * PACING_GAIN * 1000 / getRoundTrip());
+    }
+
+    /**
+     * @return the congestion window in bytes
+     */
+    public synchronized long getWindow() {
+        return (long) window;
+    }
+
+    /**
+     * @return the fastest recent RTT probe in milliseconds, -1 before the first one
+     */
+    public synchronized long getMinRtt() {
+        return minRtt;
+    }
+
+    synchronized void onSent(int bytes) {
+        sentSinceProbe += bytes;
+    }
+
+    /**
+     * Called when the peer acknowledged reliable frames.
+     *
+     * @param bytes the size of the acknowledged frames
+     */
+    public synchronized void onAcked(int bytes) {
+        ackedSinceProbe += bytes;
+        grow(bytes);
+    }
+
+    /**
+     * Called when a reliable frame had to be resent.
+     */
+    public synchronized void onLoss() {
+        decrease();
+    }
+
+    /**
+     * Called with the result of an RTT probe, which bypasses the pacer.
+     *
+     * @param rtt the round trip time in milliseconds
+     */
+    public synchronized void onRttSample(long rtt) {
+        long now = System.nanoTime();
+        if (minRtt < 0 || rtt <= minRtt || now - minRttAt > TimeUnit.MILLISECONDS.toNanos(Constants.CONGESTION_MIN_RTT_WINDOW)) {
+            minRtt = rtt;
+            minRttAt = now;
+        }
+
+        if (rtt - minRtt > Math.max(minRtt, Constants.CONGESTION_DELAY_THRESHOLD))
+            decrease();
+        else if (ackedSinceProbe == 0)
+            grow((int) Math.min(sentSinceProbe, (long) window));
+
+        sentSinceProbe = 0;
+        ackedSinceProbe = 0;
+    }
+
+    private void grow(int bytes) {
+        if (window < threshold)
+            window += bytes;
+        else
+            window += (double) Constants.FRAGMENT_SIZE * bytes / window;
+
+        // Growing past what the ceiling allows would only delay the reaction to congestion
+        window = Math.min(window, Math.max(Constants.CONGESTION_MIN_WINDOW, (double) maxRate * getRoundTrip() / 1000));
+    }
+
+    private void decrease() {
+        long now = System.nanoTime();
+        if (now - lastDecrease < TimeUnit.MILLISECONDS.toNanos((long) getRoundTrip()))
+            return;
+
+        lastDecrease = now;
+        window = Math.max(Constants.CONGESTION_MIN_WINDOW, window / 2);
+        threshold = window;
+    }
+
+    private double getRoundTrip() {
+        return Math.max(Constants.TIMER_TICK, connection.getSmoothRTT());
+    }
+}
@@ -1,19 +1,60 @@
 package xyz.synse.udppacketer.common;
 
+import org.jetbrains.annotations.Nullable;
+import xyz.synse.udppacketer.common.metrics.NetworkMetrics;
+import xyz.synse.udppacketer.common.transport.Transport;
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+import xyz.synse.udppacketer.common.utils.Constants;
+import xyz.synse.udppacketer.common.utils.Framework;
 import xyz.synse.udppacketer.common.utils.Timer;
+import xyz.synse.udppacketer.common.utils.WireFormat;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Connection {
     private final InetAddress address;
     private final int port;
+    private final InetSocketAddress socketAddress;
+    private final Transport transport;
+    private final NetworkMetrics metrics;
     private final Timer timeOutTimer = new Timer();
     private final Timer rttTimer = new Timer();
-    private double SmoothRTT = 400L;
+    private final RttEstimator rtt = new RttEstimator();
+    private volatile boolean closed = false;
+    private volatile SendBatch batch;
+    private volatile Pacer pacer;
+    private volatile ReliableChannel reliableChannel;
+    private volatile FragmentAssembler fragmentAssembler;
+    private volatile SnapshotChannel snapshotChannel;
+    private final AtomicInteger fragmentGroup = new AtomicInteger();
+    private final SequencedChannels sequencedChannels = new SequencedChannels();
+    private volatile WireFormat wireFormat = WireFormat.LEGACY;
+    private volatile TimestampEcho timestamps;
+    private volatile long lastSentAt = System.nanoTime();
 
     public Connection(InetAddress address, int port) {
+        this(address, port, null);
+    }
+
+    public Connection(InetAddress address, int port, Transport transport) {
+        this(address, port, transport, new NetworkMetrics(null));
+    }
+
+    /**
+     * @param metrics the metrics to count the traffic of this connection in, usually with the
+     *                metrics of the server or client as parent
+     */
+    public Connection(InetAddress address, int port, Transport transport, NetworkMetrics metrics) {
         this.address = address;
         this.port = port;
+        this.socketAddress = new InetSocketAddress(address, port);
+        this.transport = transport;
+        this.metrics = metrics;
     }
 
     public InetAddress getAddress() {
@@ -24,22 +65,343 @@ public class Connection {
         return port;
     }
 
+    public InetSocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
+    /**
+     * Returns the transport datagrams for this connection are sent through.
+     *
+     * @return the transport or null if the connection is not bound to one
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the traffic counters of this connection
+     */
+    public NetworkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, see {@link #getRtt()}
+     */
     public double getSmoothRTT() {
-        return SmoothRTT;
+        return rtt.getSmoothed() / 1e6;
+    }
+
+    /**
+     * @return the round trip time estimate of this connection
+     */
+    public RttEstimator getRtt() {
+        return rtt;
     }
 
     public Timer getRttTimer() {
         return rttTimer;
     }
 
-    public void setSmoothRTT(double value){
-        this.SmoothRTT = this.SmoothRTT * 0.7 + value * 0.3;
+    /**
+     * Feeds a round trip time sample into the estimate and the metrics of this connection.
+     *
+     * @param rtt the round trip time in nanoseconds
+     */
+    public void onRttSample(long rtt) {
+        this.rtt.onSample(rtt);
+        metrics.onRttSample(TimeUnit.NANOSECONDS.toMicros(rtt));
+    }
+
+    /**
+     * Returns the time since a frame was last sent to this connection, including frames
+     * still waiting in a batch or pacer. RTT probes and other datagrams sent with
+     * {@link #sendDirect(ByteBuffer)} do not count.
+     *
+     * @return the time in milliseconds
+     */
+    public long getSendIdleTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSentAt);
     }
 
     public Timer getTimeOutTimer() {
         return timeOutTimer;
     }
 
+    /**
+     * @return the header format of frames sent to this connection
+     */
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    public void setWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    /**
+     * Makes packets sent to this connection wait in a {@link SendBatch} until it is
+     * flushed or full instead of being sent right away.
+     *
+     * @param mtu maximum size of a batched datagram
+     * @return the batch of this connection
+     */
+    public SendBatch enableBatching(int mtu) {
+        if (transport == null)
+            throw new IllegalStateException("Connection is not bound to a transport");
+
+        SendBatch batch = new SendBatch(this, mtu);
+        this.batch = batch;
+        return batch;
+    }
+
+    /**
+     * @return the batch of this connection or null if batching is not enabled
+     */
+    @Nullable
+    public SendBatch getBatch() {
+        return batch;
+    }
+
+    /**
+     * Makes frames sent to this connection carry timestamps and echo the ones received,
+     * see {@link TimestampEcho}. Both sides must have agreed on it when connecting.
+     *
+     * @return the timestamps of this connection
+     */
+    public synchronized TimestampEcho enableTimestamps() {
+        if (timestamps == null)
+            timestamps = new TimestampEcho(this);
+        return timestamps;
+    }
+
+    /**
+     * @return the timestamps of this connection or null if they are not enabled
+     */
+    @Nullable
+    public TimestampEcho getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * Paces datagrams sent to this connection at the rate of a {@link CongestionControl}.
+     *
+     * @param maxRate the bandwidth ceiling in bytes per second
+     * @return the pacer of this connection
+     */
+    public Pacer enablePacing(long maxRate) {
+        if (transport == null)
+            throw new IllegalStateException("Connection is not bound to a transport");
+
+        Pacer pacer = new Pacer(this, maxRate);
+        this.pacer = pacer;
+        return pacer;
+    }
+
+    /**
+     * @return the pacer of this connection or null if pacing is not enabled
+     */
+    @Nullable
+    public Pacer getPacer() {
+        return pacer;
+    }
+
+    /**
+     * @return the congestion control of this connection or null if pacing is not enabled
+     */
+    @Nullable
+    public CongestionControl getCongestionControl() {
+        Pacer pacer = this.pacer;
+        return pacer != null ? pacer.getCongestionControl() : null;
+    }
+
+    /**
+     * Returns the reliable channel of this connection, creating it on first use.
+     *
+     * @return the reliable channel
+     */
+    public ReliableChannel getReliableChannel() {
+        ReliableChannel channel = reliableChannel;
+        if (channel == null) {
+            synchronized (this) {
+                channel = reliableChannel;
+                if (channel == null) {
+                    if (transport == null)
+                        throw new IllegalStateException("Connection is not bound to a transport");
+                    reliableChannel = channel = new ReliableChannel(this);
+                }
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Returns the reassembly buffer of fragments received from this connection, creating it on first use.
+     *
+     * @return the reassembly buffer
+     */
+    public FragmentAssembler getFragmentAssembler() {
+        FragmentAssembler assembler = fragmentAssembler;
+        if (assembler == null) {
+            synchronized (this) {
+                assembler = fragmentAssembler;
+                if (assembler == null)
+                    fragmentAssembler = assembler = new FragmentAssembler();
+            }
+        }
+        return assembler;
+    }
+
+    /**
+     * Returns the snapshot baselines of this connection, creating them on first use.
+     *
+     * @return the snapshot channel
+     */
+    public SnapshotChannel getSnapshotChannel() {
+        SnapshotChannel channel = snapshotChannel;
+        if (channel == null) {
+            synchronized (this) {
+                channel = snapshotChannel;
+                if (channel == null)
+                    snapshotChannel = channel = new SnapshotChannel();
+            }
+        }
+        return channel;
+    }
+
+    int nextFragmentGroup() {
+        return fragmentGroup.getAndIncrement() & 0xFFFF;
+    }
+
+    /**
+     * @return the sequence numbers of the sequenced channels of this connection
+     */
+    public SequencedChannels getSequencedChannels() {
+        return sequencedChannels;
+    }
+
+    /**
+     * Writes a frame header in the format of this connection, followed by the timestamps if
+     * they are enabled and the acknowledgement of received reliable packets if one is pending.
+     *
+     * @param out  the buffer to write to
+     * @param type the frame type, one of {@link xyz.synse.udppacketer.common.utils.Framework}
+     */
+    public void writeFrameHeader(PacketBuffer out, int type) {
+        writeFrameHeader(out, type, true);
+    }
+
+    /**
+     * Writes a frame header in the format of this connection, followed by the timestamps if they are enabled.
+     *
+     * @param out  the buffer to write to
+     * @param type the frame type, one of {@link xyz.synse.udppacketer.common.utils.Framework}
+     * @param ack  whether a pending acknowledgement may be piggybacked, only for frame types
+     *             whose receivers read {@link Framework#FLAG_ACK}
+     */
+    public void writeFrameHeader(PacketBuffer out, int type, boolean ack) {
+        ReliableChannel channel = ack ? reliableChannel : null;
+        boolean writeAck = channel != null && channel.isAckPending();
+        TimestampEcho timestamps = this.timestamps;
+
+        wireFormat.writeHeader(out, type, (writeAck ? Framework.FLAG_ACK : 0) | (timestamps != null ? Framework.FLAG_TIMESTAMP : 0));
+        if (timestamps != null)
+            timestamps.write(out);
+        if (writeAck)
+            channel.writeAck(out);
+    }
+
+    /**
+     * Sends a frame, split into fragments if it is larger than {@link Constants#FRAGMENT_SIZE}
+     * and through the {@link SendBatch} if batching is enabled.
+     *
+     * @param frame the frame, its position is left untouched
+     * @throws IOException if the frame could not be sent
+     */
+    public void sendFrame(ByteBuffer frame) throws IOException {
+        if (frame.remaining() > Constants.FRAGMENT_SIZE)
+            FragmentAssembler.send(this, frame);
+        else
+            sendDatagram(frame);
+    }
+
+    /**
+     * Sends a frame as it is, through the {@link SendBatch} if batching is enabled.
+     *
+     * @param frame the frame, its position is left untouched
+     * @throws IOException if the frame could not be sent
+     */
+    void sendDatagram(ByteBuffer frame) throws IOException {
+        lastSentAt = System.nanoTime();
+        SendBatch batch = this.batch;
+        if (batch != null) {
+            batch.add(frame);
+            return;
+        }
+
+        transmit(frame);
+    }
+
+    /**
+     * Sends a datagram through the {@link Pacer} if pacing is enabled.
+     *
+     * @param datagram the datagram, its position is left untouched
+     * @throws IOException if the datagram could not be sent
+     */
+    void transmit(ByteBuffer datagram) throws IOException {
+        Pacer pacer = this.pacer;
+        if (pacer != null) {
+            pacer.send(datagram);
+            return;
+        }
+
+        sendDirect(datagram);
+    }
+
+    /**
+     * Sends a datagram right away, bypassing batching and pacing, and counts it in the metrics.
+     *
+     * @param datagram the datagram, its position is left untouched
+     * @throws IOException if the datagram could not be sent
+     */
+    public void sendDirect(ByteBuffer datagram) throws IOException {
+        int position = datagram.position();
+        int length = datagram.remaining();
+        try {
+            transport.send(datagram, socketAddress);
+        } catch (IOException e) {
+            metrics.onSendFailure();
+            throw e;
+        } finally {
+            datagram.position(position);
+        }
+        metrics.onDatagramSent(length);
+    }
+
+    /**
+     * @return the reliable channel or null if it was not used yet
+     */
+    @Nullable
+    public ReliableChannel getReliableChannelIfPresent() {
+        return reliableChannel;
+    }
+
+    /**
+     * Returns whether the connection was closed. Scheduled work of a closed connection stops.
+     *
+     * @return true if the connection is closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Marks the connection as closed, the peer is not notified.
+     */
+    public void markClosed() {
+        this.closed = true;
+    }
+
     @Override
     public String toString() {
         return "address=" + address + ", port=" + port;
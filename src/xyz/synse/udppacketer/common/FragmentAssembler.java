@@ -0,0 +1,189 @@
+package xyz.synse.udppacketer.common;
+
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+import xyz.synse.udppacketer.common.utils.Constants;
+import xyz.synse.udppacketer.common.utils.Framework;
+import xyz.synse.udppacketer.common.utils.WireFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits frames larger than {@link Constants#FRAGMENT_SIZE} into {@link Framework#FRAGMENT}
+ * frames and reassembles the received ones of a {@link Connection}.
+ * <p>
+ * A fragment frame holds a 16 bit group id, its index and the fragment count as varints,
+ * followed by its part of the original frame. The reassembly buffer is bounded: at most
+ * {@link Constants#FRAGMENT_GROUPS} frames are reassembled at once, all of them together
+ * hold at most {@link Constants#MAX_PACKET_SIZE} bytes and incomplete ones are dropped after
+ * {@link Constants#FRAGMENT_TIMEOUT}. Lost fragments are not resent, reliable packets are
+ * split by the {@link ReliableChannel} instead.
+ */
+public class FragmentAssembler {
+    private static final int FRAGMENT_HEADER_SIZE = 4 + 2 + 5 + 5;
+    private static final ThreadLocal<PacketBuffer> FRAGMENT_BUFFER = ThreadLocal.withInitial(() -> PacketBuffer.allocate(Constants.FRAGMENT_SIZE + FRAGMENT_HEADER_SIZE));
+
+    private final Group[] groups = new Group[Math.max(1, Constants.FRAGMENT_GROUPS)];
+    private int bufferedBytes = 0;
+
+    FragmentAssembler() {
+    }
+
+    /**
+     * Sends a frame as fragments through {@link Connection#sendDatagram(ByteBuffer)}.
+     *
+     * @param connection the receiver
+     * @param frame      the frame, its position is left untouched
+     * @throws IOException if a fragment could not be sent
+     */
+    static void send(Connection connection, ByteBuffer frame) throws IOException {
+        int length = frame.remaining();
+        if (length > Constants.MAX_PACKET_SIZE)
+            throw new IOException("Packet of " + length + " bytes exceeds the maximum of " + Constants.MAX_PACKET_SIZE);
+
+        int chunkSize = getChunkSize();
+        int count = (length + chunkSize - 1) / chunkSize;
+        int group = connection.nextFragmentGroup();
+        WireFormat format = connection.getWireFormat();
+        PacketBuffer out = FRAGMENT_BUFFER.get();
+        ByteBuffer chunk = frame.duplicate();
+
+        for (int index = 0; index < count; index++) {
+            int start = frame.position() + index * chunkSize;
+            chunk.limit(Math.min(start + chunkSize, frame.limit())).position(start);
+
+            out.clear();
+            format.writeHeader(out, Framework.FRAGMENT, 0);
+            out.writeShort(group);
+            out.writeVarInt(index);
+            out.writeVarInt(count);
+            out.writeBytes(chunk);
+            connection.sendDatagram(out.flip().getBuffer());
+        }
+    }
+
+    private static int getChunkSize() {
+        return Constants.FRAGMENT_SIZE - FRAGMENT_HEADER_SIZE;
+    }
+
+    private static int getMaxFragments() {
+        return (Constants.MAX_PACKET_SIZE + getChunkSize() - 1) / getChunkSize();
+    }
+
+    /**
+     * Adds a received fragment.
+     *
+     * @param group the group id of the fragment
+     * @param index the index of the fragment in its group
+     * @param count the amount of fragments in the group
+     * @param chunk the part of the frame, its remaining bytes are copied
+     * @return the reassembled frame once all fragments of the group arrived, otherwise null
+     */
+    public synchronized PacketBuffer add(int group, int index, int count, PacketBuffer chunk) {
+        int length = chunk.remaining();
+        if (count < 1 || count > getMaxFragments() || index < 0 || index >= count)
+            return null;
+
+        long now = System.nanoTime();
+        Group target = null;
+        int free = -1;
+        int oldest = -1;
+        for (int i = 0; i < groups.length; i++) {
+            Group candidate = groups[i];
+            if (candidate != null && now - candidate.createdAt > TimeUnit.MILLISECONDS.toNanos(Constants.FRAGMENT_TIMEOUT)) {
+                drop(i);
+                candidate = null;
+            }
+
+            if (candidate == null) {
+                if (free < 0)
+                    free = i;
+            } else if (candidate.id == group) {
+                target = candidate;
+            } else if (oldest < 0 || candidate.createdAt - groups[oldest].createdAt < 0) {
+                oldest = i;
+            }
+        }
+
+        if (target == null) {
+            if (free < 0)
+                free = oldest;
+            drop(free);
+            target = groups[free] = new Group(group, count, now);
+        }
+
+        if (target.count != count || target.chunks[index] != null)
+            return null;
+
+        while (bufferedBytes + length > Constants.MAX_PACKET_SIZE) {
+            int victim = oldestExcept(target);
+            if (victim < 0)
+                return null;
+            drop(victim);
+        }
+
+        byte[] bytes = new byte[length];
+        chunk.getBuffer().get(bytes);
+        target.chunks[index] = bytes;
+        target.received++;
+        target.size += length;
+        bufferedBytes += length;
+
+        if (target.received < target.count)
+            return null;
+
+        byte[] frame = new byte[target.size];
+        int position = 0;
+        for (byte[] part : target.chunks) {
+            System.arraycopy(part, 0, frame, position, part.length);
+            position += part.length;
+        }
+        for (int i = 0; i < groups.length; i++) {
+            if (groups[i] == target)
+                drop(i);
+        }
+        return PacketBuffer.wrap(frame);
+    }
+
+    /**
+     * @return the amount of bytes of incomplete frames
+     */
+    public synchronized int getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    private int oldestExcept(Group except) {
+        int oldest = -1;
+        for (int i = 0; i < groups.length; i++) {
+            Group group = groups[i];
+            if (group != null && group != except && (oldest < 0 || group.createdAt - groups[oldest].createdAt < 0))
+                oldest = i;
+        }
+        return oldest;
+    }
+
+    private void drop(int index) {
+        Group group = groups[index];
+        if (group != null) {
+            bufferedBytes -= group.size;
+            groups[index] = null;
+        }
+    }
+
+    private static final class Group {
+        private final int id;
+        private final int count;
+        private final byte[][] chunks;
+        private final long createdAt;
+        private int received = 0;
+        private int size = 0;
+
+        private Group(int id, int count, long createdAt) {
+            this.id = id;
+            this.count = count;
+            this.chunks = new byte[count][];
+            this.createdAt = createdAt;
+        }
+    }
+}
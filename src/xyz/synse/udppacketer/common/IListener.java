@@ -2,9 +2,24 @@ package xyz.synse.udppacketer.common;
 
 import xyz.synse.udppacketer.common.packets.Packet;
 
+import java.util.List;
+
 public interface IListener {
     void connected(Connection connection);
     void disconnected(Connection connection, String reason);
     void received(Packet packet, Connection connection);
     void sent(Packet packet, Connection connection);
+
+    /**
+     * Called once after a packet was broadcast to several connections. By default
+     * it calls {@link #sent(Packet, Connection)} for every recipient, override it to
+     * handle the broadcast as a whole.
+     *
+     * @param packet      the broadcast packet
+     * @param connections read-only list of the recipients
+     */
+    default void sentToAll(Packet packet, List<Connection> connections) {
+        for (Connection connection : connections)
+            sent(packet, connection);
+    }
 }
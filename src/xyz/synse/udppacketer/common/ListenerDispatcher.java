@@ -0,0 +1,263 @@
+package xyz.synse.udppacketer.common;
+
+import xyz.synse.udppacketer.common.utils.Constants;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs listener calls off the receiving thread while keeping them in order per {@link Connection}.
+ * <p>
+ * Connections are spread over {@link Constants#DISPATCH_STRIPES} stripes by their address. Every
+ * stripe has a bounded queue and is drained by at most one task of the underlying executor at a
+ * time, so the events of a connection run one after another in the order they were received,
+ * while different stripes run in parallel. When a queue is full the {@link OverflowPolicy} decides
+ * what happens to packet events. Connected and disconnected events are never dropped, so listeners
+ * always see both ends of a connection. After {@link #shutdown()} events run on the calling thread.
+ */
+public class ListenerDispatcher {
+    private static final int DRAIN_BATCH = 64;
+
+    private final ExecutorService executor;
+    private final Stripe[] stripes;
+    private final int queueSize;
+    private final OverflowPolicy policy;
+    private final LongAdder dropped = new LongAdder();
+
+    private ListenerDispatcher(ExecutorService executor, int queueSize, OverflowPolicy policy) {
+        if (queueSize < 1)
+            throw new IllegalArgumentException("Queue size must be at least 1: " + queueSize);
+
+        int stripeCount = Integer.highestOneBit(Math.max(2, Constants.DISPATCH_STRIPES) - 1) << 1;
+        this.executor = executor;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+            this.stripes[i] = new Stripe();
+        this.queueSize = queueSize;
+        this.policy = policy;
+    }
+
+    /**
+     * Creates a dispatcher running the stripes on a fixed amount of daemon threads.
+     *
+     * @param threads   the amount of threads
+     * @param queueSize the maximum amount of queued events per stripe
+     * @param policy    what to do when a queue is full
+     * @return the dispatcher
+     */
+    public static ListenerDispatcher striped(int threads, int queueSize, OverflowPolicy policy) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Thread count must be at least 1: " + threads);
+
+        AtomicInteger counter = new AtomicInteger();
+        return new ListenerDispatcher(Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "UDPPacketer dispatch #" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }), queueSize, policy);
+    }
+
+    /**
+     * Creates a dispatcher draining every busy stripe on its own virtual thread. On runtimes
+     * without virtual threads, see {@link #isVirtualThreadsSupported()}, a cached pool of
+     * daemon threads is used instead.
+     *
+     * @param queueSize the maximum amount of queued events per stripe
+     * @param policy    what to do when a queue is full
+     * @return the dispatcher
+     */
+    public static ListenerDispatcher virtualThreads(int queueSize, OverflowPolicy policy) {
+        ExecutorService executor = newVirtualThreadExecutor();
+        if (executor == null) {
+            AtomicInteger counter = new AtomicInteger();
+            executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "UDPPacketer dispatch #" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return new ListenerDispatcher(executor, queueSize, policy);
+    }
+
+    /**
+     * @return whether the runtime has virtual threads
+     */
+    public static boolean isVirtualThreadsSupported() {
+        ExecutorService executor = newVirtualThreadExecutor();
+        if (executor == null)
+            return false;
+
+        executor.shutdown();
+        return true;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        // Looked up reflectively so the library still runs on runtimes before virtual threads
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Queues an event of a connection, subject to the {@link OverflowPolicy}.
+     *
+     * @param connection the connection the event belongs to
+     * @param task       the listener calls
+     */
+    public void execute(Connection connection, Runnable task) {
+        enqueue(connection, task, false);
+    }
+
+    /**
+     * Queues a connected or disconnected event of a connection. It is neither dropped nor
+     * evicted by the {@link OverflowPolicy} and never waits for room, the queue may exceed
+     * its size by these events.
+     *
+     * @param connection the connection the event belongs to
+     * @param task       the listener calls
+     */
+    public void executeLifecycle(Connection connection, Runnable task) {
+        enqueue(connection, new LifecycleEvent(task), true);
+    }
+
+    private void enqueue(Connection connection, Runnable task, boolean lifecycle) {
+        int hash = connection.getSocketAddress().hashCode();
+        Stripe stripe = stripes[(hash ^ hash >>> 16) & (stripes.length - 1)];
+
+        boolean schedule;
+        synchronized (stripe) {
+            // A listener queueing an event of its own stripe must not wait for itself
+            while (!lifecycle && stripe.queue.size() >= queueSize && stripe.drainer != Thread.currentThread()) {
+                if (policy == OverflowPolicy.DROP_NEWEST || policy == OverflowPolicy.DROP_OLDEST && !evictOldest(stripe.queue)) {
+                    dropped.increment();
+                    return;
+                }
+                if (policy == OverflowPolicy.DROP_OLDEST) {
+                    dropped.increment();
+                    break;
+                }
+
+                try {
+                    stripe.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.increment();
+                    return;
+                }
+            }
+
+            stripe.queue.add(task);
+            schedule = !stripe.scheduled;
+            stripe.scheduled = true;
+        }
+
+        if (schedule)
+            submit(stripe);
+    }
+
+    /**
+     * @return the amount of events dropped because a queue was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the amount of events waiting to run
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                queued += stripe.queue.size();
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Stops the threads once the queued events ran. Events queued afterwards run on the calling thread.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Removes the oldest queued packet event, lifecycle events stay.
+     *
+     * @return false if only lifecycle events are queued
+     */
+    private static boolean evictOldest(ArrayDeque<Runnable> queue) {
+        for (Iterator<Runnable> iterator = queue.iterator(); iterator.hasNext(); ) {
+            if (!(iterator.next() instanceof LifecycleEvent)) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void submit(Stripe stripe) {
+        try {
+            executor.execute(stripe);
+        } catch (RejectedExecutionException e) {
+            stripe.run();
+        }
+    }
+
+    private static final class LifecycleEvent implements Runnable {
+        private final Runnable task;
+
+        private LifecycleEvent(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private final class Stripe implements Runnable {
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        private boolean scheduled = false;
+        private Thread drainer;
+
+        @Override
+        public void run() {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                Runnable task;
+                synchronized (this) {
+                    task = queue.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        drainer = null;
+                        return;
+                    }
+                    drainer = Thread.currentThread();
+                    notifyAll();
+                }
+
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+                }
+            }
+
+            // Give the other stripes a turn, the stripe stays scheduled so its order is kept
+            synchronized (this) {
+                drainer = null;
+            }
+            submit(this);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package xyz.synse.udppacketer.common;
+
+/**
+ * What a {@link ListenerDispatcher} does with a packet event when the queue of its connection is full.
+ * Connected and disconnected events are always queued and never evicted.
+ */
+public enum OverflowPolicy {
+    /**
+     * Drops the oldest queued packet event to make room, newer state wins.
+     */
+    DROP_OLDEST,
+    /**
+     * Drops the new event.
+     */
+    DROP_NEWEST,
+    /**
+     * Blocks the receiving thread until there is room, pushing back into the socket buffer.
+     */
+    BLOCK
+}
@@ -0,0 +1,127 @@
+package xyz.synse.udppacketer.common;
+
+import xyz.synse.udppacketer.common.utils.Constants;
+import xyz.synse.udppacketer.common.utils.TimingWheel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Spreads the datagrams of a {@link Connection} over time at the rate of its
+ * {@link CongestionControl} instead of sending them in bursts.
+ * <p>
+ * The pacer is a token bucket refilled at the current rate and holding at most one
+ * {@link Constants#TIMER_TICK} worth of bytes. Datagrams are sent right away while there
+ * are tokens, otherwise they are copied into a queue drained by the {@link TimingWheel}.
+ * Once {@link Constants#PACER_QUEUE_LIMIT} bytes are queued further datagrams are dropped,
+ * reliable ones are resent later. Control frames are not paced.
+ */
+public class Pacer {
+    private final Connection connection;
+    private final CongestionControl congestionControl;
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private int queuedBytes = 0;
+    private long dropped = 0;
+    private double tokens = 0;
+    private long lastRefill = System.nanoTime();
+    private boolean drainScheduled = false;
+
+    Pacer(Connection connection, long maxRate) {
+        this.connection = connection;
+        this.congestionControl = new CongestionControl(connection, maxRate);
+    }
+
+    public CongestionControl getCongestionControl() {
+        return congestionControl;
+    }
+
+    /**
+     * @return the amount of bytes waiting to be sent
+     */
+    public synchronized int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return the amount of datagrams dropped because the queue was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Sends a datagram now if the rate allows it, otherwise queues it.
+     *
+     * @param datagram the datagram, its position is left untouched
+     * @throws IOException if the datagram could not be sent
+     */
+    public synchronized void send(ByteBuffer datagram) throws IOException {
+        int length = datagram.remaining();
+        refill();
+        if (queue.isEmpty() && tokens >= 0) {
+            // Sending with a single token left puts the bucket in debt, which delays the next datagram
+            tokens -= length;
+            transmit(datagram);
+            return;
+        }
+
+        if (queuedBytes + length > Constants.PACER_QUEUE_LIMIT) {
+            dropped++;
+            connection.getMetrics().onSendQueueDrop();
+            return;
+        }
+
+        byte[] copy = new byte[length];
+        datagram.duplicate().get(copy);
+        queue.add(copy);
+        queuedBytes += length;
+        scheduleDrain();
+    }
+
+    private synchronized void drain() {
+        drainScheduled = false;
+        if (connection.isClosed()) {
+            queue.clear();
+            queuedBytes = 0;
+            return;
+        }
+
+        refill();
+        while (!queue.isEmpty() && tokens >= 0) {
+            byte[] datagram = queue.poll();
+            queuedBytes -= datagram.length;
+            tokens -= datagram.length;
+            try {
+                transmit(ByteBuffer.wrap(datagram));
+            } catch (IOException ignored) {
+                // Unreliable datagrams are lost anyway, reliable ones get resent
+            }
+        }
+
+        if (!queue.isEmpty())
+            scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled)
+            return;
+
+        drainScheduled = true;
+        long delay = tokens < 0 ? (long) Math.ceil(-tokens * 1000 / Math.max(1, congestionControl.getRate())) : 0;
+        TimingWheel.shared().schedule(this::drain, delay);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long rate = congestionControl.getRate();
+        double burst = Math.max(2 * Constants.FRAGMENT_SIZE, rate * Constants.TIMER_TICK / 1000.0);
+        tokens = Math.min(burst, tokens + rate * ((now - lastRefill) / 1e9));
+        lastRefill = now;
+    }
+
+    private void transmit(ByteBuffer datagram) throws IOException {
+        congestionControl.onSent(datagram.remaining());
+        connection.sendDirect(datagram);
+    }
+}
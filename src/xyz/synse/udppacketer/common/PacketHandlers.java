@@ -0,0 +1,144 @@
+package xyz.synse.udppacketer.common;
+
+import xyz.synse.udppacketer.common.packets.Packet;
+import xyz.synse.udppacketer.common.packets.PacketProtocol;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Handlers of received packets registered per packet class.
+ * <p>
+ * Once the protocol is frozen the handlers are looked up in an array indexed by the packet id
+ * the packet was received with, so a packet reaches its handlers without type tests. Before
+ * that, or for ids above {@link PacketProtocol#MAX_DENSE_ID}, they are looked up by class.
+ * Registering is copy on write and may happen at any time.
+ */
+public class PacketHandlers {
+    private static final BiConsumer<Packet, Connection>[] NONE = newArray(0);
+    @SuppressWarnings("unchecked")
+    private static final BiConsumer<Packet, Connection>[][] NOT_DENSE = (BiConsumer<Packet, Connection>[][]) new BiConsumer<?, ?>[0][];
+
+    private final PacketProtocol protocol;
+    private final ToIntFunction<Class<? extends Packet>> ids;
+    private final Map<Class<? extends Packet>, BiConsumer<Packet, Connection>[]> byClass = new IdentityHashMap<>();
+    private volatile Map<Class<? extends Packet>, BiConsumer<Packet, Connection>[]> byClassSnapshot = new IdentityHashMap<>();
+    private volatile BiConsumer<Packet, Connection>[][] byId;
+
+    /**
+     * @param protocol the protocol of the received packets
+     * @param ids      resolves the id packets of a class are received with
+     */
+    public PacketHandlers(PacketProtocol protocol, ToIntFunction<Class<? extends Packet>> ids) {
+        this.protocol = protocol;
+        this.ids = ids;
+    }
+
+    /**
+     * Registers a handler of a packet class.
+     *
+     * @param type    the packet class, registered in the protocol
+     * @param handler called with every received packet of the class
+     * @throws IllegalArgumentException if the class is not registered in the protocol
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Packet> void add(Class<T> type, BiConsumer<? super T, Connection> handler) {
+        ids.applyAsInt(type);
+
+        BiConsumer<Packet, Connection>[] handlers = byClass.getOrDefault(type, NONE);
+        handlers = Arrays.copyOf(handlers, handlers.length + 1);
+        handlers[handlers.length - 1] = (BiConsumer<Packet, Connection>) handler;
+        byClass.put(type, handlers);
+        changed();
+    }
+
+    /**
+     * Removes a handler registered with {@link #add(Class, BiConsumer)}.
+     *
+     * @param type    the packet class
+     * @param handler the handler
+     */
+    public synchronized void remove(Class<? extends Packet> type, BiConsumer<?, Connection> handler) {
+        BiConsumer<Packet, Connection>[] handlers = byClass.get(type);
+        if (handlers == null)
+            return;
+
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i] != handler)
+                continue;
+
+            BiConsumer<Packet, Connection>[] remaining = newArray(handlers.length - 1);
+            System.arraycopy(handlers, 0, remaining, 0, i);
+            System.arraycopy(handlers, i + 1, remaining, i, remaining.length - i);
+            if (remaining.length == 0)
+                byClass.remove(type);
+            else
+                byClass.put(type, remaining);
+            changed();
+            return;
+        }
+    }
+
+    /**
+     * Calls the handlers of a received packet.
+     *
+     * @param packetId   the id the packet was received with
+     * @param packet     the packet
+     * @param connection the sender
+     * @return whether the packet had handlers
+     */
+    public boolean handle(int packetId, Packet packet, Connection connection) {
+        BiConsumer<Packet, Connection>[] handlers;
+        BiConsumer<Packet, Connection>[][] byId = getById();
+        if (byId != null && byId != NOT_DENSE)
+            handlers = packetId >= 0 && packetId < byId.length ? byId[packetId] : null;
+        else
+            handlers = byClassSnapshot.get(packet.getClass());
+
+        if (handlers == null)
+            return false;
+
+        for (BiConsumer<Packet, Connection> handler : handlers)
+            handler.accept(packet, connection);
+        return true;
+    }
+
+    private BiConsumer<Packet, Connection>[][] getById() {
+        BiConsumer<Packet, Connection>[][] byId = this.byId;
+        if (byId == null && protocol.isFrozen()) {
+            synchronized (this) {
+                byId = this.byId;
+                if (byId == null)
+                    this.byId = byId = toDenseArray();
+            }
+        }
+        return byId;
+    }
+
+    @SuppressWarnings("unchecked")
+    private BiConsumer<Packet, Connection>[][] toDenseArray() {
+        int maxId = -1;
+        for (Class<? extends Packet> type : byClass.keySet())
+            maxId = Math.max(maxId, ids.applyAsInt(type));
+        if (maxId > PacketProtocol.MAX_DENSE_ID)
+            return NOT_DENSE;
+
+        BiConsumer<Packet, Connection>[][] array = (BiConsumer<Packet, Connection>[][]) new BiConsumer<?, ?>[maxId + 1][];
+        for (Map.Entry<Class<? extends Packet>, BiConsumer<Packet, Connection>[]> entry : byClass.entrySet())
+            array[ids.applyAsInt(entry.getKey())] = entry.getValue();
+        return array;
+    }
+
+    private void changed() {
+        byClassSnapshot = new IdentityHashMap<>(byClass);
+        byId = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BiConsumer<Packet, Connection>[] newArray(int length) {
+        return (BiConsumer<Packet, Connection>[]) new BiConsumer<?, ?>[length];
+    }
+}
@@ -0,0 +1,483 @@
+package xyz.synse.udppacketer.common;
+
+import xyz.synse.udppacketer.PacketerException;
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+import xyz.synse.udppacketer.common.transport.Transport;
+import xyz.synse.udppacketer.common.utils.Constants;
+import xyz.synse.udppacketer.common.utils.Framework;
+import xyz.synse.udppacketer.common.utils.TimingWheel;
+import xyz.synse.udppacketer.common.utils.WireFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reliable and ordered delivery of {@link Framework#RELIABLE} frames of a {@link Connection},
+ * sharing the transport with the unreliable traffic.
+ * <p>
+ * Every reliable frame carries a 16 bit sequence number. Receivers acknowledge with a
+ * cumulative ack (the next sequence they expect), a bitfield of the 32 sequences
+ * after it they already buffered and how long the ack was held, piggybacked with {@link Framework#FLAG_ACK} on outgoing
+ * frames or sent in an {@link Framework#ACK} frame after {@link Constants#ACK_DELAY}.
+ * <p>
+ * At most {@link Constants#RELIABLE_WINDOW} frames, and with pacing at most one
+ * {@link CongestionControl} window of bytes, are in flight, further frames wait in a backlog. Unacknowledged frames are resent after
+ * {@link RttEstimator#getRetransmitTimeout()}, doubling with every resend, or once right away when acknowledgements show three
+ * later frames arrived without it.
+ */
+public class ReliableChannel {
+    private static final int SEQUENCE_MASK = 0xFFFF;
+    private static final int FRAME_OVERHEAD = 4 + 11 + 2;
+
+    private final Connection connection;
+    private final PacketBuffer out;
+    private final int windowMask;
+
+    private final Entry[] sent;
+    private final ArrayDeque<Entry> backlog = new ArrayDeque<>();
+    private int nextSequence = 0;
+    private int oldestUnacked = 0;
+    private int inFlightBytes = 0;
+    private boolean retransmitScheduled = false;
+
+    private final byte[][] received;
+    private final int[] receivedFlags;
+    private PacketBuffer assembling;
+    private boolean discarding = false;
+    private int nextExpected = 0;
+    private long advancedAt = System.nanoTime();
+    private boolean ackPending = false;
+    private boolean ackScheduled = false;
+
+    ReliableChannel(Connection connection) {
+        int window = Integer.highestOneBit(Math.max(2, Math.min(Constants.RELIABLE_WINDOW, 0x8000)) - 1) << 1;
+        this.connection = connection;
+        this.windowMask = window - 1;
+        this.sent = new Entry[window];
+        this.received = new byte[window][];
+        this.receivedFlags = new int[window];
+
+        Transport transport = connection.getTransport();
+        this.out = transport != null && transport.isDirect()
+                ? PacketBuffer.allocateDirect(Constants.RECEIVE_BUFFER_SIZE)
+                : PacketBuffer.allocate(Constants.RECEIVE_BUFFER_SIZE);
+    }
+
+    /**
+     * Sends a frame body reliably, or queues it if the send window is full. Bodies not
+     * fitting into a {@link Constants#FRAGMENT_SIZE} frame are split into several frames
+     * flagged with {@link Framework#FLAG_FRAGMENT} but the last, which the receiver joins again.
+     *
+     * @param body the packet id and payload, its remaining bytes are copied
+     * @throws IOException       if the datagram could not be sent, it is resent later
+     * @throws PacketerException if the body is too large or the backlog is full
+     */
+    public void send(ByteBuffer body) throws IOException {
+        send(body, 0);
+    }
+
+    /**
+     * Sends a frame body reliably with additional header flags, see {@link #send(ByteBuffer)}.
+     *
+     * @param body  the packet id and payload, its remaining bytes are copied
+     * @param flags header flags set on every frame of the body
+     * @throws IOException       if the datagram could not be sent, it is resent later
+     * @throws PacketerException if the body is too large or the backlog is full
+     */
+    public synchronized void send(ByteBuffer body, int flags) throws IOException {
+        int length = body.remaining();
+        if (length > Constants.MAX_PACKET_SIZE)
+            throw new PacketerException("Packet of " + length + " bytes exceeds the maximum of " + Constants.MAX_PACKET_SIZE);
+
+        int chunkSize = Constants.FRAGMENT_SIZE - FRAME_OVERHEAD;
+        int parts = Math.max(1, (length + chunkSize - 1) / chunkSize);
+        int room = sent.length - getInFlight();
+        if (backlog.size() + Math.max(0, parts - room) > Constants.RELIABLE_BACKLOG)
+            throw new PacketerException("Reliable send backlog is full");
+
+        ByteBuffer chunk = body.duplicate();
+        for (int part = 0; part < parts; part++) {
+            int start = body.position() + part * chunkSize;
+            chunk.limit(Math.min(start + chunkSize, body.limit())).position(start);
+
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.get(bytes);
+            Entry entry = new Entry(bytes, (part < parts - 1 ? Framework.FLAG_FRAGMENT : 0) | flags);
+            if (!backlog.isEmpty() || !hasRoom())
+                backlog.add(entry);
+            else
+                transmitNew(entry);
+        }
+    }
+
+    /**
+     * @return the amount of sent but not yet acknowledged frames
+     */
+    public synchronized int getInFlight() {
+        return (nextSequence - oldestUnacked) & SEQUENCE_MASK;
+    }
+
+    /**
+     * @return the amount of frames waiting for room in the send window
+     */
+    public synchronized int getBacklog() {
+        return backlog.size();
+    }
+
+    /**
+     * @return whether received frames were not acknowledged yet
+     */
+    public synchronized boolean isAckPending() {
+        return ackPending;
+    }
+
+    /**
+     * Writes the acknowledgement of the received frames, to follow a header flagged
+     * with {@link Framework#FLAG_ACK}.
+     *
+     * @param out the buffer to write to
+     */
+    public synchronized void writeAck(PacketBuffer out) {
+        int bits = 0;
+        for (int i = 0; i < 32 && i + 1 < received.length; i++) {
+            if (received[(nextExpected + 1 + i) & windowMask] != null)
+                bits |= 1 << i;
+        }
+
+        // The sender takes the time the ack was held out of its round trip time sample
+        long held = System.nanoTime() - advancedAt;
+        out.writeShort(nextExpected);
+        out.writeInt(bits);
+        out.writeVarInt((int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(Math.max(0, held))));
+        ackPending = false;
+    }
+
+    /**
+     * Reads an acknowledgement written by {@link #writeAck(PacketBuffer)} and releases
+     * the acknowledged frames, sending waiting ones in their place.
+     *
+     * @param in the buffer to read from
+     * @throws IOException if the acknowledgement is truncated or malformed
+     */
+    public synchronized void readAck(PacketBuffer in) throws IOException {
+        int cumulative = in.readUnsignedShort();
+        int bits = in.readInt();
+        long held = TimeUnit.MICROSECONDS.toNanos(in.readVarInt());
+
+        Entry newest = null;
+        int acked = 0;
+        for (int sequence = oldestUnacked; sequence != nextSequence && diff(sequence, cumulative) < 0; sequence = (sequence + 1) & SEQUENCE_MASK) {
+            Entry entry = sent[sequence & windowMask];
+            if (entry != null) {
+                newest = entry;
+                acked += entry.body.length;
+            }
+            sent[sequence & windowMask] = null;
+        }
+
+        // Frames that were never resent, not even fast, give an unambiguous round trip time sample
+        if (newest != null && newest.retries == 0 && !newest.fastResent) {
+            long rtt = System.nanoTime() - newest.sentAt - held;
+            if (rtt > 0)
+                connection.onRttSample(rtt);
+        }
+        for (int i = 0; i < 32; i++) {
+            if ((bits & 1 << i) == 0)
+                continue;
+
+            int sequence = (cumulative + 1 + i) & SEQUENCE_MASK;
+            if (diff(sequence, oldestUnacked) >= 0 && diff(sequence, nextSequence) < 0) {
+                Entry entry = sent[sequence & windowMask];
+                if (entry != null)
+                    acked += entry.body.length;
+                sent[sequence & windowMask] = null;
+            }
+        }
+
+        inFlightBytes -= acked;
+        CongestionControl congestionControl = connection.getCongestionControl();
+        if (congestionControl != null && acked > 0)
+            congestionControl.onAcked(acked);
+
+        while (oldestUnacked != nextSequence && sent[oldestUnacked & windowMask] == null)
+            oldestUnacked = (oldestUnacked + 1) & SEQUENCE_MASK;
+
+        try {
+            // Three later frames arrived but the expected one did not, so it is most likely lost
+            // rather than reordered, resend it once without waiting for its timeout
+            Entry missing = oldestUnacked == cumulative ? sent[cumulative & windowMask] : null;
+            if (missing != null && !missing.fastResent && Integer.bitCount(bits) >= 3) {
+                missing.fastResent = true;
+                if (congestionControl != null)
+                    congestionControl.onLoss();
+                transmit(cumulative, missing);
+            }
+
+            while (!backlog.isEmpty() && hasRoom())
+                transmitNew(backlog.poll());
+        } catch (IOException ignored) {
+            // The frame is in flight and gets resent
+        }
+    }
+
+    /**
+     * Handles a received reliable frame. In order frames are passed to the receiver right
+     * away, followed by the buffered ones they unblock; early frames are buffered and
+     * duplicates are dropped. Frames the receiver fails to read are skipped.
+     * <p>
+     * The receiver is called without holding the lock of this channel, so listeners may send
+     * on any connection and cannot hold up acknowledgements and resends. Frames of a connection
+     * are received by a single thread, which keeps them in order.
+     *
+     * @param sequence the sequence number of the frame
+     * @param flags    the header flags of the frame
+     * @param body     the packet id and payload
+     * @param receiver reads the bodies in order
+     */
+    public void receive(int sequence, int flags, PacketBuffer body, Receiver receiver) {
+        PacketBuffer ready;
+        ArrayList<Delivery> unblocked = null;
+        synchronized (this) {
+            int distance = diff(sequence, nextExpected);
+            if (distance >= received.length)
+                return;
+
+            requestAck();
+            if (distance < 0)
+                return;
+
+            if (distance > 0) {
+                int slot = sequence & windowMask;
+                if (received[slot] == null) {
+                    byte[] bytes = new byte[body.remaining()];
+                    body.getBuffer().get(bytes);
+                    received[slot] = bytes;
+                    receivedFlags[slot] = flags;
+                }
+                return;
+            }
+
+            ready = complete(body, flags);
+            byte[] next;
+            while ((next = received[nextExpected & windowMask]) != null) {
+                int slot = nextExpected & windowMask;
+                received[slot] = null;
+                PacketBuffer joined = complete(PacketBuffer.wrap(next), receivedFlags[slot]);
+                if (joined != null) {
+                    if (unblocked == null)
+                        unblocked = new ArrayList<>();
+                    unblocked.add(new Delivery(joined, receivedFlags[slot]));
+                }
+            }
+        }
+
+        if (ready != null)
+            deliver(ready, flags, receiver);
+        if (unblocked != null) {
+            for (Delivery delivery : unblocked)
+                deliver(delivery.body, delivery.flags, receiver);
+        }
+    }
+
+    /**
+     * Advances past an in order frame, joining fragments.
+     *
+     * @return the body to pass to the receiver, or null while a split body is incomplete or discarded
+     */
+    private PacketBuffer complete(PacketBuffer body, int flags) {
+        nextExpected = (nextExpected + 1) & SEQUENCE_MASK;
+        advancedAt = System.nanoTime();
+
+        boolean more = (flags & Framework.FLAG_FRAGMENT) != 0;
+        if (!more && assembling == null && !discarding)
+            return body;
+
+        // Parts arrive in order, so joining them only needs to append
+        if (!discarding) {
+            if (assembling == null)
+                assembling = PacketBuffer.allocate(Constants.FRAGMENT_SIZE * 2);
+            if (assembling.position() + body.remaining() <= Constants.MAX_PACKET_SIZE) {
+                assembling.writeBytes(body.getBuffer());
+            } else {
+                discarding = true;
+            }
+        }
+        if (more)
+            return null;
+
+        PacketBuffer joined = discarding ? null : assembling.flip();
+        assembling = null;
+        discarding = false;
+        return joined;
+    }
+
+    private void deliver(PacketBuffer body, int flags, Receiver receiver) {
+        try {
+            receiver.receive(body, flags);
+        } catch (IOException e) {
+            connection.getMetrics().onDecodeError(e);
+        }
+    }
+
+    private void requestAck() {
+        ackPending = true;
+        if (ackScheduled)
+            return;
+
+        ackScheduled = true;
+        TimingWheel.shared().schedule(this::sendAck, Constants.ACK_DELAY);
+    }
+
+    private synchronized void sendAck() {
+        ackScheduled = false;
+        if (!ackPending || connection.isClosed())
+            return;
+
+        out.clear();
+        TimestampEcho timestamps = connection.getTimestamps();
+        connection.getWireFormat().writeHeader(out, Framework.ACK, Framework.FLAG_ACK | (timestamps != null ? Framework.FLAG_TIMESTAMP : 0));
+        if (timestamps != null)
+            timestamps.write(out);
+        writeAck(out);
+        try {
+            send(out);
+        } catch (IOException ignored) {
+            // The next received frame asks for an ack again
+        }
+    }
+
+    private void transmitNew(Entry entry) throws IOException {
+        int sequence = nextSequence;
+        nextSequence = (nextSequence + 1) & SEQUENCE_MASK;
+
+        sent[sequence & windowMask] = entry;
+        inFlightBytes += entry.body.length;
+        if (!retransmitScheduled)
+            scheduleRetransmit(getRetransmitTimeout(0));
+
+        transmit(sequence, entry);
+    }
+
+    private void transmit(int sequence, Entry entry) throws IOException {
+        boolean ack = ackPending;
+        out.clear();
+        TimestampEcho timestamps = connection.getTimestamps();
+        connection.getWireFormat().writeHeader(out, Framework.RELIABLE, (ack ? Framework.FLAG_ACK : 0) | (timestamps != null ? Framework.FLAG_TIMESTAMP : 0) | entry.flags);
+        if (timestamps != null)
+            timestamps.write(out);
+        if (ack)
+            writeAck(out);
+        out.writeShort(sequence);
+        out.writeBytes(entry.body);
+
+        entry.sentAt = System.nanoTime();
+        send(out);
+    }
+
+    private void send(PacketBuffer out) throws IOException {
+        connection.sendDatagram(out.flip().getBuffer());
+    }
+
+    private void scheduleRetransmit(long delay) {
+        retransmitScheduled = true;
+        TimingWheel.shared().schedule(this::retransmit, delay);
+    }
+
+    private synchronized void retransmit() {
+        retransmitScheduled = false;
+        if (connection.isClosed() || oldestUnacked == nextSequence)
+            return;
+
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        boolean lost = false;
+        for (int sequence = oldestUnacked; sequence != nextSequence; sequence = (sequence + 1) & SEQUENCE_MASK) {
+            Entry entry = sent[sequence & windowMask];
+            if (entry == null)
+                continue;
+
+            long due = entry.sentAt + TimeUnit.MILLISECONDS.toNanos(getRetransmitTimeout(entry.retries));
+            if (due - now <= 0) {
+                entry.retries++;
+                lost = true;
+                try {
+                    transmit(sequence, entry);
+                } catch (IOException ignored) {
+                }
+                due = entry.sentAt + TimeUnit.MILLISECONDS.toNanos(getRetransmitTimeout(entry.retries));
+            }
+            next = Math.min(next, due - now);
+        }
+
+        CongestionControl congestionControl = connection.getCongestionControl();
+        if (lost && congestionControl != null)
+            congestionControl.onLoss();
+
+        if (next != Long.MAX_VALUE)
+            scheduleRetransmit(Math.max(1, TimeUnit.NANOSECONDS.toMillis(next)));
+    }
+
+    /**
+     * @return whether the send window and the congestion window allow another frame in flight
+     */
+    private boolean hasRoom() {
+        if (getInFlight() >= sent.length)
+            return false;
+
+        // Queueing more than a congestion window in the pacer would only delay acknowledgements into resends
+        CongestionControl congestionControl = connection.getCongestionControl();
+        return congestionControl == null || inFlightBytes < congestionControl.getWindow();
+    }
+
+    /**
+     * @param retries how often the frame was resent already
+     * @return milliseconds to wait for an acknowledgement before resending
+     */
+    private long getRetransmitTimeout(int retries) {
+        return Math.min(Constants.RELIABLE_MAX_RTO, connection.getRtt().getRetransmitTimeout() << Math.min(retries, 16));
+    }
+
+    /**
+     * @return the signed distance between two sequence numbers, respecting wrap around
+     */
+    private static int diff(int a, int b) {
+        return (short) (a - b);
+    }
+
+    /**
+     * Reads the body of an in order reliable frame.
+     */
+    public interface Receiver {
+        /**
+         * @param body  the packet id and payload
+         * @param flags the header flags of the frame, of the last one if the body was split
+         */
+        void receive(PacketBuffer body, int flags) throws IOException;
+    }
+
+    private static final class Delivery {
+        private final PacketBuffer body;
+        private final int flags;
+
+        private Delivery(PacketBuffer body, int flags) {
+            this.body = body;
+            this.flags = flags;
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] body;
+        private final int flags;
+        private long sentAt;
+        private int retries = 0;
+        private boolean fastResent = false;
+
+        private Entry(byte[] body, int flags) {
+            this.body = body;
+            this.flags = flags;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package xyz.synse.udppacketer.common;
+
+import xyz.synse.udppacketer.common.utils.Constants;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time estimate of a {@link Connection} from {@link System#nanoTime()} samples.
+ * <p>
+ * The smoothed RTT and its variation follow RFC 6298: the first sample sets SRTT to it and
+ * RTTVAR to half of it, later ones update {@code RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|} and then
+ * {@code SRTT = 7/8 SRTT + 1/8 R}. The retransmit timeout is {@code SRTT + max(G, 4 RTTVAR)}
+ * with the {@link Constants#TIMER_TICK} as clock granularity G. Next to that the lowest sample
+ * of the last {@link Constants#MIN_RTT_WINDOW} milliseconds and the last
+ * {@link Constants#RTT_SAMPLES} samples are kept for percentiles. Until the first sample
+ * everything is based on {@link Constants#INITIAL_RTT}.
+ */
+public class RttEstimator {
+    private final long[] recent = new long[Constants.RTT_SAMPLES];
+    private int recentCount = 0;
+    private int recentNext = 0;
+    private long samples = 0;
+    private long smoothed = TimeUnit.MILLISECONDS.toNanos(Constants.INITIAL_RTT);
+    private long variation = smoothed / 2;
+    private long latest = -1;
+    private long min = -1;
+    private long minAt;
+
+    /**
+     * @param rtt the measured round trip time in nanoseconds, negative ones are ignored
+     */
+    public synchronized void onSample(long rtt) {
+        if (rtt < 0)
+            return;
+
+        if (samples++ == 0) {
+            smoothed = rtt;
+            variation = rtt / 2;
+        } else {
+            variation = (3 * variation + Math.abs(smoothed - rtt)) / 4;
+            smoothed = (7 * smoothed + rtt) / 8;
+        }
+        latest = rtt;
+
+        long now = System.nanoTime();
+        if (min < 0 || rtt <= min || now - minAt > TimeUnit.MILLISECONDS.toNanos(Constants.MIN_RTT_WINDOW)) {
+            min = rtt;
+            minAt = now;
+        }
+
+        recent[recentNext] = rtt;
+        recentNext = (recentNext + 1) % recent.length;
+        recentCount = Math.min(recentCount + 1, recent.length);
+    }
+
+    /**
+     * @return the amount of samples taken
+     */
+    public synchronized long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * @return the smoothed round trip time (SRTT) in nanoseconds
+     */
+    public synchronized long getSmoothed() {
+        return smoothed;
+    }
+
+    /**
+     * @return the round trip time variation (RTTVAR) in nanoseconds
+     */
+    public synchronized long getVariation() {
+        return variation;
+    }
+
+    /**
+     * @return the last sample in nanoseconds or -1 if there was none
+     */
+    public synchronized long getLatest() {
+        return latest;
+    }
+
+    /**
+     * @return the lowest sample of the last {@link Constants#MIN_RTT_WINDOW} milliseconds in nanoseconds or -1 if there was none
+     */
+    public synchronized long getMin() {
+        return min;
+    }
+
+    /**
+     * @param percentile the percentage, from 0 to 100
+     * @return the percentile of the last {@link Constants#RTT_SAMPLES} samples in nanoseconds or -1 if there was none
+     */
+    public synchronized long getRecentPercentile(double percentile) {
+        if (recentCount == 0)
+            return -1;
+
+        long[] sorted = Arrays.copyOf(recent, recentCount);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * @return milliseconds to wait for an acknowledgement before the first resend, between
+     * {@link Constants#RELIABLE_MIN_RTO} and {@link Constants#RELIABLE_MAX_RTO}
+     */
+    public synchronized long getRetransmitTimeout() {
+        long timeout = smoothed + Math.max(TimeUnit.MILLISECONDS.toNanos(Constants.TIMER_TICK), 4 * variation);
+        return Math.min(Constants.RELIABLE_MAX_RTO, Math.max(Constants.RELIABLE_MIN_RTO, TimeUnit.NANOSECONDS.toMillis(timeout)));
+    }
+
+    /**
+     * Returns how long a connection may stay silent before it is considered dead: long enough
+     * to miss {@link Constants#TIMEOUT_PROBES} RTT probes plus a retransmit timeout, at least
+     * {@link Constants#MIN_TIMEOUT} and at most {@link Constants#TIMEOUT}, which also applies
+     * until the first sample.
+     *
+     * @return the time out in milliseconds
+     */
+    public synchronized long getTimeout() {
+        if (samples == 0)
+            return Constants.TIMEOUT;
+
+        long timeout = Constants.RTT_TIMER * Constants.TIMEOUT_PROBES + getRetransmitTimeout();
+        return Math.min(Constants.TIMEOUT, Math.max(Constants.MIN_TIMEOUT, timeout));
+    }
+}
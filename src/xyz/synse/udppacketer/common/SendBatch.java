@@ -0,0 +1,109 @@
+package xyz.synse.udppacketer.common;
+
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+import xyz.synse.udppacketer.common.transport.Transport;
+import xyz.synse.udppacketer.common.utils.Framework;
+import xyz.synse.udppacketer.common.utils.WireFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Outgoing frames of a {@link Connection} waiting to be sent together in one
+ * {@link Framework#BATCH} datagram of at most {@link #getMtu()} bytes.
+ * <p>
+ * Frames are copied into the batch when they are added, so the caller can reuse
+ * its buffer right away. A batch that would overflow is sent first, frames larger
+ * than the MTU by themselves are sent as their own datagram and a batch holding a
+ * single frame is sent without the batch header. Frames keep their order.
+ */
+public class SendBatch {
+    private final Connection connection;
+    private final int mtu;
+    private final PacketBuffer buffer;
+    private int frames = 0;
+    private int firstFrameStart;
+    private int firstFrameEnd;
+
+    SendBatch(Connection connection, int mtu) {
+        if (mtu <= WireFormat.LEGACY.headerSize() + 1)
+            throw new IllegalArgumentException("MTU too small: " + mtu);
+
+        this.connection = connection;
+        this.mtu = mtu;
+        Transport transport = connection.getTransport();
+        this.buffer = transport != null && transport.isDirect() ? PacketBuffer.allocateDirect(mtu) : PacketBuffer.allocate(mtu);
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * @return the amount of frames waiting to be sent
+     */
+    public synchronized int getPending() {
+        return frames;
+    }
+
+    /**
+     * Adds a frame, sending the batch first if the frame does not fit anymore.
+     *
+     * @param frame the frame, its remaining bytes are copied and its position is left untouched
+     * @throws IOException if a datagram could not be sent
+     */
+    public synchronized void add(ByteBuffer frame) throws IOException {
+        int length = frame.remaining();
+        int entrySize = PacketBuffer.varIntSize(length) + length;
+        WireFormat format = connection.getWireFormat();
+        if (format.headerSize() + entrySize > mtu) {
+            flush();
+            send(frame.duplicate());
+            return;
+        }
+
+        if (frames > 0 && buffer.position() + entrySize > mtu)
+            flush();
+
+        if (frames == 0) {
+            buffer.clear();
+            format.writeHeader(buffer, Framework.BATCH, 0);
+        }
+
+        buffer.writeVarInt(length);
+        if (frames == 0)
+            firstFrameStart = buffer.position();
+        buffer.writeBytes(frame);
+        if (frames == 0)
+            firstFrameEnd = buffer.position();
+        frames++;
+    }
+
+    /**
+     * Sends the waiting frames, does nothing if there are none.
+     *
+     * @throws IOException if the datagram could not be sent
+     */
+    public synchronized void flush() throws IOException {
+        if (frames == 0)
+            return;
+
+        ByteBuffer data = buffer.getBuffer();
+        if (frames == 1) {
+            data.limit(firstFrameEnd).position(firstFrameStart);
+        } else {
+            data.flip();
+        }
+        frames = 0;
+
+        try {
+            send(data);
+        } finally {
+            data.clear();
+        }
+    }
+
+    private void send(ByteBuffer data) throws IOException {
+        connection.transmit(data);
+    }
+}
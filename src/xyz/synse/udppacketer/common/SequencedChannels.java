@@ -0,0 +1,61 @@
+package xyz.synse.udppacketer.common;
+
+import xyz.synse.udppacketer.common.utils.Constants;
+import xyz.synse.udppacketer.common.utils.Framework;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Sequence numbers of the {@link Framework#SEQUENCED} channels of a {@link Connection}.
+ * <p>
+ * Every channel numbers its packets with a 16 bit sequence. A received packet is only
+ * accepted if it is newer than the last accepted one of its channel, older and duplicate
+ * packets are dropped before they are deserialized. Lost packets are not resent.
+ */
+public class SequencedChannels {
+    private static final int SEQUENCE_MASK = 0xFFFF;
+    private static final int RECEIVED = 0x10000;
+
+    private final AtomicIntegerArray sent = new AtomicIntegerArray(Constants.SEQUENCED_CHANNELS);
+    // The last accepted sequence of each channel with the RECEIVED bit set, 0 until the first one
+    private final AtomicIntegerArray received = new AtomicIntegerArray(Constants.SEQUENCED_CHANNELS);
+
+    SequencedChannels() {
+    }
+
+    /**
+     * @param channel the channel
+     * @return whether the channel exists
+     */
+    public boolean isValid(int channel) {
+        return channel >= 0 && channel < sent.length();
+    }
+
+    /**
+     * @param channel the channel, see {@link #isValid(int)}
+     * @return the sequence of the next packet sent on the channel
+     */
+    public int next(int channel) {
+        return sent.getAndIncrement(channel) & SEQUENCE_MASK;
+    }
+
+    /**
+     * Accepts a received sequence if it is newer than the last accepted one of the channel.
+     *
+     * @param channel  the channel
+     * @param sequence the received sequence
+     * @return whether the packet should be delivered
+     */
+    public boolean accept(int channel, int sequence) {
+        if (!isValid(channel))
+            return false;
+
+        while (true) {
+            int last = received.get(channel);
+            if (last != 0 && (short) (sequence - (last & SEQUENCE_MASK)) <= 0)
+                return false;
+            if (received.compareAndSet(channel, last, sequence | RECEIVED))
+                return true;
+        }
+    }
+}
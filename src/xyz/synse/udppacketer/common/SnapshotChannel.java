@@ -0,0 +1,195 @@
+package xyz.synse.udppacketer.common;
+
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+import xyz.synse.udppacketer.common.packets.SnapshotPacket;
+import xyz.synse.udppacketer.common.utils.Constants;
+import xyz.synse.udppacketer.common.utils.Framework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Delta encoding of the {@link SnapshotPacket}s exchanged with a {@link Connection}.
+ * <p>
+ * Every packet id is its own stream of snapshots numbered with a 16 bit sequence. Both sides
+ * keep the last {@link Constants#SNAPSHOT_HISTORY} snapshots of a stream as the written bytes
+ * of each field. A {@link Framework#SNAPSHOT} frame names the baseline it was encoded against,
+ * which is the newest one the receiver acknowledged with a {@link Framework#SNAPSHOT_ACK}, and
+ * holds a bitmask of the fields that differ from it followed by only those fields. Without an
+ * acknowledged baseline all fields are sent. Snapshots older than the newest received one are
+ * dropped like on a sequenced channel, lost ones are not resent.
+ */
+public class SnapshotChannel {
+    private static final int SEQUENCE_MASK = 0xFFFF;
+    private static final ThreadLocal<PacketBuffer> FIELDS = ThreadLocal.withInitial(() -> PacketBuffer.allocate(Constants.RECEIVE_BUFFER_SIZE));
+
+    private final int historySize;
+    private final Map<Integer, Stream> outgoing = new HashMap<>();
+    private final Map<Integer, Stream> incoming = new HashMap<>();
+
+    SnapshotChannel() {
+        this.historySize = Integer.highestOneBit(Math.max(2, Math.min(Constants.SNAPSHOT_HISTORY, 0x4000)) - 1) << 1;
+    }
+
+    /**
+     * Writes a snapshot against the newest acknowledged baseline of its stream and remembers it.
+     *
+     * @param packetId the packet id, naming the stream
+     * @param packet   the snapshot
+     * @param out      the buffer to write the sequence, baseline, bitmask and changed fields to
+     * @throws IOException if a field fails to write itself
+     */
+    public synchronized void write(int packetId, SnapshotPacket packet, PacketBuffer out) throws IOException {
+        Stream stream = outgoing.computeIfAbsent(packetId, id -> new Stream(historySize));
+        int count = packet.getFieldCount();
+        PacketBuffer fields = FIELDS.get().clear();
+        int[] ends = new int[count];
+        for (int i = 0; i < count; i++) {
+            packet.writeField(i, fields);
+            ends[i] = fields.position();
+        }
+        byte[] data = fields.array();
+
+        Snapshot baseline = stream.acknowledged < 0 ? null : stream.get(stream.acknowledged);
+        if (baseline != null && baseline.ends.length != count)
+            baseline = null;
+
+        int sequence = stream.next;
+        stream.next = (sequence + 1) & SEQUENCE_MASK;
+        out.writeShort(sequence);
+        out.writeVarInt(baseline == null ? 0 : diff(sequence, baseline.sequence));
+
+        int maskStart = out.position();
+        for (int i = 0; i < (count + 7) / 8; i++)
+            out.writeByte(0);
+
+        for (int i = 0; i < count; i++) {
+            int start = i == 0 ? 0 : ends[i - 1];
+            if (baseline != null && baseline.fieldEquals(i, data, start, ends[i]))
+                continue;
+
+            ByteBuffer buffer = out.getBuffer();
+            buffer.put(maskStart + i / 8, (byte) (buffer.get(maskStart + i / 8) | 1 << (i & 7)));
+            out.writeBytes(data, start, ends[i] - start);
+        }
+
+        stream.put(new Snapshot(sequence, Arrays.copyOf(data, fields.position()), ends));
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(int, SnapshotPacket, PacketBuffer)}, taking the
+     * unchanged fields from its baseline, and remembers it.
+     *
+     * @param packetId the packet id, naming the stream
+     * @param packet   an empty snapshot to read into
+     * @param in       the buffer positioned after the packet id
+     * @return the sequence to acknowledge, or -1 if the snapshot is stale or its baseline is gone
+     * @throws IOException if the snapshot is malformed
+     */
+    public synchronized int read(int packetId, SnapshotPacket packet, PacketBuffer in) throws IOException {
+        int sequence = in.readUnsignedShort();
+        int distance = in.readVarInt();
+        Stream stream = incoming.computeIfAbsent(packetId, id -> new Stream(historySize));
+        if (stream.newest >= 0 && diff(sequence, stream.newest) <= 0)
+            return -1;
+
+        int count = packet.getFieldCount();
+        Snapshot baseline = null;
+        if (distance != 0) {
+            baseline = stream.get((sequence - distance) & SEQUENCE_MASK);
+            if (baseline == null || baseline.ends.length != count)
+                return -1;
+        }
+
+        int maskStart = in.position();
+        in.skip((count + 7) / 8);
+
+        PacketBuffer fields = FIELDS.get().clear();
+        int[] ends = new int[count];
+        for (int i = 0; i < count; i++) {
+            if ((in.getBuffer().get(maskStart + i / 8) & 1 << (i & 7)) != 0) {
+                // Fields are only delimited by how they read themselves
+                int start = in.position();
+                packet.readField(i, in);
+                ByteBuffer field = in.getBuffer().duplicate();
+                field.limit(in.position()).position(start);
+                fields.writeBytes(field);
+            } else {
+                if (baseline == null)
+                    throw new IOException("Snapshot without baseline misses field " + i);
+
+                int start = i == 0 ? 0 : baseline.ends[i - 1];
+                int length = baseline.ends[i] - start;
+                packet.readField(i, PacketBuffer.wrap(baseline.data, start, length));
+                fields.writeBytes(baseline.data, start, length);
+            }
+            ends[i] = fields.position();
+        }
+
+        stream.newest = sequence;
+        stream.put(new Snapshot(sequence, Arrays.copyOf(fields.array(), fields.position()), ends));
+        return sequence;
+    }
+
+    /**
+     * Makes an acknowledged snapshot the baseline of the following ones, unless a newer one is.
+     *
+     * @param packetId the packet id, naming the stream
+     * @param sequence the acknowledged sequence
+     */
+    public synchronized void acknowledge(int packetId, int sequence) {
+        Stream stream = outgoing.get(packetId);
+        if (stream == null || stream.get(sequence) == null)
+            return;
+
+        if (stream.acknowledged < 0 || diff(sequence, stream.acknowledged) > 0)
+            stream.acknowledged = sequence;
+    }
+
+    /**
+     * @return the signed distance between two sequence numbers, respecting wrap around
+     */
+    private static int diff(int a, int b) {
+        return (short) (a - b);
+    }
+
+    private static final class Stream {
+        private final Snapshot[] history;
+        private int next = 0;
+        private int acknowledged = -1;
+        private int newest = -1;
+
+        private Stream(int historySize) {
+            this.history = new Snapshot[historySize];
+        }
+
+        private Snapshot get(int sequence) {
+            Snapshot snapshot = history[sequence & (history.length - 1)];
+            return snapshot != null && snapshot.sequence == sequence ? snapshot : null;
+        }
+
+        private void put(Snapshot snapshot) {
+            history[snapshot.sequence & (history.length - 1)] = snapshot;
+        }
+    }
+
+    private static final class Snapshot {
+        private final int sequence;
+        private final byte[] data;
+        private final int[] ends;
+
+        private Snapshot(int sequence, byte[] data, int[] ends) {
+            this.sequence = sequence;
+            this.data = data;
+            this.ends = ends;
+        }
+
+        private boolean fieldEquals(int index, byte[] other, int start, int end) {
+            int ownStart = index == 0 ? 0 : ends[index - 1];
+            return Arrays.equals(data, ownStart, ends[index], other, start, end);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package xyz.synse.udppacketer.common;
+
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+import xyz.synse.udppacketer.common.utils.Framework;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Send timestamps and their echoes piggybacked on the frames of a {@link Connection}, so data
+ * traffic, reliable frames and their acknowledgements included, measures the round trip time
+ * without {@link Framework#RTT_REQUEST} probes.
+ * <p>
+ * Frames with {@link Framework#FLAG_TIMESTAMP} carry right after the header the send time as
+ * an int of microseconds of the sender's clock, the newest timestamp received from the peer as
+ * an int and, as a varint, the microseconds it was held before this frame was sent plus one, 0
+ * when nothing was received yet. An echo of an own timestamp gives {@code now - echo - held} as
+ * round trip time, which includes the time frames wait in a {@link SendBatch} or {@link Pacer}.
+ * Like TCP takes one sample per window, at most one sample per smoothed round trip time is taken.
+ */
+public class TimestampEcho {
+    private final Connection connection;
+    private int peerTimestamp;
+    private long receivedAt = -1;
+    private int lastEcho;
+    private long lastSampleAt;
+
+    TimestampEcho(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Writes the timestamp fields of a frame flagged with {@link Framework#FLAG_TIMESTAMP}.
+     *
+     * @param out the buffer positioned after the frame header
+     */
+    public void write(PacketBuffer out) {
+        long now = System.nanoTime();
+        int echo;
+        long held;
+        synchronized (this) {
+            echo = peerTimestamp;
+            held = receivedAt < 0 ? -1 : now - receivedAt;
+        }
+
+        out.writeInt(micros(now));
+        out.writeInt(echo);
+        out.writeVarInt(held < 0 ? 0 : (int) Math.min(Integer.MAX_VALUE - 1, TimeUnit.NANOSECONDS.toMicros(held)) + 1);
+    }
+
+    /**
+     * Reads the timestamp fields of a received frame and samples the round trip time from the echo.
+     *
+     * @param in the buffer positioned after the frame header
+     * @throws IOException if the fields are truncated
+     */
+    public void read(PacketBuffer in) throws IOException {
+        int timestamp = in.readInt();
+        int echo = in.readInt();
+        int held = in.readVarInt();
+
+        long now = System.nanoTime();
+        long rtt = -1;
+        synchronized (this) {
+            peerTimestamp = timestamp;
+            receivedAt = now;
+
+            if (held > 0 && echo != lastEcho && now - lastSampleAt >= connection.getRtt().getSmoothed()) {
+                // Int arithmetic keeps working when the microsecond clock wraps around
+                int micros = micros(now) - echo - (held - 1);
+                if (micros >= 0) {
+                    rtt = TimeUnit.MICROSECONDS.toNanos(micros);
+                    lastEcho = echo;
+                    lastSampleAt = now;
+                }
+            }
+        }
+
+        if (rtt >= 0)
+            connection.onRttSample(rtt);
+    }
+
+    /**
+     * Skips the timestamp fields of a frame of a connection without timestamps.
+     *
+     * @param in the buffer positioned after the frame header
+     * @throws IOException if the fields are truncated
+     */
+    public static void skip(PacketBuffer in) throws IOException {
+        in.skip(8);
+        in.readVarInt();
+    }
+
+    private static int micros(long nanos) {
+        return (int) TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
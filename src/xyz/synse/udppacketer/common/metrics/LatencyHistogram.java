@@ -0,0 +1,128 @@
+package xyz.synse.udppacketer.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values such as latencies.
+ * <p>
+ * Buckets are log-linear like in HdrHistogram: values below {@code 2^SUB_BUCKET_BITS} get a
+ * bucket each, above that every power of two is split into {@code 2^SUB_BUCKET_BITS} equally
+ * wide buckets, so the reported percentiles are within about 6% of the recorded values. Values
+ * above the highest trackable one are counted in the last bucket. Recording is one increment of
+ * an {@link AtomicLongArray} slot and two {@link LongAdder}s, readers see a consistent enough
+ * view without stopping writers.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long highestTrackableValue;
+    private final AtomicLongArray counts;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param highestTrackableValue the highest value told apart from larger ones
+     */
+    public LatencyHistogram(long highestTrackableValue) {
+        if (highestTrackableValue < SUB_BUCKETS)
+            throw new IllegalArgumentException("Highest trackable value must be at least " + SUB_BUCKETS);
+
+        this.highestTrackableValue = highestTrackableValue;
+        this.counts = new AtomicLongArray(index(highestTrackableValue) + 1);
+    }
+
+    /**
+     * Records a value, negative ones count as 0.
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(index(Math.min(value, highestTrackableValue)));
+        count.increment();
+        sum.add(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+    }
+
+    /**
+     * @return the amount of recorded values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean of the recorded values or 0 if there are none
+     */
+    public double getMean() {
+        long count = this.count.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * @return the highest recorded value or 0 if there are none
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values fall,
+     * as the highest value of its bucket.
+     *
+     * @param percentile the percentage, from 0 to 100
+     * @return the value or 0 if there are none
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] counts = new long[this.counts.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++)
+            total += counts[i] = this.counts.get(i);
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValue(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently may be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,118 @@
+package xyz.synse.udppacketer.common.metrics;
+
+import org.jetbrains.annotations.Nullable;
+import xyz.synse.udppacketer.PacketerException;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Registers {@link NetworkMetricsMXBean}s with the platform MBean server.
+ * <p>
+ * Names are {@code xyz.synse.udppacketer:type=<type>,name=<name>}, connections additionally
+ * get a {@code connection} key so tools show them below their server. A monitoring tool reads
+ * the attributes one by one, so a snapshot is reused for {@link #SNAPSHOT_REUSE} milliseconds
+ * instead of summing the queue depths of every connection again per attribute.
+ */
+public final class MetricsMBeans {
+    public static final String DOMAIN = "xyz.synse.udppacketer";
+    private static final long SNAPSHOT_REUSE = 100L;
+
+    private MetricsMBeans() {
+    }
+
+    /**
+     * Builds the name of a metrics MBean.
+     *
+     * @param type       the kind of owner, such as Server or Client
+     * @param name       the name of the owner
+     * @param connection the address of a connection or null for the owner itself
+     * @return the name
+     */
+    public static ObjectName objectName(String type, String name, @Nullable String connection) {
+        String objectName = DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name);
+        if (connection != null)
+            objectName += ",connection=" + ObjectName.quote(connection);
+
+        try {
+            return new ObjectName(objectName);
+        } catch (MalformedObjectNameException e) {
+            throw new PacketerException("Invalid MBean name " + objectName, e);
+        }
+    }
+
+    /**
+     * Registers metrics, replacing an MBean already registered under the name.
+     *
+     * @param name    the name, see {@link #objectName(String, String, String)}
+     * @param metrics takes a snapshot of the metrics
+     */
+    public static void register(ObjectName name, Supplier<MetricsSnapshot> metrics) {
+        CachedSnapshot cache = new CachedSnapshot(metrics);
+        NetworkMetricsMXBean view = (NetworkMetricsMXBean) Proxy.newProxyInstance(
+                NetworkMetricsMXBean.class.getClassLoader(),
+                new Class<?>[]{NetworkMetricsMXBean.class},
+                (proxy, method, args) -> {
+                    try {
+                        return method.invoke(cache.get(), args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(new StandardMBean(view, NetworkMetricsMXBean.class, true), name);
+        } catch (JMException e) {
+            throw new PacketerException("Failed to register MBean " + name, e);
+        }
+    }
+
+    /**
+     * Unregisters metrics, does nothing if they are not registered.
+     *
+     * @param name the name they were registered under
+     */
+    public static void unregister(@Nullable ObjectName name) {
+        if (name == null)
+            return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (InstanceNotFoundException ignored) {
+        } catch (JMException e) {
+            throw new PacketerException("Failed to unregister MBean " + name, e);
+        }
+    }
+
+    private static final class CachedSnapshot {
+        private final Supplier<MetricsSnapshot> metrics;
+        private volatile MetricsSnapshot snapshot;
+        private volatile long takenAt;
+
+        private CachedSnapshot(Supplier<MetricsSnapshot> metrics) {
+            this.metrics = metrics;
+        }
+
+        private MetricsSnapshot get() {
+            long now = System.nanoTime();
+            MetricsSnapshot snapshot = this.snapshot;
+            if (snapshot == null || now - takenAt > TimeUnit.MILLISECONDS.toNanos(SNAPSHOT_REUSE)) {
+                this.snapshot = snapshot = metrics.get();
+                this.takenAt = now;
+            }
+            return snapshot;
+        }
+    }
+}
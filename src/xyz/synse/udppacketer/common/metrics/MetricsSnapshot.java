@@ -0,0 +1,244 @@
+package xyz.synse.udppacketer.common.metrics;
+
+import org.jetbrains.annotations.Nullable;
+import xyz.synse.udppacketer.common.Connection;
+import xyz.synse.udppacketer.common.ListenerDispatcher;
+import xyz.synse.udppacketer.common.Pacer;
+import xyz.synse.udppacketer.common.ReliableChannel;
+import xyz.synse.udppacketer.common.SendBatch;
+
+/**
+ * Immutable copy of {@link NetworkMetrics} together with the current queue depths.
+ * <p>
+ * Counters are totals since the metrics were created. Queue depths are summed over the
+ * connections at the time of the snapshot: bytes waiting in a {@link Pacer}, frames waiting
+ * in a {@link SendBatch}, unacknowledged and backlogged frames of the {@link ReliableChannel}
+ * and listener events waiting in the {@link ListenerDispatcher}. Round trip times are in
+ * microseconds and only present in snapshots of top level metrics.
+ */
+public class MetricsSnapshot implements NetworkMetricsMXBean {
+    private final int connections;
+    private final long datagramsReceived;
+    private final long bytesReceived;
+    private final long datagramsSent;
+    private final long bytesSent;
+    private final long packetsReceived;
+    private final long packetsSent;
+    private final long droppedUnknownConnection;
+    private final long droppedMalformed;
+    private final long droppedTruncated;
+    private final long droppedSendQueue;
+    private final long droppedEvents;
+    private final long sendFailures;
+    private final long pacedBytes;
+    private final long batchedFrames;
+    private final long reliableInFlight;
+    private final long reliableBacklog;
+    private final long queuedEvents;
+    private final long rttSamples;
+    private final double rttMean;
+    private final long rttP50;
+    private final long rttP90;
+    private final long rttP99;
+    private final long rttP999;
+    private final long rttMax;
+
+    private MetricsSnapshot(NetworkMetrics metrics, Connection[] connections, @Nullable ListenerDispatcher dispatcher) {
+        this.connections = connections.length;
+        this.datagramsReceived = metrics.getDatagramsReceived();
+        this.bytesReceived = metrics.getBytesReceived();
+        this.datagramsSent = metrics.getDatagramsSent();
+        this.bytesSent = metrics.getBytesSent();
+        this.packetsReceived = metrics.getPacketsReceived();
+        this.packetsSent = metrics.getPacketsSent();
+        this.droppedUnknownConnection = metrics.getDroppedUnknownConnection();
+        this.droppedMalformed = metrics.getDroppedMalformed();
+        this.droppedTruncated = metrics.getDroppedTruncated();
+        this.droppedSendQueue = metrics.getDroppedSendQueue();
+        this.droppedEvents = dispatcher != null ? dispatcher.getDropped() : 0;
+        this.sendFailures = metrics.getSendFailures();
+        this.queuedEvents = dispatcher != null ? dispatcher.getQueued() : 0;
+
+        long pacedBytes = 0;
+        long batchedFrames = 0;
+        long reliableInFlight = 0;
+        long reliableBacklog = 0;
+        for (Connection connection : connections) {
+            Pacer pacer = connection.getPacer();
+            if (pacer != null)
+                pacedBytes += pacer.getQueuedBytes();
+            SendBatch batch = connection.getBatch();
+            if (batch != null)
+                batchedFrames += batch.getPending();
+            ReliableChannel channel = connection.getReliableChannelIfPresent();
+            if (channel != null) {
+                reliableInFlight += channel.getInFlight();
+                reliableBacklog += channel.getBacklog();
+            }
+        }
+        this.pacedBytes = pacedBytes;
+        this.batchedFrames = batchedFrames;
+        this.reliableInFlight = reliableInFlight;
+        this.reliableBacklog = reliableBacklog;
+
+        LatencyHistogram rtt = metrics.getRttHistogram();
+        this.rttSamples = rtt != null ? rtt.getCount() : 0;
+        this.rttMean = rtt != null ? rtt.getMean() : 0;
+        this.rttP50 = rtt != null ? rtt.getValueAtPercentile(50) : 0;
+        this.rttP90 = rtt != null ? rtt.getValueAtPercentile(90) : 0;
+        this.rttP99 = rtt != null ? rtt.getValueAtPercentile(99) : 0;
+        this.rttP999 = rtt != null ? rtt.getValueAtPercentile(99.9) : 0;
+        this.rttMax = rtt != null ? rtt.getMax() : 0;
+    }
+
+    /**
+     * Takes a snapshot.
+     *
+     * @param metrics     the counters
+     * @param connections the connections to sum the queue depths of
+     * @param dispatcher  the dispatcher running the listeners or null if they run on the receiving thread
+     * @return the snapshot
+     */
+    public static MetricsSnapshot of(NetworkMetrics metrics, Connection[] connections, @Nullable ListenerDispatcher dispatcher) {
+        return new MetricsSnapshot(metrics, connections, dispatcher);
+    }
+
+    @Override
+    public int getConnections() {
+        return connections;
+    }
+
+    @Override
+    public long getDatagramsReceived() {
+        return datagramsReceived;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public long getDatagramsSent() {
+        return datagramsSent;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    @Override
+    public long getDroppedUnknownConnection() {
+        return droppedUnknownConnection;
+    }
+
+    @Override
+    public long getDroppedMalformed() {
+        return droppedMalformed;
+    }
+
+    @Override
+    public long getDroppedTruncated() {
+        return droppedTruncated;
+    }
+
+    @Override
+    public long getDroppedSendQueue() {
+        return droppedSendQueue;
+    }
+
+    @Override
+    public long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures;
+    }
+
+    @Override
+    public long getPacedBytes() {
+        return pacedBytes;
+    }
+
+    @Override
+    public long getBatchedFrames() {
+        return batchedFrames;
+    }
+
+    @Override
+    public long getReliableInFlight() {
+        return reliableInFlight;
+    }
+
+    @Override
+    public long getReliableBacklog() {
+        return reliableBacklog;
+    }
+
+    @Override
+    public long getQueuedEvents() {
+        return queuedEvents;
+    }
+
+    @Override
+    public long getRttSamples() {
+        return rttSamples;
+    }
+
+    @Override
+    public double getRttMeanMicros() {
+        return rttMean;
+    }
+
+    @Override
+    public long getRttP50Micros() {
+        return rttP50;
+    }
+
+    @Override
+    public long getRttP90Micros() {
+        return rttP90;
+    }
+
+    @Override
+    public long getRttP99Micros() {
+        return rttP99;
+    }
+
+    @Override
+    public long getRttP999Micros() {
+        return rttP999;
+    }
+
+    @Override
+    public long getRttMaxMicros() {
+        return rttMax;
+    }
+
+    @Override
+    public String toString() {
+        return "connections=" + connections
+                + ", datagrams in/out=" + datagramsReceived + "/" + datagramsSent
+                + ", bytes in/out=" + bytesReceived + "/" + bytesSent
+                + ", packets in/out=" + packetsReceived + "/" + packetsSent
+                + ", dropped unknown/malformed/truncated/send queue/events=" + droppedUnknownConnection + "/" + droppedMalformed
+                + "/" + droppedTruncated + "/" + droppedSendQueue + "/" + droppedEvents
+                + ", send failures=" + sendFailures
+                + ", queued paced bytes/batched/in flight/backlog/events=" + pacedBytes + "/" + batchedFrames
+                + "/" + reliableInFlight + "/" + reliableBacklog + "/" + queuedEvents
+                + ", rtt p50/p99/p99.9/max=" + rttP50 + "/" + rttP99 + "/" + rttP999 + "/" + rttMax + "us";
+    }
+}
@@ -0,0 +1,191 @@
+package xyz.synse.udppacketer.common.metrics;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the traffic of a {@link xyz.synse.udppacketer.common.Connection} or of a whole
+ * server or client.
+ * <p>
+ * Counters are {@link LongAdder}s, so concurrent receive and send threads update them without
+ * contending. Metrics of a connection have the metrics of its server or client as parent and
+ * every event is counted in both, which keeps the totals of closed connections. Round trip
+ * times are only kept in a {@link LatencyHistogram} by metrics without a parent, a histogram
+ * per connection would cost too much memory on servers with many of them.
+ */
+public class NetworkMetrics {
+    private static final long HIGHEST_RTT = TimeUnit.SECONDS.toMicros(60);
+
+    @Nullable
+    private final NetworkMetrics parent;
+    @Nullable
+    private final LatencyHistogram rtt;
+    private final LongAdder datagramsReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder datagramsSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder droppedUnknownConnection = new LongAdder();
+    private final LongAdder droppedMalformed = new LongAdder();
+    private final LongAdder droppedTruncated = new LongAdder();
+    private final LongAdder droppedSendQueue = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+
+    /**
+     * Creates top level metrics with a round trip time histogram.
+     */
+    public NetworkMetrics() {
+        this.parent = null;
+        this.rtt = new LatencyHistogram(HIGHEST_RTT);
+    }
+
+    /**
+     * Creates the metrics of a connection, also counting into the given parent.
+     *
+     * @param parent the metrics of the server or client, or null to count only into these
+     */
+    public NetworkMetrics(@Nullable NetworkMetrics parent) {
+        this.parent = parent;
+        this.rtt = null;
+    }
+
+    /**
+     * @return the metrics this metrics also count into or null if these are top level
+     */
+    @Nullable
+    public NetworkMetrics getParent() {
+        return parent;
+    }
+
+    /**
+     * @return the round trip times in microseconds or null if these are the metrics of a connection
+     */
+    @Nullable
+    public LatencyHistogram getRttHistogram() {
+        return rtt;
+    }
+
+    public void onDatagramReceived(int bytes) {
+        datagramsReceived.increment();
+        bytesReceived.add(bytes);
+        if (parent != null)
+            parent.onDatagramReceived(bytes);
+    }
+
+    public void onDatagramSent(int bytes) {
+        datagramsSent.increment();
+        bytesSent.add(bytes);
+        if (parent != null)
+            parent.onDatagramSent(bytes);
+    }
+
+    public void onPacketReceived() {
+        packetsReceived.increment();
+        if (parent != null)
+            parent.onPacketReceived();
+    }
+
+    public void onPacketSent() {
+        packetsSent.increment();
+        if (parent != null)
+            parent.onPacketSent();
+    }
+
+    /**
+     * Counts a datagram of an address without a connection.
+     */
+    public void onUnknownConnection() {
+        droppedUnknownConnection.increment();
+        if (parent != null)
+            parent.onUnknownConnection();
+    }
+
+    /**
+     * Counts a datagram or frame dropped because it failed to decode. Reading past its
+     * end counts as truncated, everything else as malformed.
+     *
+     * @param cause the decoding failure
+     */
+    public void onDecodeError(IOException cause) {
+        if (cause instanceof EOFException)
+            droppedTruncated.increment();
+        else
+            droppedMalformed.increment();
+        if (parent != null)
+            parent.onDecodeError(cause);
+    }
+
+    /**
+     * Counts a datagram dropped because the send queue of a {@link xyz.synse.udppacketer.common.Pacer} was full.
+     */
+    public void onSendQueueDrop() {
+        droppedSendQueue.increment();
+        if (parent != null)
+            parent.onSendQueueDrop();
+    }
+
+    public void onSendFailure() {
+        sendFailures.increment();
+        if (parent != null)
+            parent.onSendFailure();
+    }
+
+    /**
+     * @param rtt a round trip time in microseconds
+     */
+    public void onRttSample(long rtt) {
+        if (this.rtt != null)
+            this.rtt.record(rtt);
+        if (parent != null)
+            parent.onRttSample(rtt);
+    }
+
+    public long getDatagramsReceived() {
+        return datagramsReceived.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getDatagramsSent() {
+        return datagramsSent.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    public long getDroppedUnknownConnection() {
+        return droppedUnknownConnection.sum();
+    }
+
+    public long getDroppedMalformed() {
+        return droppedMalformed.sum();
+    }
+
+    public long getDroppedTruncated() {
+        return droppedTruncated.sum();
+    }
+
+    public long getDroppedSendQueue() {
+        return droppedSendQueue.sum();
+    }
+
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+}
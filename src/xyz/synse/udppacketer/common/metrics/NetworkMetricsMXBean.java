@@ -0,0 +1,57 @@
+package xyz.synse.udppacketer.common.metrics;
+
+/**
+ * Management interface of the metrics of a server, client or connection, see {@link MetricsMBeans}.
+ * Every attribute is read from one {@link MetricsSnapshot}.
+ */
+public interface NetworkMetricsMXBean {
+    int getConnections();
+
+    long getDatagramsReceived();
+
+    long getBytesReceived();
+
+    long getDatagramsSent();
+
+    long getBytesSent();
+
+    long getPacketsReceived();
+
+    long getPacketsSent();
+
+    long getDroppedUnknownConnection();
+
+    long getDroppedMalformed();
+
+    long getDroppedTruncated();
+
+    long getDroppedSendQueue();
+
+    long getDroppedEvents();
+
+    long getSendFailures();
+
+    long getPacedBytes();
+
+    long getBatchedFrames();
+
+    long getReliableInFlight();
+
+    long getReliableBacklog();
+
+    long getQueuedEvents();
+
+    long getRttSamples();
+
+    double getRttMeanMicros();
+
+    long getRttP50Micros();
+
+    long getRttP90Micros();
+
+    long getRttP99Micros();
+
+    long getRttP999Micros();
+
+    long getRttMaxMicros();
+}
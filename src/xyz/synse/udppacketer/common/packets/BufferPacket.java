@@ -0,0 +1,36 @@
+package xyz.synse.udppacketer.common.packets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Base class of packets implementing the {@link PacketBuffer} based pair of
+ * {@link #write(PacketBuffer)} and {@link #read(PacketBuffer)} instead of the
+ * stream based one. The stream based methods adapt to them, so the packet can
+ * still be written to and read from plain streams.
+ */
+public abstract class BufferPacket extends Packet {
+    public BufferPacket() {
+        super();
+    }
+
+    @Override
+    public abstract void write(PacketBuffer out) throws IOException;
+
+    @Override
+    public abstract void read(PacketBuffer in) throws IOException;
+
+    @Override
+    public final void write(DataOutputStream out) throws IOException {
+        PacketBuffer buffer = PacketBuffer.allocate(64);
+        write(buffer);
+        buffer.flip();
+        out.write(buffer.getBuffer().array(), 0, buffer.remaining());
+    }
+
+    @Override
+    public final void read(DataInputStream in) throws IOException {
+        read(PacketBuffer.wrap(in.readAllBytes()));
+    }
+}
@@ -4,11 +4,38 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+/**
+ * Base class of all packets, implementing the stream based pair of
+ * {@link #write(DataOutputStream)} and {@link #read(DataInputStream)}.
+ * The buffer based methods are what the library calls, by default they adapt
+ * to the stream based ones. Packets encoding straight into the buffer extend
+ * {@link BufferPacket} instead.
+ */
 public abstract class Packet {
     public Packet() {
         super();
     }
 
+    /**
+     * Writes this packet into the given buffer.
+     *
+     * @param out the buffer to write to
+     * @throws IOException if the packet fails to write itself
+     */
+    public void write(PacketBuffer out) throws IOException {
+        write(out.asOutputStream());
+    }
+
+    /**
+     * Reads this packet from the given buffer.
+     *
+     * @param in the buffer to read from
+     * @throws IOException if the packet fails to read itself
+     */
+    public void read(PacketBuffer in) throws IOException {
+        read(in.asInputStream());
+    }
+
     public abstract void write(DataOutputStream out) throws IOException;
 
     public abstract void read(DataInputStream in) throws IOException;
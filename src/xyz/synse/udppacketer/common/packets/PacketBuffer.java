@@ -0,0 +1,476 @@
+package xyz.synse.udppacketer.common.packets;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable read/write buffer packets are encoded to and decoded from.
+ * It wraps a heap or direct {@link ByteBuffer} and offers primitive,
+ * varint and string helpers on top of it. Writes grow the buffer when
+ * needed, reads past the limit throw an {@link EOFException} just like
+ * {@link DataInputStream} does.
+ * <p>
+ * Packets still implementing the stream based API are served through
+ * {@link #asOutputStream()} and {@link #asInputStream()}, which are
+ * created once per buffer and reused afterwards.
+ */
+public class PacketBuffer {
+    private ByteBuffer buffer;
+    private DataOutputStream outputStream;
+    private DataInputStream inputStream;
+
+    protected PacketBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates a new heap buffer.
+     *
+     * @param capacity the initial capacity
+     * @return the new buffer, ready for writing
+     */
+    public static PacketBuffer allocate(int capacity) {
+        return new PacketBuffer(ByteBuffer.allocate(capacity));
+    }
+
+    /**
+     * Creates a new direct buffer.
+     *
+     * @param capacity the initial capacity
+     * @return the new buffer, ready for writing
+     */
+    public static PacketBuffer allocateDirect(int capacity) {
+        return new PacketBuffer(ByteBuffer.allocateDirect(capacity));
+    }
+
+    /**
+     * Wraps a region of a byte array without copying it.
+     *
+     * @param bytes  the backing array
+     * @param offset the offset of the first readable byte
+     * @param length the amount of readable bytes
+     * @return the new buffer, ready for reading
+     */
+    public static PacketBuffer wrap(byte[] bytes, int offset, int length) {
+        return new PacketBuffer(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Wraps a whole byte array without copying it.
+     *
+     * @param bytes the backing array
+     * @return the new buffer, ready for reading
+     */
+    public static PacketBuffer wrap(byte[] bytes) {
+        return wrap(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Returns the underlying buffer. Note that it is replaced when a write needs more room.
+     *
+     * @return the underlying buffer
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public PacketBuffer clear() {
+        buffer.clear();
+        return this;
+    }
+
+    public PacketBuffer flip() {
+        buffer.flip();
+        return this;
+    }
+
+    public int position() {
+        return buffer.position();
+    }
+
+    public PacketBuffer position(int position) {
+        buffer.position(position);
+        return this;
+    }
+
+    public int limit() {
+        return buffer.limit();
+    }
+
+    public PacketBuffer limit(int limit) {
+        buffer.limit(limit);
+        return this;
+    }
+
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    public boolean isDirect() {
+        return buffer.isDirect();
+    }
+
+    public boolean hasArray() {
+        return buffer.hasArray();
+    }
+
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    public int arrayOffset() {
+        return buffer.arrayOffset();
+    }
+
+    /**
+     * Makes sure at least the given amount of bytes can be written, growing the buffer if needed.
+     *
+     * @param bytes the amount of bytes about to be written
+     * @return this buffer
+     */
+    public PacketBuffer ensureWritable(int bytes) {
+        if (buffer.remaining() >= bytes)
+            return this;
+
+        int required = buffer.position() + bytes;
+        int capacity = Math.max(required, buffer.capacity() * 2);
+        ByteBuffer grown = buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+        return this;
+    }
+
+    /* Writing */
+
+    public PacketBuffer writeBoolean(boolean value) {
+        return writeByte(value ? 1 : 0);
+    }
+
+    public PacketBuffer writeByte(int value) {
+        ensureWritable(1).buffer.put((byte) value);
+        return this;
+    }
+
+    public PacketBuffer writeShort(int value) {
+        ensureWritable(2).buffer.putShort((short) value);
+        return this;
+    }
+
+    public PacketBuffer writeChar(int value) {
+        ensureWritable(2).buffer.putChar((char) value);
+        return this;
+    }
+
+    public PacketBuffer writeInt(int value) {
+        ensureWritable(4).buffer.putInt(value);
+        return this;
+    }
+
+    public PacketBuffer writeLong(long value) {
+        ensureWritable(8).buffer.putLong(value);
+        return this;
+    }
+
+    public PacketBuffer writeFloat(float value) {
+        ensureWritable(4).buffer.putFloat(value);
+        return this;
+    }
+
+    public PacketBuffer writeDouble(double value) {
+        ensureWritable(8).buffer.putDouble(value);
+        return this;
+    }
+
+    /**
+     * Writes an int as an unsigned LEB128 varint, taking 1 to 5 bytes.
+     * Negative values always take 5 bytes.
+     *
+     * @param value the value to write
+     * @return this buffer
+     */
+    public PacketBuffer writeVarInt(int value) {
+        ensureWritable(5);
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+        return this;
+    }
+
+    /**
+     * Returns the amount of bytes {@link #writeVarInt(int)} takes for the given value.
+     *
+     * @param value the value
+     * @return 1 to 5
+     */
+    public static int varIntSize(int value) {
+        return value == 0 ? 1 : (31 - Integer.numberOfLeadingZeros(value)) / 7 + 1;
+    }
+
+    /**
+     * Writes a long as an unsigned LEB128 varint, taking 1 to 10 bytes.
+     *
+     * @param value the value to write
+     * @return this buffer
+     */
+    public PacketBuffer writeVarLong(long value) {
+        ensureWritable(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+        return this;
+    }
+
+    /**
+     * Writes a string as a varint byte length followed by its UTF-8 bytes.
+     *
+     * @param value the string to write
+     * @return this buffer
+     */
+    public PacketBuffer writeString(String value) {
+        int length = value.length();
+        int utfLength = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                utfLength++;
+            } else if (c < 0x800) {
+                utfLength += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                utfLength += 4;
+                i++;
+            } else {
+                utfLength += 3;
+            }
+        }
+
+        writeVarInt(utfLength);
+        ensureWritable(utfLength);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                // Lone surrogates are written as-is, the decoder replaces them
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return this;
+    }
+
+    public PacketBuffer writeBytes(byte[] bytes) {
+        return writeBytes(bytes, 0, bytes.length);
+    }
+
+    public PacketBuffer writeBytes(byte[] bytes, int offset, int length) {
+        ensureWritable(length).buffer.put(bytes, offset, length);
+        return this;
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer, leaving its position untouched.
+     *
+     * @param bytes the bytes to write
+     * @return this buffer
+     */
+    public PacketBuffer writeBytes(ByteBuffer bytes) {
+        int position = bytes.position();
+        ensureWritable(bytes.remaining()).buffer.put(bytes);
+        bytes.position(position);
+        return this;
+    }
+
+    /* Reading */
+
+    public boolean readBoolean() throws EOFException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws EOFException {
+        return ensureReadable(1).get();
+    }
+
+    public int readUnsignedByte() throws EOFException {
+        return readByte() & 0xFF;
+    }
+
+    public short readShort() throws EOFException {
+        return ensureReadable(2).getShort();
+    }
+
+    public int readUnsignedShort() throws EOFException {
+        return readShort() & 0xFFFF;
+    }
+
+    public char readChar() throws EOFException {
+        return ensureReadable(2).getChar();
+    }
+
+    public int readInt() throws EOFException {
+        return ensureReadable(4).getInt();
+    }
+
+    public long readLong() throws EOFException {
+        return ensureReadable(8).getLong();
+    }
+
+    public float readFloat() throws EOFException {
+        return ensureReadable(4).getFloat();
+    }
+
+    public double readDouble() throws EOFException {
+        return ensureReadable(8).getDouble();
+    }
+
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("VarInt is too long");
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("VarLong is too long");
+    }
+
+    public String readString() throws IOException {
+        int length = readVarInt();
+        if (length < 0)
+            throw new IOException("Negative string length " + length);
+
+        ensureReadable(length);
+        if (buffer.hasArray()) {
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void readBytes(byte[] bytes) throws EOFException {
+        readBytes(bytes, 0, bytes.length);
+    }
+
+    public void readBytes(byte[] bytes, int offset, int length) throws EOFException {
+        ensureReadable(length).get(bytes, offset, length);
+    }
+
+    public void skip(int bytes) throws EOFException {
+        ensureReadable(bytes).position(buffer.position() + bytes);
+    }
+
+    private ByteBuffer ensureReadable(int bytes) throws EOFException {
+        if (buffer.remaining() < bytes)
+            throw new EOFException("Tried to read " + bytes + " bytes with only " + buffer.remaining() + " remaining");
+        return buffer;
+    }
+
+    /* Stream adapters */
+
+    /**
+     * Returns a stream writing into this buffer, used for packets implementing
+     * {@link Packet#write(DataOutputStream)}. The stream is created once and reused.
+     *
+     * @return the output stream view of this buffer
+     */
+    public DataOutputStream asOutputStream() {
+        if (outputStream == null)
+            outputStream = new DataOutputStream(new BufferOutputStream());
+        return outputStream;
+    }
+
+    /**
+     * Returns a stream reading from this buffer, used for packets implementing
+     * {@link Packet#read(DataInputStream)}. The stream is created once and reused.
+     *
+     * @return the input stream view of this buffer
+     */
+    public DataInputStream asInputStream() {
+        if (inputStream == null)
+            inputStream = new DataInputStream(new BufferInputStream());
+        return inputStream;
+    }
+
+    private final class BufferOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writeBytes(b, off, len);
+        }
+    }
+
+    private final class BufferInputStream extends InputStream {
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+
+            int read = Math.min(len, buffer.remaining());
+            buffer.get(b, off, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -1,5 +1,12 @@
 package xyz.synse.udppacketer.common.packets;
 
+import sun.reflect.ReflectionFactory;
+import xyz.synse.udppacketer.PacketerException;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.function.Supplier;
+
 /**
  * Represents a definition of a packet with various
  * information about it, such as its id, class and
@@ -10,10 +17,35 @@ package xyz.synse.udppacketer.common.packets;
 public class PacketDefinition<T extends Packet> {
     private final int id;
     private final Class<T> packetClass;
+    private final Supplier<T> factory;
 
+    /**
+     * Creates a definition whose factory is derived from the packet class.
+     * The packet is allocated the way serialization does it, without
+     * running any of its own constructors or field initializers. The
+     * constructor for this is resolved once, here. Pass a factory such as
+     * {@code MyPacket::new} to the other constructor to construct packets
+     * normally instead.
+     *
+     * @param id          the id of the packet
+     * @param packetClass the class of the packet
+     * @throws IllegalArgumentException If no factory can be built for the packet class.
+     */
     public PacketDefinition(final int id, final Class<T> packetClass) {
+        this(id, packetClass, createFactory(packetClass));
+    }
+
+    /**
+     * Creates a definition with a user supplied factory.
+     *
+     * @param id          the id of the packet
+     * @param packetClass the class of the packet
+     * @param factory     the factory creating empty instances of the packet
+     */
+    public PacketDefinition(final int id, final Class<T> packetClass, final Supplier<T> factory) {
         this.id = id;
         this.packetClass = packetClass;
+        this.factory = factory;
     }
 
     /**
@@ -33,4 +65,42 @@ public class PacketDefinition<T extends Packet> {
     public Class<T> getPacketClass() {
         return this.packetClass;
     }
+
+    /**
+     * Returns the factory used to create instances of the packet.
+     *
+     * @return the factory of the packet
+     */
+    public Supplier<T> getFactory() {
+        return this.factory;
+    }
+
+    /**
+     * Creates a new, not yet read, instance of the packet.
+     *
+     * @return the new packet instance
+     */
+    public T newInstance() {
+        return this.factory.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Packet> Supplier<T> createFactory(final Class<T> packetClass) {
+        try {
+            return reflectiveFactory(packetClass, (Constructor<T>) ReflectionFactory.getReflectionFactory()
+                    .newConstructorForSerialization(packetClass, Packet.class.getDeclaredConstructor()));
+        } catch (NoSuchMethodException | RuntimeException e) {
+            throw new IllegalArgumentException("Could not create a factory for packet " + packetClass.getName(), e);
+        }
+    }
+
+    private static <T extends Packet> Supplier<T> reflectiveFactory(final Class<T> packetClass, final Constructor<T> constructor) {
+        return () -> {
+            try {
+                return constructor.newInstance();
+            } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                throw new PacketerException("Failed to create packet " + packetClass.getName(), e);
+            }
+        };
+    }
 }
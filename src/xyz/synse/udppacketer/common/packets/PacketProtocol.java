@@ -1,24 +1,61 @@
 package xyz.synse.udppacketer.common.packets;
 
-import sun.reflect.ReflectionFactory;
-
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.function.Supplier;
 
 public abstract class PacketProtocol {
+    /**
+     * Highest packet id that is still stored in the dense lookup arrays of a frozen protocol.
+     * Protocols using larger ids keep working, they just fall back to the hash maps for id lookups.
+     */
+    public static final int MAX_DENSE_ID = 0xFFFF;
+
     private final Map<Integer, PacketDefinition<? extends Packet>> serverbound = new HashMap<>();
     private final Map<Integer, PacketDefinition<? extends Packet>> clientbound = new HashMap<>();
 
     private final Map<Class<? extends Packet>, Integer> clientboundIds = new IdentityHashMap<>();
     private final Map<Class<? extends Packet>, Integer> serverboundIds = new IdentityHashMap<>();
 
+    private volatile boolean frozen = false;
+    private byte[] compressionDictionary;
+    private PacketDefinition<?>[] serverboundById;
+    private PacketDefinition<?>[] clientboundById;
+    private final ClassValue<PacketDefinition<?>> serverboundByClass = new DefinitionByClass(this.serverbound, this.serverboundIds);
+    private final ClassValue<PacketDefinition<?>> clientboundByClass = new DefinitionByClass(this.clientbound, this.clientboundIds);
+
+    /**
+     * Freezes this protocol. After that no packets can be registered or cleared and the
+     * id and class lookups used on the send and receive paths are served from a flat array
+     * indexed by packet id and a {@link ClassValue}, without boxing or hashing.
+     * Calling this method on an already frozen protocol does nothing.
+     */
+    public final synchronized void freeze() {
+        if (this.frozen)
+            return;
+
+        this.serverboundById = toDenseArray(this.serverbound);
+        this.clientboundById = toDenseArray(this.clientbound);
+        this.frozen = true;
+    }
+
+    /**
+     * Returns whether this protocol was frozen by {@link #freeze()}.
+     *
+     * @return true if the protocol is frozen
+     */
+    public final boolean isFrozen() {
+        return this.frozen;
+    }
+
     /**
      * Clears all currently registered com.bananikxenos.sourserver.packets.
+     *
+     * @throws IllegalStateException If the protocol is frozen.
      */
     public final void clearPackets() {
+        checkNotFrozen();
         this.serverbound.clear();
         this.clientbound.clear();
         this.clientboundIds.clear();
@@ -37,6 +74,17 @@ public abstract class PacketProtocol {
         this.registerClientbound(id, packet);
     }
 
+    /**
+     * Registers a packet to this protocol as both serverbound and clientbound.
+     *
+     * @param id      Id to register the packet to.
+     * @param packet  Packet to register.
+     * @param factory Factory creating empty instances of the packet.
+     */
+    public final <T extends Packet> void register(int id, Class<T> packet, Supplier<T> factory) {
+        this.register(new PacketDefinition<>(id, packet, factory));
+    }
+
     /**
      * Registers a packet to this protocol as both serverbound and clientbound.
      *
@@ -59,12 +107,24 @@ public abstract class PacketProtocol {
         this.registerServerbound(new PacketDefinition<>(id, packet));
     }
 
+    /**
+     * Registers a serverbound packet to this protocol.
+     *
+     * @param id      Id to register the packet to.
+     * @param packet  Packet to register.
+     * @param factory Factory creating empty instances of the packet.
+     */
+    public final <T extends Packet> void registerServerbound(int id, Class<T> packet, Supplier<T> factory) {
+        this.registerServerbound(new PacketDefinition<>(id, packet, factory));
+    }
+
     /**
      * Registers a serverbound packet to this protocol.
      *
      * @param definition The packet definition.
      */
     public final void registerServerbound(PacketDefinition<? extends Packet> definition) {
+        checkNotFrozen();
         this.serverbound.put(definition.getId(), definition);
         this.serverboundIds.put(definition.getPacketClass(), definition.getId());
     }
@@ -79,34 +139,80 @@ public abstract class PacketProtocol {
         this.registerClientbound(new PacketDefinition<>(id, packet));
     }
 
+    /**
+     * Registers a clientbound packet to this protocol.
+     *
+     * @param id      Id to register the packet to.
+     * @param packet  Packet to register.
+     * @param factory Factory creating empty instances of the packet.
+     */
+    public final <T extends Packet> void registerClientbound(int id, Class<T> packet, Supplier<T> factory) {
+        this.registerClientbound(new PacketDefinition<>(id, packet, factory));
+    }
+
     /**
      * Registers a clientbound packet to this protocol.
      *
      * @param definition The packet definition.
      */
     public final void registerClientbound(PacketDefinition<? extends Packet> definition) {
+        checkNotFrozen();
         this.clientbound.put(definition.getId(), definition);
         this.clientboundIds.put(definition.getPacketClass(), definition.getId());
     }
 
+    /**
+     * Creates a new empty instance of a clientbound packet with the given id.
+     *
+     * @param id Id of the packet to create.
+     * @return The created packet.
+     * @throws IllegalArgumentException If the packet ID is not registered.
+     */
+    public Packet newClientboundPacket(int id) {
+        PacketDefinition<?> definition = getClientboundDefinition(id);
+        if (definition == null) {
+            throw new IllegalArgumentException("Invalid packet id: " + id);
+        }
+
+        return definition.newInstance();
+    }
+
     /**
      * Creates a new instance of a clientbound packet with the given id and read the clientbound input.
      *
      * @param id Id of the packet to create.
+     * @param in Buffer to read the packet from.
      * @return The created packet.
      * @throws IOException if there was an IO error whilst reading the packet.
      * @throws IllegalArgumentException If the packet ID is not registered.
      */
-    public Packet createClientboundPacket(int id, DataInputStream in) throws IOException, InstantiationException, IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-        PacketDefinition<?> definition = this.clientbound.get(id);
+    public Packet createClientboundPacket(int id, PacketBuffer in) throws IOException {
+        PacketDefinition<?> definition = getClientboundDefinition(id);
         if (definition == null) {
             throw new IllegalArgumentException("Invalid packet id: " + id);
         }
 
-        final Class<?> myClass = definition.getPacketClass();
-        final ReflectionFactory reflection = ReflectionFactory.getReflectionFactory();
-        final Constructor<Packet> constructor = (Constructor<Packet>) reflection.newConstructorForSerialization(myClass, Packet.class.getDeclaredConstructor(new Class[0]));
-        final Packet packet = constructor.newInstance(new Object[0]);
+        final Packet packet = definition.newInstance();
+        packet.read(in);
+
+        return packet;
+    }
+
+    /**
+     * Creates a new instance of a clientbound packet with the given id and read the clientbound input.
+     *
+     * @param id Id of the packet to create.
+     * @return The created packet.
+     * @throws IOException if there was an IO error whilst reading the packet.
+     * @throws IllegalArgumentException If the packet ID is not registered.
+     */
+    public Packet createClientboundPacket(int id, DataInputStream in) throws IOException {
+        PacketDefinition<?> definition = getClientboundDefinition(id);
+        if (definition == null) {
+            throw new IllegalArgumentException("Invalid packet id: " + id);
+        }
+
+        final Packet packet = definition.newInstance();
         packet.read(in);
 
         return packet;
@@ -120,6 +226,15 @@ public abstract class PacketProtocol {
      * @throws IllegalArgumentException If the packet is not registered.
      */
     public int getClientboundId(Class<? extends Packet> packetClass) {
+        if (this.frozen) {
+            PacketDefinition<?> definition = this.clientboundByClass.get(packetClass);
+            if (definition == null) {
+                throw new IllegalArgumentException("Unregistered clientbound packet class: " + packetClass.getName());
+            }
+
+            return definition.getId();
+        }
+
         Integer packetId = this.clientboundIds.get(packetClass);
         if(packetId == null) {
             throw new IllegalArgumentException("Unregistered clientbound packet class: " + packetClass.getName());
@@ -146,7 +261,7 @@ public abstract class PacketProtocol {
      * @throws IllegalArgumentException If the packet ID is not registered.
      */
     public Class<? extends Packet> getClientboundClass(int id) {
-        PacketDefinition<?> definition = this.clientbound.get(id);
+        PacketDefinition<?> definition = getClientboundDefinition(id);
         if (definition == null) {
             throw new IllegalArgumentException("Invalid packet id: " + id);
         }
@@ -154,6 +269,43 @@ public abstract class PacketProtocol {
         return definition.getPacketClass();
     }
 
+    /**
+     * Creates a new empty instance of a serverbound packet with the given id.
+     *
+     * @param id Id of the packet to create.
+     * @return The created packet.
+     * @throws IllegalArgumentException If the packet ID is not registered.
+     */
+    public Packet newServerboundPacket(int id) {
+        PacketDefinition<?> definition = getServerboundDefinition(id);
+        if (definition == null) {
+            throw new IllegalArgumentException("Invalid packet id: " + id);
+        }
+
+        return definition.newInstance();
+    }
+
+    /**
+     * Creates a new instance of a serverbound packet with the given id and read the serverbound input.
+     *
+     * @param id Id of the packet to create.
+     * @param in Buffer to read the packet from.
+     * @return The created packet.
+     * @throws IOException if there was an IO error whilst reading the packet.
+     * @throws IllegalArgumentException If the packet ID is not registered.
+     */
+    public Packet createServerboundPacket(int id, PacketBuffer in) throws IOException {
+        PacketDefinition<?> definition = getServerboundDefinition(id);
+        if (definition == null) {
+            throw new IllegalArgumentException("Invalid packet id: " + id);
+        }
+
+        final Packet packet = definition.newInstance();
+        packet.read(in);
+
+        return packet;
+    }
+
     /**
      * Creates a new instance of a serverbound packet with the given id and read the serverbound input.
      *
@@ -162,16 +314,13 @@ public abstract class PacketProtocol {
      * @throws IOException if there was an IO error whilst reading the packet.
      * @throws IllegalArgumentException If the packet ID is not registered.
      */
-    public Packet createServerboundPacket(int id, DataInputStream in) throws IOException, InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException {
-        PacketDefinition<?> definition = this.serverbound.get(id);
+    public Packet createServerboundPacket(int id, DataInputStream in) throws IOException {
+        PacketDefinition<?> definition = getServerboundDefinition(id);
         if (definition == null) {
             throw new IllegalArgumentException("Invalid packet id: " + id);
         }
 
-        final Class<?> myClass = definition.getPacketClass();
-        final ReflectionFactory reflection = ReflectionFactory.getReflectionFactory();
-        final Constructor<Packet> constructor = (Constructor<Packet>) reflection.newConstructorForSerialization(myClass, Packet.class.getDeclaredConstructor(new Class[0]));
-        final Packet packet = constructor.newInstance(new Object[0]);
+        final Packet packet = definition.newInstance();
         packet.read(in);
 
         return packet;
@@ -185,6 +334,15 @@ public abstract class PacketProtocol {
      * @throws IllegalArgumentException If the packet is not registered.
      */
     public int getServerboundId(Class<? extends Packet> packetClass) {
+        if (this.frozen) {
+            PacketDefinition<?> definition = this.serverboundByClass.get(packetClass);
+            if (definition == null) {
+                throw new IllegalArgumentException("Unregistered serverbound packet class: " + packetClass.getName());
+            }
+
+            return definition.getId();
+        }
+
         Integer packetId = this.serverboundIds.get(packetClass);
         if(packetId == null) {
             throw new IllegalArgumentException("Unregistered serverbound packet class: " + packetClass.getName());
@@ -211,11 +369,88 @@ public abstract class PacketProtocol {
      * @throws IllegalArgumentException If the packet ID is not registered.
      */
     public Class<? extends Packet> getServerboundClass(int id) {
-        PacketDefinition<?> definition = this.serverbound.get(id);
+        PacketDefinition<?> definition = getServerboundDefinition(id);
         if (definition == null) {
             throw new IllegalArgumentException("Invalid packet id: " + id);
         }
 
         return definition.getPacketClass();
     }
+
+    private PacketDefinition<?> getClientboundDefinition(int id) {
+        if (this.frozen) {
+            PacketDefinition<?>[] byId = this.clientboundById;
+            if (byId != null)
+                return id >= 0 && id < byId.length ? byId[id] : null;
+        }
+
+        return this.clientbound.get(id);
+    }
+
+    private PacketDefinition<?> getServerboundDefinition(int id) {
+        if (this.frozen) {
+            PacketDefinition<?>[] byId = this.serverboundById;
+            if (byId != null)
+                return id >= 0 && id < byId.length ? byId[id] : null;
+        }
+
+        return this.serverbound.get(id);
+    }
+
+    /**
+     * Sets the preset dictionary compressed packets are deflated with. It should hold byte
+     * sequences common in the packets, most frequent last. Both sides must use the same one.
+     *
+     * @param dictionary the dictionary or null for none
+     * @throws IllegalStateException If the protocol is frozen.
+     */
+    public final void setCompressionDictionary(byte[] dictionary) {
+        checkNotFrozen();
+        this.compressionDictionary = dictionary == null ? null : dictionary.clone();
+    }
+
+    /**
+     * @return the preset compression dictionary or null
+     */
+    public final byte[] getCompressionDictionary() {
+        return this.compressionDictionary;
+    }
+
+    private void checkNotFrozen() {
+        if (this.frozen) {
+            throw new IllegalStateException("Protocol is frozen");
+        }
+    }
+
+    private static PacketDefinition<?>[] toDenseArray(Map<Integer, PacketDefinition<? extends Packet>> definitions) {
+        int maxId = -1;
+        for (int id : definitions.keySet()) {
+            if (id < 0 || id > MAX_DENSE_ID)
+                return null;
+            maxId = Math.max(maxId, id);
+        }
+
+        PacketDefinition<?>[] byId = new PacketDefinition<?>[maxId + 1];
+        for (PacketDefinition<?> definition : definitions.values())
+            byId[definition.getId()] = definition;
+
+        return byId;
+    }
+
+    private static final class DefinitionByClass extends ClassValue<PacketDefinition<?>> {
+        private final Map<Integer, PacketDefinition<? extends Packet>> definitions;
+        private final Map<Class<? extends Packet>, Integer> ids;
+
+        private DefinitionByClass(Map<Integer, PacketDefinition<? extends Packet>> definitions, Map<Class<? extends Packet>, Integer> ids) {
+            this.definitions = definitions;
+            this.ids = ids;
+        }
+
+        // Only queried once the protocol is frozen, so the maps no longer change
+        @Override
+        protected PacketDefinition<?> computeValue(Class<?> type) {
+            Integer id = this.ids.get(type);
+            return id == null ? null : this.definitions.get(id);
+        }
+    }
 }
@@ -0,0 +1,48 @@
+package xyz.synse.udppacketer.common.packets;
+
+import java.io.IOException;
+
+/**
+ * A packet describing state as a fixed list of fields, such as the world state sent every tick.
+ * <p>
+ * Sent as a snapshot, only the fields that differ from a snapshot the receiver acknowledged are
+ * written, see {@link xyz.synse.udppacketer.common.SnapshotChannel}. Fields are compared by their
+ * written bytes, so implementations only describe how to write and read a single field. Sent
+ * with the regular send methods the packet is written in full.
+ */
+public abstract class SnapshotPacket extends BufferPacket {
+    /**
+     * @return the amount of fields, the same for every instance of the class
+     */
+    public abstract int getFieldCount();
+
+    /**
+     * Writes a single field.
+     *
+     * @param index the index of the field
+     * @param out   the buffer to write to
+     * @throws IOException if the field fails to write itself
+     */
+    public abstract void writeField(int index, PacketBuffer out) throws IOException;
+
+    /**
+     * Reads a single field written by {@link #writeField(int, PacketBuffer)}.
+     *
+     * @param index the index of the field
+     * @param in    the buffer to read from
+     * @throws IOException if the field fails to read itself
+     */
+    public abstract void readField(int index, PacketBuffer in) throws IOException;
+
+    @Override
+    public void write(PacketBuffer out) throws IOException {
+        for (int i = 0; i < getFieldCount(); i++)
+            writeField(i, out);
+    }
+
+    @Override
+    public void read(PacketBuffer in) throws IOException {
+        for (int i = 0; i < getFieldCount(); i++)
+            readField(i, in);
+    }
+}
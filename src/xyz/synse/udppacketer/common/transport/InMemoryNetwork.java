@@ -0,0 +1,194 @@
+package xyz.synse.udppacketer.common.transport;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-process datagram network between {@link InMemoryTransport}s, passing copies of the sent
+ * buffers without any socket or system call. Used as the {@link TransportFactory} of servers and
+ * clients it benchmarks the protocol stack on its own and runs tests on one machine.
+ * <p>
+ * Endpoints are told apart by port only, whatever address a datagram is sent to, and all of them
+ * appear to send from the loopback address. Like a real network it can drop, delay and reorder
+ * datagrams; the impairments are drawn from a seeded random, so a run repeats exactly as long as
+ * the datagrams are sent in the same order. Datagrams to a port nobody is bound to and datagrams
+ * overflowing the receive queue of an endpoint are dropped as well.
+ */
+public class InMemoryNetwork implements TransportFactory {
+    private static final int FIRST_EPHEMERAL_PORT = 49152;
+    private static final int LAST_PORT = 65535;
+
+    private final InetAddress address = InetAddress.getLoopbackAddress();
+    private final Map<Integer, List<InMemoryTransport>> endpoints = new HashMap<>();
+    private final Random random;
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private int nextPort = FIRST_EPHEMERAL_PORT;
+    private double lossRate = 0;
+    private long latency = 0;
+    private long jitter = 0;
+    private double reorderRate = 0;
+    private long reorderDelay = 0;
+    private int queueCapacity = 4096;
+
+    public InMemoryNetwork() {
+        this(0);
+    }
+
+    /**
+     * @param seed the seed of the impairments
+     */
+    public InMemoryNetwork(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Drops datagrams at random.
+     *
+     * @param rate the probability of a datagram getting lost, from 0 to 1
+     */
+    public synchronized void setLoss(double rate) {
+        if (rate < 0 || rate > 1)
+            throw new IllegalArgumentException("Loss rate must be between 0 and 1");
+
+        this.lossRate = rate;
+    }
+
+    /**
+     * Delays every datagram, datagrams with different jitter overtake each other.
+     *
+     * @param latency the one way delay
+     * @param jitter  the highest random delay added on top
+     * @param unit    the unit of both
+     */
+    public synchronized void setLatency(long latency, long jitter, TimeUnit unit) {
+        if (latency < 0 || jitter < 0)
+            throw new IllegalArgumentException("Latency and jitter must not be negative");
+
+        this.latency = unit.toNanos(latency);
+        this.jitter = unit.toNanos(jitter);
+    }
+
+    /**
+     * Holds back datagrams at random so the ones sent after them arrive first.
+     *
+     * @param rate  the probability of a datagram being held back, from 0 to 1
+     * @param delay how long it is held back
+     * @param unit  the unit of the delay
+     */
+    public synchronized void setReordering(double rate, long delay, TimeUnit unit) {
+        if (rate < 0 || rate > 1)
+            throw new IllegalArgumentException("Reorder rate must be between 0 and 1");
+        if (delay < 0)
+            throw new IllegalArgumentException("Reorder delay must not be negative");
+
+        this.reorderRate = rate;
+        this.reorderDelay = unit.toNanos(delay);
+    }
+
+    /**
+     * Sets how many datagrams an endpoint holds before dropping new ones, the equivalent of
+     * a socket receive buffer. Applies to endpoints bound afterwards.
+     *
+     * @param capacity the amount of datagrams
+     */
+    public synchronized void setQueueCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be positive");
+
+        this.queueCapacity = capacity;
+    }
+
+    /**
+     * Binds a new endpoint, with {@code reusePort} every endpoint of a port must set it and
+     * the senders are spread over them by port.
+     */
+    @Override
+    public synchronized InMemoryTransport bind(int port, boolean reusePort) throws IOException {
+        if (port < 0 || port > LAST_PORT)
+            throw new IllegalArgumentException("Port out of range: " + port);
+
+        if (port == 0)
+            port = ephemeralPort();
+
+        List<InMemoryTransport> bound = endpoints.get(port);
+        if (bound != null && (!reusePort || !bound.get(0).isReusePort()))
+            throw new BindException("Port " + port + " is already in use");
+
+        InMemoryTransport transport = new InMemoryTransport(this, new InetSocketAddress(address, port), reusePort, queueCapacity);
+        endpoints.computeIfAbsent(port, ignored -> new ArrayList<>()).add(transport);
+        return transport;
+    }
+
+    /**
+     * @return the amount of datagrams sent through this network
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return the amount of datagrams lost, sent to nobody or overflowing a receive queue
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    void send(ByteBuffer data, InMemoryTransport sender, InetSocketAddress target) {
+        int length = data.remaining();
+        sent.increment();
+
+        InMemoryTransport receiver;
+        long delay;
+        synchronized (this) {
+            List<InMemoryTransport> bound = endpoints.get(target.getPort());
+            receiver = bound == null ? null : bound.get(Math.floorMod(sender.getLocalPort(), bound.size()));
+
+            if (receiver == null || (lossRate > 0 && random.nextDouble() < lossRate)) {
+                receiver = null;
+                delay = 0;
+            } else {
+                delay = latency;
+                if (jitter > 0)
+                    delay += random.nextLong(jitter + 1);
+                if (reorderRate > 0 && random.nextDouble() < reorderRate)
+                    delay += reorderDelay;
+            }
+        }
+
+        byte[] copy = new byte[length];
+        data.get(copy);
+
+        if (receiver == null || !receiver.offer(copy, sender.getLocalAddress(), System.nanoTime() + delay, sequence.incrementAndGet()))
+            dropped.increment();
+    }
+
+    synchronized void unbind(InMemoryTransport transport) {
+        int port = transport.getLocalPort();
+        List<InMemoryTransport> bound = endpoints.get(port);
+        if (bound != null && bound.remove(transport) && bound.isEmpty())
+            endpoints.remove(port);
+    }
+
+    private int ephemeralPort() throws BindException {
+        for (int i = FIRST_EPHEMERAL_PORT; i <= LAST_PORT; i++) {
+            int port = nextPort;
+            nextPort = nextPort == LAST_PORT ? FIRST_EPHEMERAL_PORT : nextPort + 1;
+            if (!endpoints.containsKey(port))
+                return port;
+        }
+        throw new BindException("No ephemeral port left");
+    }
+}
@@ -0,0 +1,124 @@
+package xyz.synse.udppacketer.common.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking {@link Transport} of an {@link InMemoryNetwork}. Received datagrams wait in a
+ * {@link DelayQueue} until their delivery time, in the order they were sent when it is equal.
+ */
+public class InMemoryTransport implements Transport {
+    private final InMemoryNetwork network;
+    private final InetSocketAddress localAddress;
+    private final boolean reusePort;
+    private final int capacity;
+    private final DelayQueue<Datagram> queue = new DelayQueue<>();
+    private volatile boolean closed = false;
+
+    InMemoryTransport(InMemoryNetwork network, InetSocketAddress localAddress, boolean reusePort, int capacity) {
+        this.network = network;
+        this.localAddress = localAddress;
+        this.reusePort = reusePort;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress target) throws IOException {
+        if (closed)
+            throw new IOException("Transport is closed");
+
+        network.send(data, this, target);
+    }
+
+    @Override
+    public InetSocketAddress receive(ByteBuffer into) throws IOException {
+        Datagram datagram;
+        try {
+            datagram = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while receiving");
+        }
+        if (datagram.data == null) {
+            // Left in place for any other thread receiving
+            queue.add(datagram);
+            throw new IOException("Transport is closed");
+        }
+
+        into.put(datagram.data, 0, Math.min(datagram.data.length, into.remaining()));
+        return datagram.sender;
+    }
+
+    boolean offer(byte[] data, InetSocketAddress sender, long deliverAt, long sequence) {
+        if (closed || queue.size() >= capacity)
+            return false;
+
+        queue.add(new Datagram(data, sender, deliverAt, sequence));
+        return true;
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return localAddress.getPort();
+    }
+
+    @Override
+    public boolean isDirect() {
+        return false;
+    }
+
+    boolean isReusePort() {
+        return reusePort;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+
+        closed = true;
+        network.unbind(this);
+        // Wakes up a blocked receive, ordered before anything not due yet
+        queue.add(new Datagram(null, null, System.nanoTime(), Long.MIN_VALUE));
+    }
+
+    private static final class Datagram implements Delayed {
+        private final byte[] data;
+        private final InetSocketAddress sender;
+        private final long deliverAt;
+        private final long sequence;
+
+        private Datagram(byte[] data, InetSocketAddress sender, long deliverAt, long sequence) {
+            this.data = data;
+            this.sender = sender;
+            this.deliverAt = deliverAt;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deliverAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Datagram datagram = (Datagram) other;
+            int compare = Long.signum(deliverAt - datagram.deliverAt);
+            return compare != 0 ? compare : Long.compare(sequence, datagram.sequence);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package xyz.synse.udppacketer.common.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * {@link Transport} on top of a {@link DatagramChannel}, doing its I/O with direct buffers.
+ * In non-blocking mode {@link #receive(ByteBuffer)} returns null when no datagram is
+ * pending and the channel can be registered with a {@link java.nio.channels.Selector}.
+ */
+public class NioTransport implements Transport {
+    private final DatagramChannel channel;
+
+    /**
+     * Opens a channel bound to the given port, use 0 for an ephemeral port.
+     *
+     * @param port     the local port
+     * @param blocking whether the channel blocks on receive
+     * @throws IOException if the channel could not be opened or bound
+     */
+    public NioTransport(int port, boolean blocking) throws IOException {
+        this(port, blocking, false);
+    }
+
+    /**
+     * Opens a channel bound to the given port, use 0 for an ephemeral port.
+     *
+     * @param port      the local port
+     * @param blocking  whether the channel blocks on receive
+     * @param reusePort whether to set SO_REUSEPORT, letting several channels share the port
+     * @throws IOException if the channel could not be opened or bound, or SO_REUSEPORT is not supported
+     */
+    public NioTransport(int port, boolean blocking, boolean reusePort) throws IOException {
+        this(DatagramChannel.open(), port, blocking, reusePort);
+    }
+
+    public NioTransport(DatagramChannel channel, int port, boolean blocking, boolean reusePort) throws IOException {
+        this.channel = channel;
+        try {
+            channel.configureBlocking(blocking);
+            if (reusePort) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+                    throw new IOException("SO_REUSEPORT is not supported on this platform");
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            if (channel.getLocalAddress() == null)
+                channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress target) throws IOException {
+        channel.send(data, target);
+    }
+
+    @Override
+    public InetSocketAddress receive(ByteBuffer into) throws IOException {
+        return (InetSocketAddress) channel.receive(into);
+    }
+
+    @Override
+    public int getLocalPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean isDirect() {
+        return true;
+    }
+
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package xyz.synse.udppacketer.common.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A bound datagram endpoint the server and client exchange datagrams through.
+ */
+public interface Transport extends Closeable {
+    /**
+     * Sends the remaining bytes of the given buffer as one datagram,
+     * advancing its position past them.
+     *
+     * @param data   the datagram content
+     * @param target the receiver
+     * @throws IOException if the datagram could not be sent
+     */
+    void send(ByteBuffer data, InetSocketAddress target) throws IOException;
+
+    /**
+     * Receives one datagram into the given buffer, starting at its position.
+     * Blocking transports wait for a datagram, non-blocking ones return null
+     * when none is pending. Bytes not fitting the buffer are discarded.
+     *
+     * @param into the buffer to receive into
+     * @return the sender of the datagram or null if none was pending
+     * @throws IOException if receiving failed or the transport was closed
+     */
+    InetSocketAddress receive(ByteBuffer into) throws IOException;
+
+    /**
+     * @return the local port this transport is bound to
+     */
+    int getLocalPort();
+
+    /**
+     * @return whether this transport prefers direct buffers for its I/O
+     */
+    boolean isDirect();
+
+    boolean isClosed();
+
+    @Override
+    void close();
+}
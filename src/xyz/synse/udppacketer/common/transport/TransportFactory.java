@@ -0,0 +1,35 @@
+package xyz.synse.udppacketer.common.transport;
+
+import java.io.IOException;
+
+/**
+ * Opens the {@link Transport}s of a server or client, letting them run over something else than
+ * a {@link java.net.DatagramSocket}. Transports are received from with blocking
+ * {@link Transport#receive(java.nio.ByteBuffer)} calls on a thread of their own.
+ */
+@FunctionalInterface
+public interface TransportFactory {
+    /**
+     * Binds a new blocking transport.
+     *
+     * @param port      the local port, 0 for an ephemeral one
+     * @param reusePort whether several transports share the port, see {@link UdpTransport#UdpTransport(int, boolean)}
+     * @return the bound transport
+     * @throws IOException if the transport could not be bound
+     */
+    Transport bind(int port, boolean reusePort) throws IOException;
+
+    /**
+     * @return a factory of {@link UdpTransport}s, the default
+     */
+    static TransportFactory udp() {
+        return UdpTransport::new;
+    }
+
+    /**
+     * @return a factory of blocking {@link NioTransport}s
+     */
+    static TransportFactory nio() {
+        return (port, reusePort) -> new NioTransport(port, true, reusePort);
+    }
+}
@@ -0,0 +1,123 @@
+package xyz.synse.udppacketer.common.transport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+
+/**
+ * Blocking {@link Transport} on top of a {@link DatagramSocket}.
+ * Uses heap buffers, receives through a single reused {@link DatagramPacket}
+ * and sends through one reused packet per sending thread. The sender of the
+ * previous datagram is returned again when the next one comes from the same
+ * address and port, so a busy peer costs no allocation per datagram.
+ */
+public class UdpTransport implements Transport {
+    private final DatagramSocket socket;
+    private final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+    private InetSocketAddress lastSender;
+    private final ThreadLocal<DatagramPacket> sendPackets = ThreadLocal.withInitial(() -> new DatagramPacket(new byte[0], 0));
+
+    /**
+     * Creates a transport bound to the given port, use 0 for an ephemeral port.
+     *
+     * @param port the local port
+     * @throws SocketException if the socket could not be bound
+     */
+    public UdpTransport(int port) throws SocketException {
+        this(new DatagramSocket(port));
+    }
+
+    /**
+     * Creates a transport bound to the given port, use 0 for an ephemeral port.
+     *
+     * @param port      the local port
+     * @param reusePort whether to set SO_REUSEPORT, letting several sockets share the port
+     * @throws SocketException if the socket could not be bound or SO_REUSEPORT is not supported
+     */
+    public UdpTransport(int port, boolean reusePort) throws SocketException {
+        this(bind(port, reusePort));
+    }
+
+    public UdpTransport(DatagramSocket socket) {
+        this.socket = socket;
+    }
+
+    private static DatagramSocket bind(int port, boolean reusePort) throws SocketException {
+        DatagramSocket socket = new DatagramSocket(null);
+        try {
+            if (reusePort) {
+                if (!socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+                    throw new SocketException("SO_REUSEPORT is not supported on this platform");
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            socket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            socket.close();
+            throw e instanceof SocketException ? (SocketException) e : new SocketException(e.getMessage());
+        }
+        return socket;
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetSocketAddress target) throws IOException {
+        DatagramPacket packet = sendPackets.get();
+        int length = data.remaining();
+        if (data.hasArray()) {
+            packet.setData(data.array(), data.arrayOffset() + data.position(), length);
+        } else {
+            byte[] bytes = new byte[length];
+            data.duplicate().get(bytes);
+            packet.setData(bytes);
+        }
+        packet.setSocketAddress(target);
+
+        socket.send(packet);
+        data.position(data.position() + length);
+    }
+
+    @Override
+    public InetSocketAddress receive(ByteBuffer into) throws IOException {
+        if (!into.hasArray())
+            throw new IllegalArgumentException("UdpTransport can only receive into heap buffers");
+
+        receivePacket.setData(into.array(), into.arrayOffset() + into.position(), into.remaining());
+        socket.receive(receivePacket);
+        into.position(into.position() + receivePacket.getLength());
+
+        InetAddress address = receivePacket.getAddress();
+        int port = receivePacket.getPort();
+        InetSocketAddress sender = lastSender;
+        if (sender == null || sender.getPort() != port || !sender.getAddress().equals(address))
+            lastSender = sender = new InetSocketAddress(address, port);
+        return sender;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public boolean isDirect() {
+        return false;
+    }
+
+    public DatagramSocket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,99 @@
+package xyz.synse.udppacketer.common.utils;
+
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free pool of fixed size {@link PacketBuffer}s. Buffers are leased with
+ * {@link #acquire()} and handed back with {@link PooledBuffer#release()}, once
+ * nothing reads from them anymore. When the pool is empty a new buffer is
+ * allocated, when it is full a released buffer is simply left to the GC, so
+ * the pool never blocks.
+ */
+public class BufferPool {
+    private final AtomicReferenceArray<PooledBuffer> slots;
+    private final int mask;
+    private final int bufferSize;
+    private final boolean direct;
+
+    /**
+     * @param bufferSize size of each buffer
+     * @param poolSize   maximum amount of idle buffers kept, rounded up to a power of two
+     * @param direct     whether the buffers are direct or heap buffers
+     */
+    public BufferPool(int bufferSize, int poolSize, boolean direct) {
+        int size = Integer.highestOneBit(Math.max(1, poolSize - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    /**
+     * Leases a cleared buffer from the pool, allocating one if the pool is empty.
+     *
+     * @return the leased buffer
+     */
+    public PooledBuffer acquire() {
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i <= mask; i++) {
+            int index = (start + i) & mask;
+            if (slots.get(index) == null)
+                continue;
+
+            PooledBuffer buffer = slots.getAndSet(index, null);
+            if (buffer != null) {
+                buffer.leased = true;
+                return buffer;
+            }
+        }
+
+        PooledBuffer buffer = new PooledBuffer(this, direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize));
+        buffer.leased = true;
+        return buffer;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    private void offer(PooledBuffer buffer) {
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i <= mask; i++) {
+            if (slots.compareAndSet((start + i) & mask, null, buffer))
+                return;
+        }
+    }
+
+    /**
+     * A buffer leased from a {@link BufferPool}.
+     */
+    public static final class PooledBuffer extends PacketBuffer {
+        private final BufferPool pool;
+        private volatile boolean leased;
+
+        private PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+            super(buffer);
+            this.pool = pool;
+        }
+
+        /**
+         * Hands the buffer back to its pool. The buffer must not be used afterwards,
+         * releasing it more than once has no effect.
+         */
+        public void release() {
+            if (!leased)
+                return;
+
+            leased = false;
+            // Buffers that grew past the pool size are not worth keeping around
+            if (capacity() != pool.bufferSize)
+                return;
+
+            clear();
+            pool.offer(this);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package xyz.synse.udppacketer.common.utils;
+
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of frame bodies, flagged with {@link Framework#FLAG_COMPRESSED}.
+ * <p>
+ * A compressed body is its uncompressed size as a varint followed by the deflated bytes.
+ * Bodies are only compressed if the result is smaller than the original frame. Every thread
+ * keeps its own {@link Deflater}, {@link Inflater} and output buffers, so compressing does not
+ * allocate once they are warm. The returned buffers are overwritten by the next call on the
+ * same thread.
+ */
+public final class Compression {
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Constants.COMPRESSION_LEVEL));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<PacketBuffer> COMPRESSED = ThreadLocal.withInitial(() -> PacketBuffer.allocate(Constants.RECEIVE_BUFFER_SIZE));
+    private static final ThreadLocal<PacketBuffer> DECOMPRESSED = ThreadLocal.withInitial(() -> PacketBuffer.allocate(Constants.RECEIVE_BUFFER_SIZE));
+
+    private Compression() {
+    }
+
+    /**
+     * Compresses the body of a frame and flags its header.
+     *
+     * @param frame      the frame, its position is left untouched
+     * @param bodyStart  the index the body starts at, the bytes before it are copied as they are
+     * @param format     the format of the frame header
+     * @param dictionary the preset dictionary or null
+     * @return the compressed frame, or null if compressing does not make it smaller
+     */
+    public static ByteBuffer compress(ByteBuffer frame, int bodyStart, WireFormat format, byte[] dictionary) {
+        PacketBuffer out = COMPRESSED.get().clear();
+        ByteBuffer header = frame.duplicate();
+        header.limit(bodyStart);
+        out.writeBytes(header);
+
+        ByteBuffer body = frame.duplicate();
+        body.position(bodyStart);
+        if (!deflate(body, out, frame.remaining(), dictionary))
+            return null;
+
+        ByteBuffer compressed = out.flip().getBuffer();
+        format.addFlags(compressed, Framework.FLAG_COMPRESSED);
+        return compressed;
+    }
+
+    /**
+     * Compresses a body without a header.
+     *
+     * @param body       the body, its position is left untouched
+     * @param dictionary the preset dictionary or null
+     * @return the compressed body, or null if compressing does not make it smaller
+     */
+    public static ByteBuffer compress(ByteBuffer body, byte[] dictionary) {
+        PacketBuffer out = COMPRESSED.get().clear();
+        if (!deflate(body.duplicate(), out, body.remaining(), dictionary))
+            return null;
+
+        return out.flip().getBuffer();
+    }
+
+    private static boolean deflate(ByteBuffer body, PacketBuffer out, int originalSize, byte[] dictionary) {
+        out.writeVarInt(body.remaining());
+        int budget = originalSize - 1 - out.position();
+        if (budget <= 0)
+            return false;
+
+        ByteBuffer target = out.ensureWritable(budget).getBuffer();
+        int limit = target.limit();
+        target.limit(target.position() + budget);
+
+        Deflater deflater = DEFLATER.get();
+        try {
+            if (dictionary != null)
+                deflater.setDictionary(dictionary);
+            deflater.setInput(body);
+            deflater.finish();
+            // Running out of room before finishing means the result would not be smaller
+            while (!deflater.finished() && target.hasRemaining())
+                deflater.deflate(target);
+            return deflater.finished();
+        } finally {
+            deflater.reset();
+            target.limit(limit);
+        }
+    }
+
+    /**
+     * Decompresses a body written by one of the compress methods.
+     *
+     * @param in         the compressed body, read until its end
+     * @param dictionary the preset dictionary or null
+     * @return the decompressed body
+     * @throws IOException if the body is corrupt, too large or needs a missing dictionary
+     */
+    public static PacketBuffer decompress(PacketBuffer in, byte[] dictionary) throws IOException {
+        int size = in.readVarInt();
+        if (size < 0 || size > Constants.MAX_PACKET_SIZE)
+            throw new IOException("Invalid uncompressed size " + size);
+
+        PacketBuffer out = DECOMPRESSED.get().clear().ensureWritable(size);
+        ByteBuffer target = out.getBuffer();
+        target.limit(size);
+
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(in.getBuffer());
+            while (target.hasRemaining()) {
+                if (inflater.inflate(target) > 0)
+                    continue;
+
+                if (inflater.needsDictionary()) {
+                    if (dictionary == null)
+                        throw new IOException("Compressed packet needs a dictionary");
+                    inflater.setDictionary(dictionary);
+                } else if (inflater.finished() || inflater.needsInput()) {
+                    throw new IOException("Compressed packet is truncated");
+                }
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new IOException("Corrupt compressed packet", e);
+        } finally {
+            inflater.reset();
+        }
+
+        return out.flip();
+    }
+}
@@ -2,7 +2,38 @@ package xyz.synse.udppacketer.common.utils;
 
 public class Constants {
     public static int RECEIVE_BUFFER_SIZE = 2048;
+    public static int BUFFER_POOL_SIZE = 64;
     public static long TIMEOUT = 10_000L;
+    public static long MIN_TIMEOUT = 3_000L;
+    public static int TIMEOUT_PROBES = 3;
     public static long RTT_TIMER = 1_000L;
+    public static long INITIAL_RTT = 400L;
+    public static int RTT_SAMPLES = 64;
+    public static long MIN_RTT_WINDOW = 10_000L;
     public static long RECONNECT = 1_000L;
+    public static long TIMER_TICK = 10L;
+    public static int TIMER_WHEEL_SIZE = 512;
+    public static int BROADCAST_CHUNK_SIZE = 256;
+    public static int BATCH_MTU = 1200;
+    public static long BATCH_FLUSH_INTERVAL = 10L;
+    public static int RELIABLE_WINDOW = 256;
+    public static int RELIABLE_BACKLOG = 4096;
+    public static long RELIABLE_MIN_RTO = 50L;
+    public static long RELIABLE_MAX_RTO = 3_000L;
+    public static long ACK_DELAY = 20L;
+    public static int FRAGMENT_SIZE = 1200;
+    public static int MAX_PACKET_SIZE = 256 * 1024;
+    public static int FRAGMENT_GROUPS = 8;
+    public static long FRAGMENT_TIMEOUT = 2_000L;
+    public static int SEQUENCED_CHANNELS = 32;
+    public static int CONGESTION_INITIAL_WINDOW = 32 * 1024;
+    public static int CONGESTION_MIN_WINDOW = 4 * 1200;
+    public static long CONGESTION_DELAY_THRESHOLD = 25L;
+    public static long CONGESTION_MIN_RTT_WINDOW = 10_000L;
+    public static int PACER_QUEUE_LIMIT = 1024 * 1024;
+    public static int COMPRESSION_THRESHOLD = 256;
+    public static int COMPRESSION_LEVEL = 1;
+    public static int SNAPSHOT_HISTORY = 32;
+    public static int DISPATCH_STRIPES = 64;
+    public static int DISPATCH_QUEUE_SIZE = 1024;
 }
@@ -8,4 +8,56 @@ public class Framework {
     public static int RTT_REQUEST = 5;
     public static int RTT_ANSWER = 6;
     public static int PACKET = 7;
+    /**
+     * Several frames in one datagram, each prefixed with its varint byte length.
+     */
+    public static int BATCH = 8;
+    /**
+     * Reliable ordered packet, see {@link xyz.synse.udppacketer.common.ReliableChannel}.
+     */
+    public static int RELIABLE = 9;
+    /**
+     * Acknowledgement of reliable packets without any data.
+     */
+    public static int ACK = 10;
+    /**
+     * Part of a frame too large for one datagram, see {@link xyz.synse.udppacketer.common.FragmentAssembler}.
+     */
+    public static int FRAGMENT = 11;
+    /**
+     * Packet of a sequenced channel, see {@link xyz.synse.udppacketer.common.SequencedChannels}.
+     */
+    public static int SEQUENCED = 12;
+    /**
+     * Snapshot encoded against an acknowledged baseline, see {@link xyz.synse.udppacketer.common.SnapshotChannel}.
+     */
+    public static int SNAPSHOT = 13;
+    /**
+     * Acknowledgement of a received snapshot.
+     */
+    public static int SNAPSHOT_ACK = 14;
+
+    /**
+     * Header flag: an acknowledgement of reliable packets follows the header.
+     */
+    public static int FLAG_ACK = 1;
+    /**
+     * Header flag of reliable frames: the body is a part of a message and more parts follow.
+     */
+    public static int FLAG_FRAGMENT = 2;
+    /**
+     * Header flag: the body is deflated, see {@link Compression}.
+     */
+    public static int FLAG_COMPRESSED = 4;
+    /**
+     * Header flag: a send timestamp and the echo of the newest timestamp of the peer follow
+     * the header, see {@link xyz.synse.udppacketer.common.TimestampEcho}.
+     */
+    public static int FLAG_TIMESTAMP = 8;
+
+    /**
+     * Connect option, sent after the wire format on {@link #CONNECT} and {@link #CONNECTED}:
+     * the peer sends and reads {@link #FLAG_TIMESTAMP}.
+     */
+    public static int CONNECT_TIMESTAMPS = 1;
 }
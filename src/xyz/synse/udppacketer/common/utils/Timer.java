@@ -1,10 +1,16 @@
 package xyz.synse.udppacketer.common.utils;
 
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time since its last reset. Reset and read from different threads, on the
+ * monotonic clock so a wall clock jump cannot make every timer elapse at once.
+ */
 public class Timer {
-    private long lastTime = System.currentTimeMillis();
+    private volatile long lastTime = System.nanoTime();
 
     public boolean hasElapsed(long millis, boolean reset){
-        if((System.currentTimeMillis() - lastTime) >= millis){
+        if(getElapsed() >= millis){
             if(reset)
                 reset();
 
@@ -14,7 +20,11 @@ public class Timer {
         return false;
     }
 
+    public long getElapsed(){
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastTime);
+    }
+
     public void reset(){
-        this.lastTime = System.currentTimeMillis();
+        this.lastTime = System.nanoTime();
     }
 }
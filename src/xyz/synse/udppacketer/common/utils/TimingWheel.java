@@ -0,0 +1,254 @@
+package xyz.synse.udppacketer.common.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel running scheduled tasks on a single daemon thread.
+ * <p>
+ * Scheduling and cancelling are O(1). Every tick the worker only visits the
+ * bucket of that tick, so the cost is proportional to the due tasks instead of
+ * the amount of scheduled ones, and with nothing scheduled the worker parks
+ * until the next task arrives. Tasks run on the worker thread and must not block.
+ */
+public final class TimingWheel {
+    private static volatile TimingWheel shared;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread worker;
+    private volatile boolean idle = false;
+    private volatile boolean stopped = false;
+    private final long startTime;
+    private long tick = 0;
+
+    /**
+     * @param tickMillis duration of one tick, the resolution of the wheel
+     * @param wheelSize  amount of buckets, rounded up to a power of two
+     * @param threadName name of the worker thread
+     */
+    public TimingWheel(long tickMillis, int wheelSize, String threadName) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+
+        this.worker = new Thread(this::run, threadName);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Returns the wheel shared by all servers and clients of this JVM, configured by
+     * {@link Constants#TIMER_TICK} and {@link Constants#TIMER_WHEEL_SIZE}.
+     *
+     * @return the shared wheel
+     */
+    public static TimingWheel shared() {
+        TimingWheel wheel = shared;
+        if (wheel == null) {
+            synchronized (TimingWheel.class) {
+                wheel = shared;
+                if (wheel == null)
+                    shared = wheel = new TimingWheel(Constants.TIMER_TICK, Constants.TIMER_WHEEL_SIZE, "UDPPacketer timer");
+            }
+        }
+        return wheel;
+    }
+
+    /**
+     * Schedules a task to run once after the given delay.
+     *
+     * @param task        the task to run
+     * @param delayMillis the delay in milliseconds
+     * @return the handle of the scheduled task
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        if (stopped)
+            throw new IllegalStateException("Timing wheel is stopped");
+
+        Timeout timeout = new Timeout(this, task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+        pending.incrementAndGet();
+        scheduled.add(timeout);
+        if (idle)
+            LockSupport.unpark(worker);
+        return timeout;
+    }
+
+    /**
+     * @return the amount of scheduled tasks that neither ran nor were cancelled yet
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Stops the worker thread, not yet run tasks are dropped.
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        while (!stopped) {
+            waitForNextTick();
+            if (stopped)
+                return;
+
+            transferScheduled();
+            wheel[(int) (tick & mask)].expire(System.nanoTime());
+            tick++;
+        }
+    }
+
+    private void waitForNextTick() {
+        while (!stopped) {
+            if (pending.get() == 0) {
+                idle = true;
+                if (pending.get() == 0)
+                    LockSupport.park(this);
+                idle = false;
+
+                // Nothing is in the buckets, so the wheel can jump straight to the current tick
+                long now = System.nanoTime() - startTime;
+                tick = Math.max(tick, now / tickNanos);
+                continue;
+            }
+
+            long sleep = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep <= 0)
+                return;
+            LockSupport.parkNanos(this, sleep);
+        }
+    }
+
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.isCancelled())
+                continue;
+
+            long calculated = (timeout.deadline - startTime) / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public static final class Timeout {
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = INIT;
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task if it did not run yet.
+         *
+         * @return whether the task was cancelled by this call
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, INIT, CANCELLED))
+                return false;
+
+            // The worker unlinks it the next time it visits the bucket
+            wheel.pending.decrementAndGet();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, INIT, EXPIRED))
+                return;
+
+            wheel.pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts, only touched by the worker thread.
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private void expire(long now) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            if (timeout == head)
+                head = timeout.next;
+            if (timeout == tail)
+                tail = timeout.prev;
+            timeout.next = null;
+            timeout.prev = null;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package xyz.synse.udppacketer.common.utils;
+
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the frame headers of a connection, negotiated on {@link Framework#CONNECT}.
+ * <p>
+ * The receiver tells the formats apart by the first byte of a frame: a {@link #LEGACY}
+ * header is a big endian int whose first byte is always 0, a {@link #COMPACT} header
+ * never starts with 0. Connecting and its answer always use the legacy format so
+ * peers without compact headers keep working.
+ */
+public enum WireFormat {
+    /**
+     * Frame type and flags as an int ({@code type | flags << 8}), packet ids as an int.
+     */
+    LEGACY {
+        @Override
+        public void writeHeader(PacketBuffer out, int type, int flags) {
+            out.writeInt(type | flags << 8);
+        }
+
+        @Override
+        public void writePacketId(PacketBuffer out, int id) {
+            out.writeInt(id);
+        }
+
+        @Override
+        public int readPacketId(PacketBuffer in) throws IOException {
+            return in.readInt();
+        }
+
+        @Override
+        public void addFlags(ByteBuffer frame, int flags) {
+            int index = frame.position() + 2;
+            frame.put(index, (byte) (frame.get(index) | flags));
+        }
+
+        @Override
+        public int headerSize() {
+            return 4;
+        }
+
+        @Override
+        public int packetIdSize(int id) {
+            return 4;
+        }
+    },
+    /**
+     * Frame type and flags in one byte ({@code type | flags << 4}), packet ids as a varint.
+     */
+    COMPACT {
+        @Override
+        public void writeHeader(PacketBuffer out, int type, int flags) {
+            out.writeByte(type | flags << 4);
+        }
+
+        @Override
+        public void writePacketId(PacketBuffer out, int id) {
+            out.writeVarInt(id);
+        }
+
+        @Override
+        public int readPacketId(PacketBuffer in) throws IOException {
+            return in.readVarInt();
+        }
+
+        @Override
+        public void addFlags(ByteBuffer frame, int flags) {
+            int index = frame.position();
+            frame.put(index, (byte) (frame.get(index) | flags << 4));
+        }
+
+        @Override
+        public int headerSize() {
+            return 1;
+        }
+
+        @Override
+        public int packetIdSize(int id) {
+            return PacketBuffer.varIntSize(id);
+        }
+    };
+
+    /**
+     * Highest frame type a compact header can hold.
+     */
+    public static final int MAX_COMPACT_TYPE = 0x0F;
+
+    /**
+     * Writes a frame header.
+     *
+     * @param out   the buffer to write to
+     * @param type  the frame type, one of {@link Framework}
+     * @param flags the frame flags, at most 4 bits
+     */
+    public abstract void writeHeader(PacketBuffer out, int type, int flags);
+
+    /**
+     * Sets flags in the header of a written frame.
+     *
+     * @param frame the frame, positioned at its header
+     * @param flags the flags to set
+     */
+    public abstract void addFlags(ByteBuffer frame, int flags);
+
+    public abstract void writePacketId(PacketBuffer out, int id);
+
+    public abstract int readPacketId(PacketBuffer in) throws IOException;
+
+    /**
+     * @return the size of a frame header in bytes
+     */
+    public abstract int headerSize();
+
+    /**
+     * @return the size of the given packet id in bytes
+     */
+    public abstract int packetIdSize(int id);
+
+    /**
+     * Reads a frame header in whichever format it was written.
+     *
+     * @param in the buffer positioned at the header
+     * @return the header, see {@link #type(int)}, {@link #flags(int)} and {@link #of(int)}
+     * @throws EOFException if the buffer is empty
+     */
+    public static int readHeader(PacketBuffer in) throws EOFException {
+        int first = in.readUnsignedByte();
+        if (first != 0)
+            return (first & 0x0F) | (first >>> 4) << 8 | 1 << 16;
+
+        in.position(in.position() - 1);
+        int header = in.readInt();
+        return (header & 0xFF) | ((header >>> 8) & 0xFF) << 8;
+    }
+
+    /**
+     * @return the frame type of a header returned by {@link #readHeader(PacketBuffer)}
+     */
+    public static int type(int header) {
+        return header & 0xFF;
+    }
+
+    /**
+     * @return the frame flags of a header returned by {@link #readHeader(PacketBuffer)}
+     */
+    public static int flags(int header) {
+        return (header >>> 8) & 0xFF;
+    }
+
+    /**
+     * @return the format a header returned by {@link #readHeader(PacketBuffer)} was written in
+     */
+    public static WireFormat of(int header) {
+        return (header & 1 << 16) != 0 ? COMPACT : LEGACY;
+    }
+}
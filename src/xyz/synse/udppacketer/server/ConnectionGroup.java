@@ -0,0 +1,100 @@
+package xyz.synse.udppacketer.server;
+
+import xyz.synse.udppacketer.common.Connection;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named set of connections (a room or channel) packets can be broadcast to with
+ * {@link Server#sendTo(ConnectionGroup, xyz.synse.udppacketer.common.packets.Packet)}.
+ * Groups are created by {@link Server#getGroup(String)} and closed connections
+ * leave all groups of their server.
+ */
+public class ConnectionGroup {
+    private static final Connection[] NO_CONNECTIONS = new Connection[0];
+
+    private final String name;
+    private final Set<Connection> members = ConcurrentHashMap.newKeySet();
+    private volatile Connection[] snapshot = NO_CONNECTIONS;
+
+    ConnectionGroup(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds a connection to the group.
+     *
+     * @param connection the connection to add
+     * @return false if the connection is closed or already a member
+     */
+    public synchronized boolean add(Connection connection) {
+        if (connection.isClosed() || !members.add(connection))
+            return false;
+
+        snapshot = null;
+        return true;
+    }
+
+    public synchronized boolean remove(Connection connection) {
+        if (!members.remove(connection))
+            return false;
+
+        snapshot = null;
+        return true;
+    }
+
+    public boolean contains(Connection connection) {
+        return members.contains(connection);
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * @return a read-only snapshot of the members
+     */
+    public List<Connection> getConnections() {
+        return Collections.unmodifiableList(Arrays.asList(snapshot()));
+    }
+
+    /**
+     * Returns the members at the time of the call, cached until the next modification.
+     * The array is shared between callers and must not be modified.
+     */
+    Connection[] snapshot() {
+        Connection[] current = snapshot;
+        if (current != null)
+            return current;
+
+        // Rebuilt under the same lock as modifications so a stale array is never cached
+        synchronized (this) {
+            current = snapshot;
+            if (current == null) {
+                current = members.toArray(NO_CONNECTIONS);
+                snapshot = current;
+            }
+            return current;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionGroup{" +
+                "name='" + name + '\'' +
+                ", size=" + size() +
+                '}';
+    }
+}
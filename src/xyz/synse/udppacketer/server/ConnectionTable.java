@@ -0,0 +1,247 @@
+package xyz.synse.udppacketer.server;
+
+import xyz.synse.udppacketer.common.Connection;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Thread safe table of connections keyed by their socket address.
+ * <p>
+ * IPv4 connections are stored in an open addressing table keyed by the address
+ * and port packed into one long, so lookups neither allocate nor compare
+ * {@link InetAddress} objects. Lookups are optimistic reads of a {@link StampedLock}
+ * and only fall back to a read lock when they race with a writer. IPv6 connections
+ * go to a {@link ConcurrentHashMap}, still modified under the write lock.
+ * <p>
+ * Iteration goes through {@link #snapshot()}, an immutable array cached until the
+ * next modification, so broadcasts and sweeps never see concurrent modifications.
+ */
+class ConnectionTable {
+    private static final long EMPTY = -1L;
+    private static final Connection[] NO_CONNECTIONS = new Connection[0];
+
+    private final StampedLock lock = new StampedLock();
+    private final Map<InetSocketAddress, Connection> ipv6 = new ConcurrentHashMap<>();
+    private Slots slots = new Slots(64);
+    private int size = 0;
+    private volatile Connection[] snapshot = NO_CONNECTIONS;
+
+    /**
+     * Packs an IPv4 address and port into a table key.
+     *
+     * @return the key or -1 if the address is not IPv4
+     */
+    static long key(InetAddress address, int port) {
+        if (!(address instanceof Inet4Address))
+            return EMPTY;
+
+        // Inet4Address.hashCode() is its address, which avoids the copy getAddress() makes
+        return ((address.hashCode() & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+    }
+
+    Connection get(InetAddress address, int port) {
+        long key = key(address, port);
+        if (key == EMPTY)
+            return ipv6.get(new InetSocketAddress(address, port));
+
+        long stamp = lock.tryOptimisticRead();
+        Connection connection = slots.find(key);
+        if (lock.validate(stamp))
+            return connection;
+
+        stamp = lock.readLock();
+        try {
+            return slots.find(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Adds a connection unless one with the same address is already present.
+     *
+     * @param connection the connection to add
+     * @return the already present connection or null if the given one was added
+     */
+    Connection putIfAbsent(Connection connection) {
+        long key = key(connection.getAddress(), connection.getPort());
+        long stamp = lock.writeLock();
+        try {
+            if (key == EMPTY) {
+                Connection existing = ipv6.putIfAbsent(connection.getSocketAddress(), connection);
+                if (existing == null)
+                    snapshot = null;
+                return existing;
+            }
+
+            Connection existing = slots.find(key);
+            if (existing != null)
+                return existing;
+
+            if ((size + 1) * 4 > slots.keys.length * 3)
+                slots = slots.resize(slots.keys.length * 2);
+            slots.insert(key, connection);
+            size++;
+            snapshot = null;
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the given connection.
+     *
+     * @param connection the connection to remove
+     * @return whether the connection was present and got removed by this call
+     */
+    boolean remove(Connection connection) {
+        long key = key(connection.getAddress(), connection.getPort());
+        long stamp = lock.writeLock();
+        try {
+            if (key == EMPTY) {
+                boolean removed = ipv6.remove(connection.getSocketAddress(), connection);
+                if (removed)
+                    snapshot = null;
+                return removed;
+            }
+
+            if (!slots.remove(key, connection))
+                return false;
+
+            size--;
+            snapshot = null;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns all connections at the time of the call. The array is shared
+     * between callers and must not be modified.
+     *
+     * @return the connections
+     */
+    Connection[] snapshot() {
+        Connection[] current = snapshot;
+        if (current != null)
+            return current;
+
+        long stamp = lock.readLock();
+        try {
+            current = snapshot;
+            if (current != null)
+                return current;
+
+            Connection[] connections = new Connection[size + ipv6.size()];
+            int index = 0;
+            for (Connection connection : slots.values) {
+                if (connection != null)
+                    connections[index++] = connection;
+            }
+            for (Connection connection : ipv6.values()) {
+                if (index == connections.length)
+                    connections = Arrays.copyOf(connections, index + 1);
+                connections[index++] = connection;
+            }
+            current = index == connections.length ? connections : Arrays.copyOf(connections, index);
+            snapshot = current;
+            return current;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    int size() {
+        return snapshot().length;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Linear probing slots. Replaced as a whole on resize so optimistic readers
+     * always see a consistent pair of arrays.
+     */
+    private static final class Slots {
+        private final long[] keys;
+        private final Connection[] values;
+        private final int mask;
+
+        private Slots(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new Connection[capacity];
+            this.mask = capacity - 1;
+            Arrays.fill(keys, EMPTY);
+        }
+
+        private static int hash(long key) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return (int) key;
+        }
+
+        private Connection find(long key) {
+            // Bounded, an optimistic reader may look at slots that are being modified
+            for (int i = hash(key) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                long slotKey = keys[i];
+                if (slotKey == key)
+                    return values[i];
+                if (slotKey == EMPTY)
+                    return null;
+            }
+            return null;
+        }
+
+        private void insert(long key, Connection connection) {
+            int i = hash(key) & mask;
+            while (keys[i] != EMPTY)
+                i = (i + 1) & mask;
+            values[i] = connection;
+            keys[i] = key;
+        }
+
+        private boolean remove(long key, Connection connection) {
+            int i = hash(key) & mask;
+            while (keys[i] != key) {
+                if (keys[i] == EMPTY)
+                    return false;
+                i = (i + 1) & mask;
+            }
+            if (values[i] != connection)
+                return false;
+
+            // Backward shift deletion keeps probe sequences intact without tombstones
+            int hole = i;
+            for (int j = (hole + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = EMPTY;
+            values[hole] = null;
+            return true;
+        }
+
+        private Slots resize(int capacity) {
+            Slots resized = new Slots(capacity);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY)
+                    resized.insert(keys[i], values[i]);
+            }
+            return resized;
+        }
+    }
+}
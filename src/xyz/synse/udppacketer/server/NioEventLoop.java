@@ -0,0 +1,78 @@
+package xyz.synse.udppacketer.server;
+
+import xyz.synse.udppacketer.common.transport.NioTransport;
+import xyz.synse.udppacketer.common.transport.Transport;
+import xyz.synse.udppacketer.common.utils.BufferPool;
+import xyz.synse.udppacketer.common.utils.Constants;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.function.Consumer;
+
+/**
+ * Selector loop of the {@link ServerEngine#NIO} engine, one per {@link Shard}. Every wakeup drains all
+ * pending datagrams of each readable channel before selecting again.
+ */
+class NioEventLoop implements Runnable {
+    private final Server server;
+    private final Shard shard;
+    private final Selector selector;
+    private final BufferPool receivePool = new BufferPool(Constants.RECEIVE_BUFFER_SIZE, Constants.BUFFER_POOL_SIZE, true);
+    private final Consumer<SelectionKey> keyHandler = this::handleKey;
+
+    NioEventLoop(Server server, Shard shard) throws IOException {
+        this.server = server;
+        this.shard = shard;
+        this.selector = Selector.open();
+        for (Transport transport : shard.getTransports()) {
+            NioTransport nioTransport = (NioTransport) transport;
+            nioTransport.getChannel().register(selector, SelectionKey.OP_READ, nioTransport);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (server.isRunning())
+                selector.select(keyHandler);
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Wakes the loop up so it notices the server was closed.
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid() || !key.isReadable())
+            return;
+
+        NioTransport transport = (NioTransport) key.attachment();
+        while (true) {
+            BufferPool.PooledBuffer in = receivePool.acquire();
+            try {
+                InetSocketAddress sender = transport.receive(in.getBuffer());
+                if (sender == null)
+                    return;
+
+                in.flip();
+                server.handleDatagram(in, sender, transport, shard);
+            } catch (IOException e) {
+                if (transport.isClosed())
+                    return;
+            } finally {
+                in.release();
+            }
+        }
+    }
+}
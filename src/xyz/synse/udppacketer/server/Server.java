@@ -4,169 +4,674 @@ import org.jetbrains.annotations.Nullable;
 import xyz.synse.udppacketer.PacketerException;
 import xyz.synse.udppacketer.common.Connection;
 import xyz.synse.udppacketer.common.IListener;
+import xyz.synse.udppacketer.common.ListenerDispatcher;
+import xyz.synse.udppacketer.common.PacketHandlers;
+import xyz.synse.udppacketer.common.ReliableChannel;
+import xyz.synse.udppacketer.common.CongestionControl;
+import xyz.synse.udppacketer.common.SendBatch;
+import xyz.synse.udppacketer.common.SnapshotChannel;
+import xyz.synse.udppacketer.common.TimestampEcho;
+import xyz.synse.udppacketer.common.metrics.MetricsMBeans;
+import xyz.synse.udppacketer.common.metrics.MetricsSnapshot;
+import xyz.synse.udppacketer.common.metrics.NetworkMetrics;
 import xyz.synse.udppacketer.common.packets.Packet;
+import xyz.synse.udppacketer.common.packets.PacketBuffer;
 import xyz.synse.udppacketer.common.packets.PacketProtocol;
+import xyz.synse.udppacketer.common.packets.SnapshotPacket;
+import xyz.synse.udppacketer.common.transport.NioTransport;
+import xyz.synse.udppacketer.common.transport.Transport;
+import xyz.synse.udppacketer.common.transport.TransportFactory;
+import xyz.synse.udppacketer.common.transport.UdpTransport;
+import xyz.synse.udppacketer.common.utils.BufferPool;
+import xyz.synse.udppacketer.common.utils.Compression;
 import xyz.synse.udppacketer.common.utils.Constants;
 import xyz.synse.udppacketer.common.utils.Framework;
+import xyz.synse.udppacketer.common.utils.TimingWheel;
+import xyz.synse.udppacketer.common.utils.WireFormat;
 
-import java.io.*;
-import java.lang.reflect.InvocationTargetException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.EOFException;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.ConcurrentModificationException;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import javax.management.ObjectName;
 
 public class Server {
-    private final int serverPort;
-    private DatagramSocket datagramSocket;
-    private final ArrayList<Connection> connections = new ArrayList<>();
-    private final ArrayList<IListener> listeners = new ArrayList<>();
+    private final int[] serverPorts;
+    private final ServerEngine engine;
+    private final int shardCount;
+    private final List<Shard> shards = new CopyOnWriteArrayList<>();
+    private volatile boolean running = false;
+    private final List<IListener> listeners = new CopyOnWriteArrayList<>();
+    private final PacketHandlers handlers;
     private final PacketProtocol packetProtocol;
+    private final ThreadLocal<PacketBuffer> sendBuffer;
+    private final ThreadLocal<PacketBuffer> legacySendBuffer;
+    private final int broadcastThreads;
+    private final Map<String, ConnectionGroup> groups = new ConcurrentHashMap<>();
+    private ExecutorService broadcastExecutor;
+    private int batchMtu = 0;
+    private long batchFlushInterval = 0;
+    private long maxBandwidth = 0;
+    private int compressionThreshold = 0;
+    private Supplier<ListenerDispatcher> dispatcherFactory;
+    private volatile ListenerDispatcher dispatcher;
+    private final NetworkMetrics metrics = new NetworkMetrics();
+    private String mbeanName;
+    private boolean connectionMBeans = false;
+    private ObjectName mbean;
+    private TransportFactory transportFactory;
+    private boolean timestamps = false;
+    private boolean frozenProtocol = false;
 
     public Server(int port, PacketProtocol packetProtocol) {
-        this.serverPort = port;
+        this(new int[]{port}, packetProtocol, ServerEngine.SOCKET, 1);
+    }
+
+    /**
+     * @param ports          ports to bind to
+     * @param packetProtocol protocol of the server
+     * @param engine         engine receiving the datagrams
+     * @param shards         amount of receive shards, more than one binds every port
+     *                       that many times with SO_REUSEPORT and lets the kernel spread
+     *                       the clients over one receive loop per shard
+     */
+    public Server(int[] ports, PacketProtocol packetProtocol, ServerEngine engine, int shards) {
+        this(ports, packetProtocol, engine, shards, 1);
+    }
+
+    /**
+     * @param ports            ports to bind to
+     * @param packetProtocol   protocol of the server
+     * @param engine           engine receiving the datagrams
+     * @param shards           amount of receive shards, see {@link #Server(int[], PacketProtocol, ServerEngine, int)}
+     * @param broadcastThreads amount of threads a large broadcast is split across, the
+     *                         calling thread included, 1 sends on the calling thread only
+     */
+    public Server(int[] ports, PacketProtocol packetProtocol, ServerEngine engine, int shards, int broadcastThreads) {
+        if (ports.length == 0)
+            throw new PacketerException("At least one port is required");
+        if (shards < 1)
+            throw new PacketerException("At least one shard is required");
+        if (broadcastThreads < 1)
+            throw new PacketerException("At least one broadcast thread is required");
+
+        this.serverPorts = ports.clone();
         this.packetProtocol = packetProtocol;
+        this.handlers = new PacketHandlers(packetProtocol, packetProtocol::getClientboundId);
+        this.engine = engine;
+        this.shardCount = shards;
+        this.broadcastThreads = broadcastThreads;
+        this.sendBuffer = ThreadLocal.withInitial(() -> engine == ServerEngine.NIO
+                ? PacketBuffer.allocateDirect(Constants.RECEIVE_BUFFER_SIZE)
+                : PacketBuffer.allocate(Constants.RECEIVE_BUFFER_SIZE));
+        this.legacySendBuffer = ThreadLocal.withInitial(() -> engine == ServerEngine.NIO
+                ? PacketBuffer.allocateDirect(Constants.RECEIVE_BUFFER_SIZE)
+                : PacketBuffer.allocate(Constants.RECEIVE_BUFFER_SIZE));
+    }
+
+    /**
+     * Enables send batching for every connection, see {@link Connection#enableBatching(int)}.
+     * Only clients supporting compact headers, which understand {@link Framework#BATCH}
+     * datagrams, get batched. Must be called before {@link #start()}.
+     *
+     * @param mtu           maximum size of a batched datagram, at most {@link Constants#RECEIVE_BUFFER_SIZE}
+     * @param flushInterval milliseconds between automatic flushes, 0 to only flush on {@link #flush(Connection)}
+     */
+    public void enableBatching(int mtu, long flushInterval) {
+        if (running)
+            throw new IllegalStateException("Server is already running");
+        if (mtu <= 0)
+            throw new PacketerException("Batch MTU must be positive");
+        if (mtu > Constants.RECEIVE_BUFFER_SIZE)
+            throw new PacketerException("Batch MTU must not exceed the receive buffer size");
+        if (flushInterval < 0)
+            throw new PacketerException("Flush interval must not be negative");
+
+        this.batchMtu = mtu;
+        this.batchFlushInterval = flushInterval;
+    }
+
+    /**
+     * Enables congestion control and pacing for every connection, see {@link Connection#enablePacing(long)}.
+     * Must be called before {@link #start()}.
+     *
+     * @param maxBandwidth the bandwidth ceiling of a connection in bytes per second
+     */
+    public void enableCongestionControl(long maxBandwidth) {
+        if (running)
+            throw new IllegalStateException("Server is already running");
+        if (maxBandwidth <= 0)
+            throw new PacketerException("Bandwidth must be positive");
+
+        this.maxBandwidth = maxBandwidth;
+    }
+
+    /**
+     * Deflates packets to clients supporting compact headers if they are at least the given
+     * size and get smaller, see {@link Compression}. Must be called before {@link #start()}.
+     *
+     * @param threshold the minimum size of a packet in bytes to be compressed
+     */
+    public void enableCompression(int threshold) {
+        if (running)
+            throw new IllegalStateException("Server is already running");
+        if (threshold <= 0)
+            throw new PacketerException("Compression threshold must be positive");
+
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * Calls the listeners on the threads of a dispatcher instead of the receiving thread,
+     * in order per connection. Must be called before {@link #start()}.
+     *
+     * @param dispatcherFactory creates the dispatcher on every {@link #start()}, for example
+     *                          {@link ListenerDispatcher#striped(int, int, xyz.synse.udppacketer.common.OverflowPolicy)}
+     */
+    public void enableAsyncDispatch(Supplier<ListenerDispatcher> dispatcherFactory) {
+        if (running)
+            throw new IllegalStateException("Server is already running");
+
+        this.dispatcherFactory = dispatcherFactory;
+    }
+
+    /**
+     * Lets clients that ask for it carry send timestamps and their echoes in normal frames, see
+     * {@link TimestampEcho}. Busy connections then measure their round trip time from the data
+     * traffic and RTT probes only go to connections nothing was sent to for {@link Constants#RTT_TIMER},
+     * unless congestion control needs them. Must be called before {@link #start()}.
+     */
+    public void enableTimestamps() {
+        if (running)
+            throw new IllegalStateException("Server is already running");
+
+        this.timestamps = true;
+    }
+
+    /**
+     * Freezes the protocol on {@link #start()}, see {@link PacketProtocol#freeze()}. Packet ids
+     * and handlers are then looked up in flat arrays, but nothing can be registered anymore.
+     * Must be called before {@link #start()}.
+     */
+    public void enableFrozenProtocol() {
+        if (running)
+            throw new IllegalStateException("Server is already running");
+
+        this.frozenProtocol = true;
+    }
+
+    /**
+     * Binds the ports with the given factory instead of sockets, for example an
+     * {@link xyz.synse.udppacketer.common.transport.InMemoryNetwork}. Every transport gets a
+     * receive thread of its own, so this needs the {@link ServerEngine#SOCKET} engine.
+     * Must be called before {@link #start()}.
+     *
+     * @param transportFactory the factory binding the transports
+     */
+    public void setTransportFactory(TransportFactory transportFactory) {
+        if (running)
+            throw new IllegalStateException("Server is already running");
+        if (engine != ServerEngine.SOCKET)
+            throw new PacketerException("Custom transports need the SOCKET engine");
+
+        this.transportFactory = transportFactory;
+    }
+
+    /**
+     * @return the dispatcher running the listeners or null if they run on the receiving thread
+     */
+    @Nullable
+    public ListenerDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Registers the metrics of the server as an MBean while it is running, see {@link MetricsMBeans}.
+     *
+     * @param name           the name of the MBean, unique among the servers of the JVM
+     * @param perConnection  whether every connection gets an MBean of its own as well
+     */
+    public void enableMBeans(String name, boolean perConnection) {
+        if (running)
+            throw new IllegalStateException("Server is already running");
+        if (name == null || name.isEmpty())
+            throw new PacketerException("MBean name must not be empty");
+
+        this.mbeanName = name;
+        this.connectionMBeans = perConnection;
+    }
+
+    /**
+     * @return the traffic counters of all connections, including closed ones
+     */
+    public NetworkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the counters of all connections and the queue depths of the current ones
+     */
+    public MetricsSnapshot getMetricsSnapshot() {
+        return MetricsSnapshot.of(metrics, snapshotConnections(), dispatcher);
+    }
+
+    /**
+     * @param connection a connection of this server
+     * @return the counters and queue depths of the connection
+     */
+    public MetricsSnapshot getMetricsSnapshot(Connection connection) {
+        return MetricsSnapshot.of(connection.getMetrics(), new Connection[]{connection}, null);
     }
 
     public void start(){
-        if(this.datagramSocket == null || this.datagramSocket.isClosed()){
+        if(!running){
+            if (frozenProtocol)
+                packetProtocol.freeze();
+
+            for (int i = 0; i < shardCount; i++)
+                shards.add(new Shard(i));
+
             try {
-                this.datagramSocket = new DatagramSocket(this.serverPort);
-            } catch (SocketException e) {
+                boolean reusePort = shardCount > 1;
+                for (int port : serverPorts) {
+                    // With an ephemeral port the first shard picks it and the others join it
+                    int boundPort = port;
+                    for (Shard shard : shards) {
+                        Transport transport;
+                        if (transportFactory != null)
+                            transport = transportFactory.bind(boundPort, reusePort);
+                        else if (engine == ServerEngine.NIO)
+                            transport = new NioTransport(boundPort, false, reusePort);
+                        else
+                            transport = new UdpTransport(boundPort, reusePort);
+                        shard.getTransports().add(transport);
+                        boundPort = transport.getLocalPort();
+                    }
+                }
+            } catch (IOException e) {
+                closeShards();
                 throw new PacketerException("Failed to initialize socket", e);
             }
 
-            startReceiveThread();
-            startTimeOutThread();
+            if (broadcastThreads > 1)
+                broadcastExecutor = Executors.newFixedThreadPool(broadcastThreads - 1, runnable -> {
+                    Thread thread = new Thread(runnable, "UDPPacketer broadcast");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+            if (dispatcherFactory != null)
+                dispatcher = dispatcherFactory.get();
+            if (mbeanName != null) {
+                mbean = MetricsMBeans.objectName("Server", mbeanName, null);
+                MetricsMBeans.register(mbean, this::getMetricsSnapshot);
+            }
+
+            running = true;
+            for (Shard shard : shards) {
+                if (engine == ServerEngine.NIO) {
+                    try {
+                        NioEventLoop eventLoop = new NioEventLoop(this, shard);
+                        shard.setEventLoop(eventLoop);
+                        new Thread(eventLoop, "UDPPacketer NIO event loop #" + shard.getIndex()).start();
+                    } catch (IOException e) {
+                        close();
+                        throw new PacketerException("Failed to open selector", e);
+                    }
+                } else {
+                    for (Transport transport : shard.getTransports())
+                        startReceiveThread(transport, shard);
+                }
+            }
         }
     }
 
-    private void startReceiveThread() {
+    private void startReceiveThread(Transport transport, Shard shard) {
+        BufferPool receivePool = new BufferPool(Constants.RECEIVE_BUFFER_SIZE, Constants.BUFFER_POOL_SIZE, false);
         new Thread(() -> {
-            while (!datagramSocket.isClosed()) {
+            while (!transport.isClosed()) {
+                BufferPool.PooledBuffer in = receivePool.acquire();
                 try {
-                    byte[] receiveBuf = new byte[Constants.RECEIVE_BUFFER_SIZE];
-                    DatagramPacket datagramPacket = new DatagramPacket(receiveBuf, receiveBuf.length);
+                    InetSocketAddress sender = transport.receive(in.getBuffer());
+                    in.flip();
 
-                    datagramSocket.receive(datagramPacket);
+                    handleDatagram(in, sender, transport, shard);
+                } catch (IOException ignored){
+                } finally {
+                    in.release();
+                }
+            }
+        }).start();
+    }
 
-                    InetAddress address = datagramPacket.getAddress();
-                    int port = datagramPacket.getPort();
-                    DataInputStream inStream = new DataInputStream(new ByteArrayInputStream(datagramPacket.getData()));
-                    int packetType = inStream.readInt();
+    /**
+     * Handles one received datagram. Called by the receive threads and the NIO event loops,
+     * concurrently when the server is sharded.
+     *
+     * @param in        the datagram content, ready for reading
+     * @param sender    the address the datagram came from
+     * @param transport the transport the datagram was received on
+     * @param shard     the shard owning the transport
+     */
+    void handleDatagram(PacketBuffer in, InetSocketAddress sender, Transport transport, Shard shard) {
+        // Every frame of a datagram comes from the same sender, so it is looked up once
+        Connection connection = shard.getConnection(sender.getAddress(), sender.getPort());
+        NetworkMetrics metrics = connection != null ? connection.getMetrics() : this.metrics;
+        metrics.onDatagramReceived(in.remaining());
+        // Any datagram shows the client is alive, not only RTT probes
+        if (connection != null)
+            connection.getTimeOutTimer().reset();
 
-                    if (packetType == Framework.CONNECT) {
-                        Connection existing = getConnection(address, port);
-                        if (existing != null) {
-                            sendConnected(new Connection(address, port));
-                            System.out.println("Already connected client " + existing);
-                            continue;
-                        }
+        try {
+            handleFrames(in, sender, transport, shard, connection);
+        } catch (IOException e) {
+            metrics.onDecodeError(e);
+        }
+    }
 
-                        Connection connection = new Connection(address, port);
-                        connections.add(connection);
+    private void handleFrames(PacketBuffer in, InetSocketAddress sender, Transport transport, Shard shard, Connection connection) throws IOException {
+        int header = WireFormat.readHeader(in);
+        if (WireFormat.type(header) != Framework.BATCH) {
+            handleFrame(header, in, sender, transport, shard, connection);
+            return;
+        }
 
-                        sendConnected(connection);
+        int end = in.limit();
+        while (in.position() < end) {
+            int length = in.readVarInt();
+            int frameEnd = in.position() + length;
+            if (length < 1 || frameEnd > end)
+                throw new EOFException("Truncated batch");
 
-                        for (IListener listener : listeners)
-                            listener.connected(connection);
-                        continue;
-                    }
+            // A malformed frame is skipped, the length prefix tells where the next one starts
+            in.limit(frameEnd);
+            try {
+                int frameHeader = WireFormat.readHeader(in);
+                if (WireFormat.type(frameHeader) != Framework.BATCH)
+                    handleFrame(frameHeader, in, sender, transport, shard, connection);
+            } catch (IOException e) {
+                (connection != null ? connection.getMetrics() : metrics).onDecodeError(e);
+            } finally {
+                in.limit(end);
+                in.position(frameEnd);
+            }
+        }
+    }
 
-                    if (packetType == Framework.DISCONNECT) {
-                        Connection connection = getConnection(address, port);
-                        if (connection == null) {
-                            sendDisconnected(new Connection(address, port));
-                            System.out.println("Already disconnected client address=" + address.toString() + ", port=" + port);
-                            continue;
-                        }
+    private void handleFrame(int header, PacketBuffer in, InetSocketAddress sender, Transport transport, Shard shard, Connection known) throws IOException {
+        InetAddress address = sender.getAddress();
+        int port = sender.getPort();
+        int packetType = WireFormat.type(header);
+
+        // An earlier frame of the same datagram may have closed the connection. Frames of unknown
+        // addresses are only counted here, the branches below answer them without logging
+        Connection connection = known != null && !known.isClosed() ? known : null;
+        if (connection == null && packetType != Framework.CONNECT)
+            metrics.onUnknownConnection();
+
+        if ((WireFormat.flags(header) & Framework.FLAG_TIMESTAMP) != 0) {
+            TimestampEcho timestampEcho = connection != null ? connection.getTimestamps() : null;
+            if (timestampEcho != null)
+                timestampEcho.read(in);
+            else
+                TimestampEcho.skip(in);
+        }
 
-                        connections.remove(connection);
-                        sendDisconnected(connection);
+        if (packetType == Framework.CONNECT) {
+            if (connection != null) {
+                // A retried connect whose answer was lost, answer again without logging
+                Connection answer = new Connection(address, port, transport, metrics);
+                answer.setWireFormat(connection.getWireFormat());
+                if (connection.getTimestamps() != null)
+                    answer.enableTimestamps();
+                sendConnected(answer);
+                return;
+            }
 
-                        for (IListener listener : listeners)
-                            listener.disconnected(connection, "Disconnected");
-                        continue;
-                    }
+            // Clients supporting compact headers append the highest format they understand, newer ones their connect options
+            Connection accepted = new Connection(address, port, transport, new NetworkMetrics(metrics));
+            if (in.hasRemaining() && in.readUnsignedByte() >= WireFormat.COMPACT.ordinal()) {
+                accepted.setWireFormat(WireFormat.COMPACT);
+                int options = in.hasRemaining() ? in.readUnsignedByte() : 0;
+                if (timestamps && (options & Framework.CONNECT_TIMESTAMPS) != 0)
+                    accepted.enableTimestamps();
+            }
+            if (shard.getConnections().putIfAbsent(accepted) != null)
+                return;
+            if (connectionMBeans)
+                registerMBean(accepted);
+
+            if (batchMtu > 0 && accepted.getWireFormat() != WireFormat.LEGACY) {
+                accepted.enableBatching(batchMtu);
+                if (batchFlushInterval > 0)
+                    scheduleFlush(accepted);
+            }
+            if (maxBandwidth > 0)
+                accepted.enablePacing(maxBandwidth);
+            scheduleRTTRequest(accepted);
+            // The time out shrinks once RTT samples come in, so the first check comes early
+            scheduleTimeOut(accepted, shard, Math.min(Constants.MIN_TIMEOUT, accepted.getRtt().getTimeout()));
+            sendConnected(accepted);
+
+            dispatchConnected(accepted);
+            return;
+        }
 
-                    if (packetType == Framework.RTT_REQUEST) {
-                        Connection connection = getConnection(address, port);
-                        if (connection == null) {
-                            sendDisconnected(new Connection(address, port));
-                            System.out.println("Client is disconnected (address=" + address.toString() + ", port=" + port + ") but is sending RTT request.");
-                            continue;
-                        }
-
-                        connection.getTimeOutTimer().reset();
-                        sendRTTAnswer(inStream.readLong(), connection);
-                        continue;
-                    }
+        if (packetType == Framework.DISCONNECT) {
+            if (connection == null) {
+                sendDisconnected(new Connection(address, port, transport, metrics));
+                return;
+            }
 
-                    if (packetType == Framework.RTT_ANSWER) {
-                        Connection connection = getConnection(address, port);
-                        if (connection == null) {
-                            sendDisconnected(new Connection(address, port));
-                            System.out.println("Client is disconnected (address=" + address.toString() + ", port=" + port + ") but is sending RTT answer.");
-                            continue;
-                        }
-
-                        connection.getTimeOutTimer().reset();
-                        connection.setSmoothRTT(System.currentTimeMillis() - inStream.readLong());
-                        continue;
-                    }
+            if (!shard.getConnections().remove(connection))
+                return;
+            markClosed(connection);
+            sendDisconnected(connection);
+
+            dispatchDisconnected(connection, "Disconnected");
+            return;
+        }
 
-                    if (packetType == Framework.PACKET) {
-                        Connection connection = getConnection(address, port);
-                        if (connection == null) {
-                            sendDisconnected(new Connection(address, port));
-                            System.out.println("Client is disconnected (address=" + address.toString() + ", port=" + port + ") but is sending packets.");
-                            continue;
-                        }
+        if (packetType == Framework.RTT_REQUEST) {
+            if (connection == null) {
+                sendDisconnected(new Connection(address, port, transport, metrics));
+                return;
+            }
 
-                        Packet packet = packetProtocol.createClientboundPacket(inStream.readInt(), inStream);
+            sendRTTAnswer(in.readLong(), connection);
+            return;
+        }
 
-                        for (IListener listener : listeners)
-                            listener.received(packet, connection);
-                        continue;
-                    }
-                } catch (InvocationTargetException | InstantiationException | IllegalAccessException |
-                         NoSuchMethodException e) {
-                    throw new PacketerException("Error while receiving data", e);
-                } catch (IOException ignored){}
+        if (packetType == Framework.RTT_ANSWER) {
+            if (connection == null) {
+                sendDisconnected(new Connection(address, port, transport, metrics));
+                return;
             }
-        }).start();
+
+            long rtt = System.nanoTime() - in.readLong();
+            connection.onRttSample(rtt);
+
+            CongestionControl congestionControl = connection.getCongestionControl();
+            if (congestionControl != null)
+                congestionControl.onRttSample(TimeUnit.NANOSECONDS.toMillis(rtt));
+            return;
+        }
+
+        if (packetType == Framework.PACKET) {
+            if (connection == null) {
+                sendDisconnected(new Connection(address, port, transport, metrics));
+                return;
+            }
+
+            if ((WireFormat.flags(header) & Framework.FLAG_ACK) != 0)
+                connection.getReliableChannel().readAck(in);
+            if ((WireFormat.flags(header) & Framework.FLAG_COMPRESSED) != 0)
+                in = Compression.decompress(in, packetProtocol.getCompressionDictionary());
+
+            int packetId = WireFormat.of(header).readPacketId(in);
+            Packet packet = packetProtocol.createClientboundPacket(packetId, in);
+
+            dispatchReceived(packetId, packet, connection);
+            return;
+        }
+
+        if (packetType == Framework.RELIABLE || packetType == Framework.ACK) {
+            if (connection == null) {
+                sendDisconnected(new Connection(address, port, transport, metrics));
+                return;
+            }
+
+            ReliableChannel channel = connection.getReliableChannel();
+            if ((WireFormat.flags(header) & Framework.FLAG_ACK) != 0)
+                channel.readAck(in);
+            if (packetType == Framework.ACK)
+                return;
+
+            WireFormat format = WireFormat.of(header);
+            channel.receive(in.readUnsignedShort(), WireFormat.flags(header), in, (body, flags) -> {
+                if ((flags & Framework.FLAG_COMPRESSED) != 0)
+                    body = Compression.decompress(body, packetProtocol.getCompressionDictionary());
+                int packetId = format.readPacketId(body);
+                Packet packet = packetProtocol.createClientboundPacket(packetId, body);
+
+                dispatchReceived(packetId, packet, connection);
+            });
+            return;
+        }
+
+        if (packetType == Framework.SEQUENCED) {
+            if (connection == null) {
+                sendDisconnected(new Connection(address, port, transport, metrics));
+                return;
+            }
+
+            if ((WireFormat.flags(header) & Framework.FLAG_ACK) != 0)
+                connection.getReliableChannel().readAck(in);
+
+            // Stale packets are dropped before they are deserialized
+            int channel = in.readVarInt();
+            if (!connection.getSequencedChannels().accept(channel, in.readUnsignedShort()))
+                return;
+            if ((WireFormat.flags(header) & Framework.FLAG_COMPRESSED) != 0)
+                in = Compression.decompress(in, packetProtocol.getCompressionDictionary());
+
+            int packetId = WireFormat.of(header).readPacketId(in);
+            Packet packet = packetProtocol.createClientboundPacket(packetId, in);
+
+            dispatchReceived(packetId, packet, connection);
+            return;
+        }
+
+        if (packetType == Framework.SNAPSHOT || packetType == Framework.SNAPSHOT_ACK) {
+            if (connection == null) {
+                sendDisconnected(new Connection(address, port, transport, metrics));
+                return;
+            }
+
+            if ((WireFormat.flags(header) & Framework.FLAG_ACK) != 0)
+                connection.getReliableChannel().readAck(in);
+
+            int packetId = WireFormat.of(header).readPacketId(in);
+            if (packetType == Framework.SNAPSHOT_ACK) {
+                connection.getSnapshotChannel().acknowledge(packetId, in.readUnsignedShort());
+                return;
+            }
+
+            Packet packet = packetProtocol.newClientboundPacket(packetId);
+            if (!(packet instanceof SnapshotPacket))
+                throw new IOException("Packet " + packetId + " is not a snapshot");
+
+            int sequence = connection.getSnapshotChannel().read(packetId, (SnapshotPacket) packet, in);
+            if (sequence < 0)
+                return;
+            sendSnapshotAck(connection, packetId, sequence);
+
+            dispatchReceived(packetId, packet, connection);
+            return;
+        }
+
+        if (packetType == Framework.FRAGMENT) {
+            if (connection == null) {
+                sendDisconnected(new Connection(address, port, transport, metrics));
+                return;
+            }
+
+            int group = in.readUnsignedShort();
+            int index = in.readVarInt();
+            int count = in.readVarInt();
+            PacketBuffer frame = connection.getFragmentAssembler().add(group, index, count, in);
+            if (frame == null)
+                return;
+
+            int frameHeader = WireFormat.readHeader(frame);
+            int frameType = WireFormat.type(frameHeader);
+            if (frameType != Framework.BATCH && frameType != Framework.FRAGMENT)
+                handleFrame(frameHeader, frame, sender, transport, shard, connection);
+        }
     }
 
-    private void startTimeOutThread(){
-        new Thread(() -> {
-            while(!datagramSocket.isClosed()){
-                if(connections.isEmpty())
-                    continue;
+    private void scheduleRTTRequest(Connection connection) {
+        TimingWheel.shared().schedule(() -> {
+            if (!running || connection.isClosed())
+                return;
 
-                Iterator<Connection> i = connections.iterator();
-                while (i.hasNext()) {
-                    try {
-                        Connection con = i.next();
+            scheduleRTTRequest(connection);
+            // With timestamps the traffic itself measures the RTT and keeps the client alive
+            if (connection.getTimestamps() != null && connection.getCongestionControl() == null
+                    && connection.getSendIdleTime() < Constants.RTT_TIMER)
+                return;
+            try {
+                sendRTTRequest(System.nanoTime(), connection);
+            } catch (IOException e) {
+                // The socket may close under the timer, the next probe tries again
+                connection.getMetrics().onSendFailure();
+            }
+        }, Constants.RTT_TIMER);
+    }
 
-                        if (con.getRttTimer().hasElapsed(Constants.RTT_TIMER, true)) {
-                            sendRTTRequest(System.currentTimeMillis(), con);
-                        }
-                        if (con.getTimeOutTimer().hasElapsed(Constants.TIMEOUT, true)) {
-                            sendDisconnected(con);
+    private void scheduleFlush(Connection connection) {
+        TimingWheel.shared().schedule(() -> {
+            if (!running || connection.isClosed())
+                return;
 
-                            for (IListener listener : listeners)
-                                listener.disconnected(con, "Timed out");
+            scheduleFlush(connection);
+            flushQuietly(connection);
+        }, batchFlushInterval);
+    }
 
-                            i.remove();
-                        }
-                    }catch (NoSuchElementException | ConcurrentModificationException ignored){}
-                }
+    private void scheduleTimeOut(Connection connection, Shard shard, long delay) {
+        TimingWheel.shared().schedule(() -> {
+            if (!running || connection.isClosed())
+                return;
+
+            // Received datagrams only reset the timer, so check again when it would elapse
+            long idle = connection.getTimeOutTimer().getElapsed();
+            long timeout = connection.getRtt().getTimeout();
+            if (idle < timeout) {
+                scheduleTimeOut(connection, shard, timeout - idle);
+                return;
             }
-        }).start();
+
+            if (!shard.getConnections().remove(connection))
+                return;
+            markClosed(connection);
+
+            // The client most likely is gone already, so a failed answer is only counted
+            try {
+                PacketBuffer buffer = sendBuffer.get().clear();
+                connection.getWireFormat().writeHeader(buffer, Framework.DISCONNECTED, 0);
+                sendBuffer(buffer, connection);
+            } catch (IOException e) {
+                connection.getMetrics().onSendFailure();
+            }
+
+            dispatchDisconnected(connection, "Timed out");
+        }, delay);
     }
 
     public void addListener(IListener listener) {
@@ -177,20 +682,66 @@ public class Server {
         listeners.remove(listener);
     }
 
+    /**
+     * Registers a handler of a received packet class. Handlers are looked up by the id the packet
+     * was received with and run before the listeners, on the same thread and in the same order.
+     *
+     * @param type    the packet class, registered in the protocol
+     * @param handler called with every received packet of the class and its sender
+     * @throws IllegalArgumentException if the class is not registered in the protocol
+     */
+    public <T extends Packet> void onPacket(Class<T> type, BiConsumer<? super T, Connection> handler) {
+        handlers.add(type, handler);
+    }
+
+    public void removeHandler(Class<? extends Packet> type, BiConsumer<?, Connection> handler) {
+        handlers.remove(type, handler);
+    }
+
     public void send(Packet packet, Connection connection) {
         try {
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutStream = new DataOutputStream(outStream);
+            PacketBuffer buffer = sendBuffer.get().clear();
+            connection.writeFrameHeader(buffer, Framework.PACKET);
+            int bodyStart = buffer.position();
+            connection.getWireFormat().writePacketId(buffer, packetProtocol.getServerboundId(packet));
+            packet.write(buffer);
 
-            dataOutStream.writeInt(Framework.PACKET);
-            dataOutStream.writeInt(packetProtocol.getServerboundId(packet));
-            packet.write(dataOutStream);
+            connection.sendFrame(compress(connection.getWireFormat(), buffer.flip().getBuffer(), bodyStart));
+            connection.getMetrics().onPacketSent();
+
+            for(IListener listener : listeners)
+                listener.sent(packet, connection);
+        } catch (IOException e) {
+            throw new PacketerException("Failed to send packet", e);
+        }
+    }
 
-            byte[] bytes = outStream.toByteArray();
+    /**
+     * Sends a packet on a sequenced channel. The client drops it if it already received
+     * a newer packet of that channel, which suits state updates where only the latest
+     * one matters. Requires a client with compact header support, see {@link WireFormat}.
+     *
+     * @param packet     the packet to send
+     * @param connection the receiver
+     * @param channel    the channel, from 0 to {@link Constants#SEQUENCED_CHANNELS} exclusive
+     */
+    public void sendSequenced(Packet packet, Connection connection, int channel) {
+        if (connection.getWireFormat() == WireFormat.LEGACY)
+            throw new PacketerException("Client does not support sequenced packets");
+        if (!connection.getSequencedChannels().isValid(channel))
+            throw new PacketerException("Invalid sequenced channel " + channel);
 
-            dataOutStream.close();
+        try {
+            PacketBuffer buffer = sendBuffer.get().clear();
+            connection.writeFrameHeader(buffer, Framework.SEQUENCED);
+            buffer.writeVarInt(channel);
+            buffer.writeShort(connection.getSequencedChannels().next(channel));
+            int bodyStart = buffer.position();
+            connection.getWireFormat().writePacketId(buffer, packetProtocol.getServerboundId(packet));
+            packet.write(buffer);
 
-            datagramSocket.send(new DatagramPacket(bytes, bytes.length, connection.getAddress(), connection.getPort()));
+            connection.sendFrame(compress(connection.getWireFormat(), buffer.flip().getBuffer(), bodyStart));
+            connection.getMetrics().onPacketSent();
 
             for(IListener listener : listeners)
                 listener.sent(packet, connection);
@@ -199,86 +750,366 @@ public class Server {
         }
     }
 
-    public void sendToAll(Packet packet) {
-        for(Connection connection : connections) {
-            try {
-                ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-                DataOutputStream dataOutStream = new DataOutputStream(outStream);
-
-                dataOutStream.writeInt(Framework.PACKET);
-                dataOutStream.writeInt(packetProtocol.getServerboundId(packet));
-                packet.write(dataOutStream);
-
-                byte[] bytes = outStream.toByteArray();
+    /**
+     * Sends a snapshot encoded against the newest snapshot of the same packet the client
+     * acknowledged, so only changed fields are sent, see {@link SnapshotChannel}. Like
+     * sequenced packets, older snapshots than the newest received one are dropped. Requires
+     * a client with compact header support, see {@link WireFormat}.
+     *
+     * @param packet     the snapshot to send
+     * @param connection the receiver
+     */
+    public void sendSnapshot(SnapshotPacket packet, Connection connection) {
+        try {
+            writeSnapshot(packet, connection);
 
-                dataOutStream.close();
+            for(IListener listener : listeners)
+                listener.sent(packet, connection);
+        } catch (IOException e) {
+            throw new PacketerException("Failed to send packet", e);
+        }
+    }
 
-                datagramSocket.send(new DatagramPacket(bytes, bytes.length, connection.getAddress(), connection.getPort()));
+    /**
+     * Sends a snapshot to all connections supporting it, each encoded against its own
+     * baseline, see {@link #sendSnapshot(SnapshotPacket, Connection)}. Listeners get a single
+     * {@link IListener#sentToAll(Packet, List)} call.
+     *
+     * @param packet the snapshot to send
+     */
+    public void sendSnapshotToAll(SnapshotPacket packet) {
+        Connection[] connections = snapshotConnections();
+        List<Connection> recipients = new ArrayList<>(connections.length);
+        IOException failure = null;
+        for (Connection connection : connections) {
+            if (connection.getWireFormat() == WireFormat.LEGACY)
+                continue;
 
-                for(IListener listener : listeners)
-                    listener.sent(packet, connection);
+            try {
+                writeSnapshot(packet, connection);
+                recipients.add(connection);
             } catch (IOException e) {
-                throw new PacketerException("Failed to send packet", e);
+                failure = e;
             }
         }
+
+        for (IListener listener : listeners)
+            listener.sentToAll(packet, Collections.unmodifiableList(recipients));
+
+        if (failure != null)
+            throw new PacketerException("Failed to send packet", failure);
     }
 
-    private void sendRTTAnswer(long time, Connection connection) {
+    private void writeSnapshot(SnapshotPacket packet, Connection connection) throws IOException {
+        if (connection.getWireFormat() == WireFormat.LEGACY)
+            throw new PacketerException("Client does not support snapshots");
+
+        int packetId = packetProtocol.getServerboundId(packet);
+        PacketBuffer buffer = sendBuffer.get().clear();
+        connection.writeFrameHeader(buffer, Framework.SNAPSHOT);
+        connection.getWireFormat().writePacketId(buffer, packetId);
+        connection.getSnapshotChannel().write(packetId, packet, buffer);
+
+        connection.sendFrame(buffer.flip().getBuffer());
+        connection.getMetrics().onPacketSent();
+    }
+
+    private void sendSnapshotAck(Connection connection, int packetId, int sequence) throws IOException {
+        PacketBuffer buffer = sendBuffer.get().clear();
+        connection.writeFrameHeader(buffer, Framework.SNAPSHOT_ACK);
+        connection.getWireFormat().writePacketId(buffer, packetId);
+        buffer.writeShort(sequence);
+
+        connection.sendFrame(buffer.flip().getBuffer());
+    }
+
+    /**
+     * Sends a packet reliably, it is resent until acknowledged and the client receives
+     * reliable packets in the order they were sent. Requires a client with compact
+     * header support, see {@link WireFormat}.
+     *
+     * @param packet     the packet to send
+     * @param connection the receiver
+     */
+    public void sendReliable(Packet packet, Connection connection) {
+        if (connection.getWireFormat() == WireFormat.LEGACY)
+            throw new PacketerException("Client does not support reliable packets");
+
         try {
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutStream = new DataOutputStream(outStream);
+            PacketBuffer buffer = sendBuffer.get().clear();
+            connection.getWireFormat().writePacketId(buffer, packetProtocol.getServerboundId(packet));
+            packet.write(buffer);
+
+            ByteBuffer body = buffer.flip().getBuffer();
+            ByteBuffer compressed = shouldCompress(connection.getWireFormat(), body.remaining())
+                    ? Compression.compress(body, packetProtocol.getCompressionDictionary())
+                    : null;
+            if (compressed != null)
+                connection.getReliableChannel().send(compressed, Framework.FLAG_COMPRESSED);
+            else
+                connection.getReliableChannel().send(body);
+            connection.getMetrics().onPacketSent();
 
-            dataOutStream.writeInt(Framework.RTT_ANSWER);
-            dataOutStream.writeLong(time);
+            for(IListener listener : listeners)
+                listener.sent(packet, connection);
+        } catch (IOException e) {
+            throw new PacketerException("Failed to send packet", e);
+        }
+    }
+
+    /**
+     * Sends a packet to all connections. The packet is encoded once and the same
+     * datagram is sent to every connection, listeners get a single
+     * {@link IListener#sentToAll(Packet, List)} call.
+     *
+     * @param packet the packet to send
+     */
+    public void sendToAll(Packet packet) {
+        broadcast(packet, snapshotConnections());
+    }
 
-            byte[] bytes = outStream.toByteArray();
+    /**
+     * Sends a packet to all members of a group, see {@link #sendToAll(Packet)}.
+     * Does nothing if the group does not exist.
+     *
+     * @param group  name of the group
+     * @param packet the packet to send
+     */
+    public void sendTo(String group, Packet packet) {
+        ConnectionGroup connectionGroup = groups.get(group);
+        if (connectionGroup != null)
+            sendTo(connectionGroup, packet);
+    }
 
-            dataOutStream.close();
+    /**
+     * Sends a packet to all members of a group, see {@link #sendToAll(Packet)}.
+     *
+     * @param group  the group
+     * @param packet the packet to send
+     */
+    public void sendTo(ConnectionGroup group, Packet packet) {
+        broadcast(packet, group.snapshot());
+    }
 
-            datagramSocket.send(new DatagramPacket(bytes, bytes.length, connection.getAddress(), connection.getPort()));
+    /**
+     * Returns the group with the given name, creating it if it does not exist yet.
+     *
+     * @param name name of the group
+     * @return the group
+     */
+    public ConnectionGroup getGroup(String name) {
+        return groups.computeIfAbsent(name, ConnectionGroup::new);
+    }
+
+    /**
+     * Removes a group, its connections stay connected.
+     *
+     * @param name name of the group
+     * @return the removed group or null if it did not exist
+     */
+    @Nullable
+    public ConnectionGroup removeGroup(String name) {
+        return groups.remove(name);
+    }
+
+    public Collection<ConnectionGroup> getGroups() {
+        return Collections.unmodifiableCollection(groups.values());
+    }
+
+    private void broadcast(Packet packet, Connection[] connections) {
+        if (connections.length == 0)
+            return;
+
+        int packetId = packetProtocol.getServerboundId(packet);
+        PacketBuffer buffer = sendBuffer.get().clear();
+        int bodyStart;
+        int payloadStart;
+        try {
+            WireFormat.COMPACT.writeHeader(buffer, Framework.PACKET, 0);
+            bodyStart = buffer.position();
+            WireFormat.COMPACT.writePacketId(buffer, packetId);
+            payloadStart = buffer.position();
+            packet.write(buffer);
         } catch (IOException e) {
             throw new PacketerException("Failed to send packet", e);
         }
+
+        // The buffers are only read from here on, the sender threads share them through duplicates
+        ByteBuffer[] frames = new ByteBuffer[WireFormat.values().length];
+        ByteBuffer data = buffer.flip().getBuffer();
+        frames[WireFormat.COMPACT.ordinal()] = data;
+        if (hasWireFormat(connections, WireFormat.LEGACY)) {
+            // Peers with legacy headers get the same payload behind a legacy header
+            PacketBuffer legacy = legacySendBuffer.get().clear();
+            WireFormat.LEGACY.writeHeader(legacy, Framework.PACKET, 0);
+            WireFormat.LEGACY.writePacketId(legacy, packetId);
+            data.position(payloadStart);
+            legacy.writeBytes(data);
+            data.position(0);
+            frames[WireFormat.LEGACY.ordinal()] = legacy.flip().getBuffer();
+        }
+        frames[WireFormat.COMPACT.ordinal()] = compress(WireFormat.COMPACT, data, bodyStart);
+
+        ExecutorService executor = broadcastExecutor;
+        IOException failure;
+        if (executor == null || connections.length < Constants.BROADCAST_CHUNK_SIZE * 2)
+            failure = sendAll(frames, connections, 0, connections.length);
+        else
+            failure = sendAllParallel(executor, frames, connections);
+
+        List<Connection> recipients = Collections.unmodifiableList(Arrays.asList(connections));
+        for (IListener listener : listeners)
+            listener.sentToAll(packet, recipients);
+
+        if (failure != null)
+            throw new PacketerException("Failed to send packet", failure);
     }
 
-    private void sendRTTRequest(long time, Connection connection) {
+    private static boolean hasWireFormat(Connection[] connections, WireFormat format) {
+        for (Connection connection : connections) {
+            if (connection.getWireFormat() == format)
+                return true;
+        }
+        return false;
+    }
+
+    private IOException sendAllParallel(ExecutorService executor, ByteBuffer[] frames, Connection[] connections) {
+        int chunks = Math.min(broadcastThreads, connections.length / Constants.BROADCAST_CHUNK_SIZE);
+        int chunkSize = (connections.length + chunks - 1) / chunks;
+
+        List<Future<IOException>> futures = new ArrayList<>(chunks - 1);
+        for (int from = chunkSize; from < connections.length; from += chunkSize) {
+            int start = from;
+            int end = Math.min(from + chunkSize, connections.length);
+            ByteBuffer[] duplicates = new ByteBuffer[frames.length];
+            for (int i = 0; i < frames.length; i++)
+                duplicates[i] = frames[i] != null ? frames[i].duplicate() : null;
+            try {
+                futures.add(executor.submit(() -> sendAll(duplicates, connections, start, end)));
+            } catch (RejectedExecutionException e) {
+                // The server was closed meanwhile
+                futures.add(CompletableFuture.completedFuture(sendAll(duplicates, connections, start, end)));
+            }
+        }
+
+        IOException failure = sendAll(frames, connections, 0, Math.min(chunkSize, connections.length));
+        for (Future<IOException> future : futures) {
+            IOException chunkFailure;
+            try {
+                chunkFailure = future.get();
+            } catch (ExecutionException e) {
+                chunkFailure = new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                chunkFailure = new IOException("Interrupted while broadcasting", e);
+            }
+            failure = addFailure(failure, chunkFailure);
+        }
+        return failure;
+    }
+
+    private static IOException sendAll(ByteBuffer[] frames, Connection[] connections, int from, int to) {
+        IOException failure = null;
+        for (int i = from; i < to; i++) {
+            Connection connection = connections[i];
+            if (connection.isClosed())
+                continue;
+
+            ByteBuffer data = frames[connection.getWireFormat().ordinal()];
+            try {
+                connection.sendFrame(data);
+                connection.getMetrics().onPacketSent();
+            } catch (IOException e) {
+                failure = addFailure(failure, e);
+            }
+        }
+        return failure;
+    }
+
+    private static IOException addFailure(IOException failure, IOException next) {
+        if (failure == null)
+            return next;
+        if (next != null)
+            failure.addSuppressed(next);
+        return failure;
+    }
+
+    /**
+     * Sends the batched packets of a connection right away.
+     *
+     * @param connection the connection to flush
+     */
+    public void flush(Connection connection) {
+        SendBatch batch = connection.getBatch();
+        if (batch == null)
+            return;
+
         try {
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutStream = new DataOutputStream(outStream);
+            batch.flush();
+        } catch (IOException e) {
+            throw new PacketerException("Failed to send packet", e);
+        }
+    }
 
-            dataOutStream.writeInt(Framework.RTT_REQUEST);
-            dataOutStream.writeLong(time);
+    /**
+     * Sends the batched packets of all connections right away.
+     */
+    public void flushAll() {
+        for (Connection connection : snapshotConnections())
+            flushQuietly(connection);
+    }
+
+    private void flushQuietly(Connection connection) {
+        SendBatch batch = connection.getBatch();
+        if (batch == null)
+            return;
 
-            byte[] bytes = outStream.toByteArray();
+        try {
+            batch.flush();
+        } catch (IOException ignored) {
+        }
+    }
 
-            dataOutStream.close();
+    private void sendRTTAnswer(long time, Connection connection) {
+        try {
+            PacketBuffer buffer = sendBuffer.get().clear();
+            connection.writeFrameHeader(buffer, Framework.RTT_ANSWER, false);
+            buffer.writeLong(time);
 
-            datagramSocket.send(new DatagramPacket(bytes, bytes.length, connection.getAddress(), connection.getPort()));
+            sendBuffer(buffer, connection);
         } catch (IOException e) {
             throw new PacketerException("Failed to send packet", e);
         }
     }
 
+    private void sendRTTRequest(long time, Connection connection) throws IOException {
+        PacketBuffer buffer = sendBuffer.get().clear();
+        connection.writeFrameHeader(buffer, Framework.RTT_REQUEST, false);
+        buffer.writeLong(time);
+
+        sendBuffer(buffer, connection);
+    }
+
     public void kick(Connection connection){
+        boolean removed = false;
+        for (Shard shard : shards)
+            removed |= shard.getConnections().remove(connection);
+        if (!removed)
+            return;
+        markClosed(connection);
+
+        flushQuietly(connection);
         sendDisconnected(connection);
-        connections.remove(connection);
 
-        for (IListener listener : listeners)
-            listener.disconnected(connection, "Kicked");
+        dispatchDisconnected(connection, "Kicked");
     }
 
     private void sendDisconnected(Connection connection) {
         try {
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutStream = new DataOutputStream(outStream);
-
-            dataOutStream.writeInt(Framework.DISCONNECTED);
+            PacketBuffer buffer = sendBuffer.get().clear();
+            connection.getWireFormat().writeHeader(buffer, Framework.DISCONNECTED, 0);
 
-            byte[] bytes = outStream.toByteArray();
-
-            dataOutStream.close();
-
-            datagramSocket.send(new DatagramPacket(bytes, bytes.length, connection.getAddress(), connection.getPort()));
+            sendBuffer(buffer, connection);
         } catch (IOException e) {
             throw new PacketerException("Failed to send packet", e);
         }
@@ -286,39 +1117,173 @@ public class Server {
 
     private void sendConnected(Connection connection) {
         try {
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutStream = new DataOutputStream(outStream);
-
-            dataOutStream.writeInt(Framework.CONNECTED);
-
-            byte[] bytes = outStream.toByteArray();
+            PacketBuffer buffer = sendBuffer.get().clear();
+            // Always a legacy header, followed by the format the client should use from now on and the accepted options
+            WireFormat.LEGACY.writeHeader(buffer, Framework.CONNECTED, 0);
+            buffer.writeByte(connection.getWireFormat().ordinal());
+            buffer.writeByte(connection.getTimestamps() != null ? Framework.CONNECT_TIMESTAMPS : 0);
 
-            dataOutStream.close();
-
-            datagramSocket.send(new DatagramPacket(bytes, bytes.length, connection.getAddress(), connection.getPort()));
+            sendBuffer(buffer, connection);
         } catch (IOException e) {
             throw new PacketerException("Failed to send packet", e);
         }
     }
 
+    private boolean shouldCompress(WireFormat format, int size) {
+        // Peers with legacy headers predate compression
+        return compressionThreshold > 0 && format != WireFormat.LEGACY && size >= compressionThreshold;
+    }
+
+    private ByteBuffer compress(WireFormat format, ByteBuffer frame, int bodyStart) {
+        if (!shouldCompress(format, frame.limit() - bodyStart))
+            return frame;
+
+        ByteBuffer compressed = Compression.compress(frame, bodyStart, format, packetProtocol.getCompressionDictionary());
+        return compressed != null ? compressed : frame;
+    }
+
+    private void sendBuffer(PacketBuffer buffer, Connection connection) throws IOException {
+        connection.sendDirect(buffer.flip().getBuffer());
+    }
+
     public void close(){
-        for(Connection connection : connections){
+        for(Connection connection : snapshotConnections()){
+            connection.markClosed();
+            flushQuietly(connection);
             sendDisconnected(connection);
+            if (connectionMBeans)
+                MetricsMBeans.unregister(connectionMBeanName(connection));
         }
-        datagramSocket.close();
+        running = false;
+        closeShards();
+        groups.clear();
+
+        if (broadcastExecutor != null) {
+            broadcastExecutor.shutdown();
+            broadcastExecutor = null;
+        }
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            dispatcher = null;
+        }
+        MetricsMBeans.unregister(mbean);
+        mbean = null;
+    }
+
+    private void dispatchConnected(Connection connection) {
+        dispatchLifecycle(connection, () -> {
+            for (IListener listener : listeners)
+                listener.connected(connection);
+        });
+    }
+
+    private void dispatchDisconnected(Connection connection, String reason) {
+        dispatchLifecycle(connection, () -> {
+            for (IListener listener : listeners)
+                listener.disconnected(connection, reason);
+        });
+    }
+
+    private void dispatchReceived(int packetId, Packet packet, Connection connection) {
+        connection.getMetrics().onPacketReceived();
+        dispatch(connection, () -> {
+            handlers.handle(packetId, packet, connection);
+            for (IListener listener : listeners)
+                listener.received(packet, connection);
+        });
+    }
+
+    private void dispatch(Connection connection, Runnable event) {
+        ListenerDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null)
+            dispatcher.execute(connection, event);
+        else
+            event.run();
+    }
+
+    private void dispatchLifecycle(Connection connection, Runnable event) {
+        ListenerDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null)
+            dispatcher.executeLifecycle(connection, event);
+        else
+            event.run();
+    }
+
+    private void markClosed(Connection connection) {
+        connection.markClosed();
+        for (ConnectionGroup group : groups.values())
+            group.remove(connection);
+        if (connectionMBeans)
+            MetricsMBeans.unregister(connectionMBeanName(connection));
+    }
+
+    private void registerMBean(Connection connection) {
+        ObjectName name = connectionMBeanName(connection);
+        MetricsMBeans.register(name, () -> getMetricsSnapshot(connection));
+    }
+
+    private ObjectName connectionMBeanName(Connection connection) {
+        InetSocketAddress address = connection.getSocketAddress();
+        return MetricsMBeans.objectName("Server", mbeanName, address.getAddress().getHostAddress() + ":" + address.getPort());
+    }
+
+    private void closeShards() {
+        for (Shard shard : shards)
+            shard.close();
+        shards.clear();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the transports the server is bound with, one per port and shard.
+     *
+     * @return the bound transports
+     */
+    public List<Transport> getTransports() {
+        List<Transport> transports = new ArrayList<>();
+        for (Shard shard : shards)
+            transports.addAll(shard.getTransports());
+        return Collections.unmodifiableList(transports);
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    Shard getShard(int index) {
+        return shards.get(index);
     }
 
     @Nullable
     public Connection getConnection(InetAddress address, int port) {
-        for (Connection connection : connections) {
-            if (connection.getPort() == port && connection.getAddress() == address)
+        for (Shard shard : shards) {
+            Connection connection = shard.getConnection(address, port);
+            if (connection != null)
                 return connection;
         }
 
         return null;
     }
 
-    public ArrayList<Connection> getConnections() {
-        return connections;
+    /**
+     * Returns a read-only snapshot of the connections of all shards.
+     *
+     * @return the connections
+     */
+    public List<Connection> getConnections() {
+        return Collections.unmodifiableList(Arrays.asList(snapshotConnections()));
+    }
+
+    private Connection[] snapshotConnections() {
+        if (shards.size() == 1)
+            return shards.get(0).getConnections().snapshot();
+
+        List<Connection> connections = new ArrayList<>();
+        for (Shard shard : shards)
+            connections.addAll(Arrays.asList(shard.getConnections().snapshot()));
+        return connections.toArray(new Connection[0]);
     }
 }
@@ -1,42 +1,277 @@
 package xyz.synse.udppacketer.server;
 
 import xyz.synse.udppacketer.PacketerException;
+import xyz.synse.udppacketer.common.Connection;
 import xyz.synse.udppacketer.common.IListener;
+import xyz.synse.udppacketer.common.ListenerDispatcher;
+import xyz.synse.udppacketer.common.OverflowPolicy;
+import xyz.synse.udppacketer.common.packets.Packet;
 import xyz.synse.udppacketer.common.packets.PacketProtocol;
+import xyz.synse.udppacketer.common.transport.TransportFactory;
+import xyz.synse.udppacketer.common.utils.Constants;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class ServerBuilder {
-    private int port = 4425;
+    private int[] ports = {4425};
+    private ServerEngine engine = ServerEngine.SOCKET;
+    private int shards = 1;
+    private int broadcastThreads = 1;
+    private int batchMtu = 0;
+    private long batchFlushInterval = 0;
+    private long maxBandwidth = 0;
+    private int compressionThreshold = 0;
+    private Supplier<ListenerDispatcher> dispatcherFactory;
+    private String mbeanName;
+    private boolean connectionMBeans = false;
+    private TransportFactory transportFactory;
+    private boolean timestamps = false;
+    private boolean frozenProtocol = false;
     private PacketProtocol packetProtocol;
     private ArrayList<IListener> listeners = new ArrayList<>();
+    private ArrayList<Consumer<Server>> handlers = new ArrayList<>();
 
     public ServerBuilder withPort(int port) {
-        this.port = port;
+        this.ports = new int[]{port};
+        return this;
+    }
+
+    /**
+     * Binds the server to all the given ports. With the {@link ServerEngine#NIO}
+     * engine all of them are served by a single event loop thread.
+     */
+    public ServerBuilder withPorts(int... ports) {
+        this.ports = ports.clone();
+        return this;
+    }
+
+    public ServerBuilder withEngine(ServerEngine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * Runs the server with the given amount of receive shards. Each shard binds
+     * its own socket per port with SO_REUSEPORT and runs its own receive loop,
+     * the kernel hashes every client to one of them. Listeners are then called
+     * from several threads and must be thread safe.
+     */
+    public ServerBuilder withShards(int shards) {
+        this.shards = shards;
         return this;
     }
     
+    /**
+     * Splits broadcasts to many connections across the given amount of threads,
+     * the calling thread included. The packet is still encoded only once.
+     */
+    public ServerBuilder withBroadcastThreads(int broadcastThreads) {
+        this.broadcastThreads = broadcastThreads;
+        return this;
+    }
+
+    /**
+     * Batches packets sent to a connection into datagrams of up to
+     * {@link Constants#BATCH_MTU} bytes, flushed every {@link Constants#BATCH_FLUSH_INTERVAL} milliseconds.
+     */
+    public ServerBuilder withBatching() {
+        return withBatching(Constants.BATCH_MTU, Constants.BATCH_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Batches packets sent to a connection into datagrams of up to the given size.
+     * Clients must have batching support.
+     *
+     * @param mtu           maximum datagram size
+     * @param flushInterval milliseconds between automatic flushes, 0 to only flush on {@link Server#flush}
+     */
+    public ServerBuilder withBatching(int mtu, long flushInterval) {
+        this.batchMtu = mtu;
+        this.batchFlushInterval = flushInterval;
+        return this;
+    }
+
+    /**
+     * Paces packets sent to a connection at a rate found by congestion control, without a bandwidth ceiling.
+     */
+    public ServerBuilder withCongestionControl() {
+        return withCongestionControl(Long.MAX_VALUE);
+    }
+
+    /**
+     * Paces packets sent to a connection at a rate found by congestion control.
+     *
+     * @param maxBandwidth the bandwidth ceiling in bytes per second
+     */
+    public ServerBuilder withCongestionControl(long maxBandwidth) {
+        this.maxBandwidth = maxBandwidth;
+        return this;
+    }
+
+    /**
+     * Compresses packets of at least {@link Constants#COMPRESSION_THRESHOLD} bytes sent to clients.
+     */
+    public ServerBuilder withCompression() {
+        return withCompression(Constants.COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * Compresses packets sent to clients if they are at least the given size and get smaller.
+     * A preset dictionary can be set with {@link xyz.synse.udppacketer.common.packets.PacketProtocol#setCompressionDictionary(byte[])}.
+     *
+     * @param threshold the minimum packet size in bytes
+     */
+    public ServerBuilder withCompression(int threshold) {
+        this.compressionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Calls the listeners on the given amount of threads instead of the receiving thread, in
+     * order per connection, with up to {@link Constants#DISPATCH_QUEUE_SIZE} queued events per
+     * stripe and the oldest packet event dropped beyond that. Connected and disconnected
+     * events are never dropped.
+     *
+     * @param threads the amount of dispatch threads
+     */
+    public ServerBuilder withAsyncDispatch(int threads) {
+        return withAsyncDispatch(threads, Constants.DISPATCH_QUEUE_SIZE, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Calls the listeners on the given amount of threads instead of the receiving thread, in
+     * order per connection.
+     *
+     * @param threads   the amount of dispatch threads
+     * @param queueSize the maximum amount of queued events per stripe
+     * @param policy    what to do when a queue is full
+     */
+    public ServerBuilder withAsyncDispatch(int threads, int queueSize, OverflowPolicy policy) {
+        this.dispatcherFactory = () -> ListenerDispatcher.striped(threads, queueSize, policy);
+        return this;
+    }
+
+    /**
+     * Calls the listeners on virtual threads instead of the receiving thread, in order per
+     * connection, see {@link ListenerDispatcher#virtualThreads(int, OverflowPolicy)}.
+     *
+     * @param queueSize the maximum amount of queued events per stripe
+     * @param policy    what to do when a queue is full
+     */
+    public ServerBuilder withVirtualThreadDispatch(int queueSize, OverflowPolicy policy) {
+        this.dispatcherFactory = () -> ListenerDispatcher.virtualThreads(queueSize, policy);
+        return this;
+    }
+
     public ServerBuilder withProtocol(PacketProtocol packetProtocol){
         this.packetProtocol = packetProtocol;
         return this;
     }
 
+    /**
+     * Registers the metrics of the server as an MBean, see {@link Server#enableMBeans(String, boolean)}.
+     */
+    public ServerBuilder withMBeans(String name, boolean perConnection){
+        this.mbeanName = name;
+        this.connectionMBeans = perConnection;
+        return this;
+    }
+
+    /**
+     * Carries timestamps in normal frames instead of relying on RTT probes, see {@link Server#enableTimestamps()}.
+     */
+    public ServerBuilder withTimestamps(){
+        this.timestamps = true;
+        return this;
+    }
+
+    /**
+     * Freezes the protocol when the server starts, see {@link Server#enableFrozenProtocol()}.
+     */
+    public ServerBuilder withFrozenProtocol(){
+        this.frozenProtocol = true;
+        return this;
+    }
+
+    /**
+     * Runs the server over the transports of the given factory, see {@link Server#setTransportFactory(TransportFactory)}.
+     * Needs the {@link ServerEngine#SOCKET} engine.
+     */
+    public ServerBuilder withTransport(TransportFactory transportFactory){
+        this.transportFactory = transportFactory;
+        return this;
+    }
+
     public ServerBuilder withListener(IListener listener){
         this.listeners.add(listener);
         return this;
     }
+
+    /**
+     * Registers a handler of a received packet class, see {@link Server#onPacket(Class, BiConsumer)}.
+     */
+    public <T extends Packet> ServerBuilder withHandler(Class<T> type, BiConsumer<? super T, Connection> handler){
+        this.handlers.add(server -> server.onPacket(type, handler));
+        return this;
+    }
     
     public Server build(){
         if(packetProtocol == null){
             throw new PacketerException("Protocol not set!");
         }
         
-        Server server = new Server(port, packetProtocol);
+        if(ports.length == 0){
+            throw new PacketerException("No port set!");
+        }
+
+        if(engine == null){
+            throw new PacketerException("Engine not set!");
+        }
+
+        if(shards < 1){
+            throw new PacketerException("Shard count must be at least 1!");
+        }
+
+        if(broadcastThreads < 1){
+            throw new PacketerException("Broadcast thread count must be at least 1!");
+        }
+
+        Server server = new Server(ports, packetProtocol, engine, shards, broadcastThreads);
+        if(batchMtu > 0){
+            server.enableBatching(batchMtu, batchFlushInterval);
+        }
+        if(maxBandwidth > 0){
+            server.enableCongestionControl(maxBandwidth);
+        }
+        if(compressionThreshold > 0){
+            server.enableCompression(compressionThreshold);
+        }
+        if(dispatcherFactory != null){
+            server.enableAsyncDispatch(dispatcherFactory);
+        }
+        if(mbeanName != null){
+            server.enableMBeans(mbeanName, connectionMBeans);
+        }
+        if(timestamps){
+            server.enableTimestamps();
+        }
+        if(frozenProtocol){
+            server.enableFrozenProtocol();
+        }
+        if(transportFactory != null){
+            server.setTransportFactory(transportFactory);
+        }
         for(IListener listener : listeners){
             server.addListener(listener);
         }
+        for(Consumer<Server> handler : handlers){
+            handler.accept(server);
+        }
 
         return server;
     }
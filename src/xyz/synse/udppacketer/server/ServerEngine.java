@@ -0,0 +1,16 @@
+package xyz.synse.udppacketer.server;
+
+/**
+ * The I/O engine a {@link Server} receives datagrams with.
+ */
+public enum ServerEngine {
+    /**
+     * A blocking {@link java.net.DatagramSocket} with a dedicated receive thread per bound port.
+     */
+    SOCKET,
+    /**
+     * Non-blocking {@link java.nio.channels.DatagramChannel}s using direct buffers, all bound
+     * ports are multiplexed by one {@link java.nio.channels.Selector} event loop thread.
+     */
+    NIO
+}
@@ -0,0 +1,59 @@
+package xyz.synse.udppacketer.server;
+
+import xyz.synse.udppacketer.common.Connection;
+import xyz.synse.udppacketer.common.transport.Transport;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One receive shard of a {@link Server}. A shard owns one transport per bound
+ * port and the connections whose datagrams the kernel hashes to those transports.
+ * Without sharding a server consists of a single shard.
+ */
+class Shard {
+    private final int index;
+    private final List<Transport> transports = new ArrayList<>();
+    private final ConnectionTable connections = new ConnectionTable();
+    private NioEventLoop eventLoop;
+
+    Shard(int index) {
+        this.index = index;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    List<Transport> getTransports() {
+        return transports;
+    }
+
+    ConnectionTable getConnections() {
+        return connections;
+    }
+
+    Connection getConnection(InetAddress address, int port) {
+        return connections.get(address, port);
+    }
+
+    NioEventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    void setEventLoop(NioEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    void close() {
+        if (eventLoop != null) {
+            eventLoop.wakeup();
+            eventLoop = null;
+        }
+
+        for (Transport transport : transports)
+            transport.close();
+        transports.clear();
+    }
+}